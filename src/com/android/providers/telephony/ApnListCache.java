@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory cache of the APN lists resolved by {@link TelephonyProvider} for the sim_apn_list
+ * URIs, keyed on the subscription id and the query. An entry holds the rows, with all the
+ * columns of the carriers table, that matched the SIM of the subscription after the MVNO
+ * filtering, so a hit costs neither the SIM operator lookup nor the database query.
+ *
+ * The result depends on the carriers table and on the SIM, so the cache must be invalidated
+ * on every write of the carriers table and on every SIM state, SIM records or subscription
+ * change. A lookup that started before an invalidation never repopulates the cache with its
+ * (possibly stale) result, see {@link #getGeneration()}.
+ */
+final class ApnListCache {
+    private static final int MAX_ENTRIES = 16;
+
+    /**
+     * Resolved rows of one sim_apn_list query.
+     */
+    static final class ApnList {
+        final String[] columnNames;
+        final List<String[]> rows;
+
+        ApnList(String[] columnNames, List<String[]> rows) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+        }
+
+        /**
+         * Returns a new cursor over the rows, limited to the given columns.
+         */
+        Cursor toCursor(String[] projection) {
+            String[] columns = projection != null ? projection : columnNames;
+            List<String> names = Arrays.asList(columnNames);
+            int[] indexes = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                indexes[i] = names.indexOf(columns[i]);
+            }
+            MatrixCursor cursor = new MatrixCursor(columns, rows.size());
+            for (String[] row : rows) {
+                Object[] values = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = indexes[i] >= 0 ? row[indexes[i]] : null;
+                }
+                cursor.addRow(values);
+            }
+            return cursor;
+        }
+    }
+
+    private final LruCache<String, ApnList> mApnLists = new LruCache<>(MAX_ENTRIES);
+
+    // Bumped on every invalidation. Guarded by "this".
+    private long mGeneration;
+    private long mInvalidationCount;
+
+    /**
+     * Returns the key of a query of the APN list of the given subscription.
+     */
+    static String getKey(int subId, String ownerClause, String selection,
+            String[] selectionArgs, String sort) {
+        return subId + "|" + ownerClause + "|" + selection + "|"
+                + Arrays.toString(selectionArgs) + "|" + sort;
+    }
+
+    /**
+     * Returns a token to pass to {@link #put} once the APN list is resolved.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    ApnList get(String key) {
+        return mApnLists.get(key);
+    }
+
+    synchronized void put(String key, ApnList apnList, long generation) {
+        if (generation == mGeneration) {
+            mApnLists.put(key, apnList);
+        }
+    }
+
+    /**
+     * Drop all cached APN lists.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mInvalidationCount++;
+        mApnLists.evictAll();
+    }
+
+    @VisibleForTesting
+    int hitCount() {
+        return mApnLists.hitCount();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("ApnListCache: entries " + mApnLists.size() + "/" + MAX_ENTRIES
+                + " hits=" + mApnLists.hitCount() + " misses=" + mApnLists.missCount()
+                + " invalidations=" + mInvalidationCount);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary snapshot of the APNs parsed from the xml files by {@link TelephonyProvider}, so that
+ * a reload of the carriers table, e.g. on a restore of the default APNs, does not parse the xml
+ * again. The snapshot is in /data, so it does not outlive a factory reset.
+ *
+ * The snapshot holds the rows as returned by the parser, in load order. It is tied to the
+ * checksum of the xml files and to the format version, and is ignored when either changed; the
+ * caller then parses the xml and writes a new snapshot. It is read through a memory mapping and
+ * checked against the CRC32 of its contents, so a corrupt or truncated file is ignored too.
+ */
+final class ApnSnapshot {
+    private static final String TAG = "ApnSnapshot";
+
+    private static final int MAGIC = 0x41504e53; // "APNS"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_BOOLEAN = 3;
+
+    private ApnSnapshot() {
+    }
+
+    /**
+     * Returns the rows of the snapshot, null if there is no valid snapshot for the checksum.
+     */
+    static List<ContentValues> read(File file, long checksum) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            // The contents are followed by their CRC32.
+            int crcOffset = buffer.limit() - Long.BYTES;
+            if (crcOffset < 0) {
+                throw new IOException("Truncated file");
+            }
+            ByteBuffer contents = buffer.duplicate();
+            contents.limit(crcOffset);
+            CRC32 crc = new CRC32();
+            crc.update(contents.duplicate());
+            if (crc.getValue() != buffer.getLong(crcOffset)) {
+                throw new IOException("CRC mismatch");
+            }
+
+            if (contents.getInt() != MAGIC || contents.getInt() != FORMAT_VERSION
+                    || contents.getLong() != checksum) {
+                Log.d(TAG, "Snapshot is out of date");
+                return null;
+            }
+            String[] keys = new String[contents.getInt()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = getString(contents);
+            }
+            int rowCount = contents.getInt();
+            List<ContentValues> rows = new ArrayList<>(rowCount);
+            for (int i = 0; i < rowCount; i++) {
+                int fieldCount = contents.getInt();
+                ContentValues row = new ContentValues(fieldCount);
+                for (int j = 0; j < fieldCount; j++) {
+                    String key = keys[contents.getInt()];
+                    byte type = contents.get();
+                    switch (type) {
+                        case TYPE_NULL:
+                            row.putNull(key);
+                            break;
+                        case TYPE_STRING:
+                            row.put(key, getString(contents));
+                            break;
+                        case TYPE_INT:
+                            row.put(key, contents.getInt());
+                            break;
+                        case TYPE_BOOLEAN:
+                            row.put(key, contents.get() != 0);
+                            break;
+                        default:
+                            throw new IOException("Unknown value type " + type);
+                    }
+                }
+                rows.add(row);
+            }
+            return rows;
+        } catch (IOException | RuntimeException e) {
+            // RuntimeException: a file with a valid CRC but a bad layout, e.g. underflow
+            Log.w(TAG, "Ignoring snapshot " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the given rows, parsed from the xml files with the checksum.
+     */
+    static void write(File file, long checksum, List<ContentValues> rows) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(bytes, crc));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(checksum);
+
+            Map<String, Integer> keys = new LinkedHashMap<>();
+            for (ContentValues row : rows) {
+                for (String key : row.keySet()) {
+                    if (!keys.containsKey(key)) {
+                        keys.put(key, keys.size());
+                    }
+                }
+            }
+            out.writeInt(keys.size());
+            for (String key : keys.keySet()) {
+                putString(out, key);
+            }
+
+            out.writeInt(rows.size());
+            for (ContentValues row : rows) {
+                out.writeInt(row.size());
+                for (Map.Entry<String, Object> field : row.valueSet()) {
+                    out.writeInt(keys.get(field.getKey()));
+                    Object value = field.getValue();
+                    if (value == null) {
+                        out.writeByte(TYPE_NULL);
+                    } else if (value instanceof String) {
+                        out.writeByte(TYPE_STRING);
+                        putString(out, (String) value);
+                    } else if (value instanceof Integer) {
+                        out.writeByte(TYPE_INT);
+                        out.writeInt((Integer) value);
+                    } else if (value instanceof Boolean) {
+                        out.writeByte(TYPE_BOOLEAN);
+                        out.writeByte((Boolean) value ? 1 : 0);
+                    } else {
+                        throw new IOException("Unsupported value " + field);
+                    }
+                }
+            }
+            out.flush();
+            new DataOutputStream(bytes).writeLong(crc.getValue());
+        } catch (IOException e) {
+            Log.e(TAG, "Not writing snapshot " + file + ": " + e);
+            return;
+        }
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            bytes.writeTo(fos);
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write snapshot " + file + ": " + e);
+            if (fos != null) {
+                atomicFile.failWrite(fos);
+            }
+        }
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] utf8 = new byte[buffer.getInt()];
+        buffer.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
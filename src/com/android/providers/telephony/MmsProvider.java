@@ -33,7 +33,6 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.FileUtils;
 import android.os.ParcelFileDescriptor;
-import android.os.UserHandle;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.CanonicalAddressesColumns;
@@ -42,7 +41,6 @@ import android.provider.Telephony.Mms.Addr;
 import android.provider.Telephony.Mms.Inbox;
 import android.provider.Telephony.Mms.Part;
 import android.provider.Telephony.Mms.Rate;
-import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Threads;
 import android.text.TextUtils;
 import android.util.Log;
@@ -51,8 +49,13 @@ import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.util.DownloadDrmHelper;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
 
 /**
  * The class to provide base facility to access MMS related content,
@@ -64,7 +67,7 @@ public class MmsProvider extends ContentProvider {
     static final String TABLE_PART = "part";
     static final String TABLE_RATE = "rate";
     static final String TABLE_DRM  = "drm";
-    static final String TABLE_WORDS = "words";
+    static final String TABLE_PART_FTS = "part_fts";
     static final String VIEW_PDU_RESTRICTED = "pdu_restricted";
 
     // The name of parts directory. The full dir is "app_parts".
@@ -363,6 +366,7 @@ public class MmsProvider extends ContentProvider {
         ContentValues finalValues;
         Uri res = Mms.CONTENT_URI;
         Uri caseSpecificUri = null;
+        Set<Long> threadIds = Collections.emptySet();
         long rowId;
 
         if (table.equals(TABLE_PDU)) {
@@ -412,6 +416,11 @@ public class MmsProvider extends ContentProvider {
                 return null;
             }
 
+            Long threadId = finalValues.getAsLong(Mms.THREAD_ID);
+            if (threadId != null) {
+                threadIds = Collections.singleton(threadId);
+            }
+
             // Notify change when an MMS is received.
             if (msgBox == Mms.MESSAGE_BOX_INBOX) {
                 caseSpecificUri = ContentUris.withAppendedId(Mms.Inbox.CONTENT_URI, rowId);
@@ -421,6 +430,7 @@ public class MmsProvider extends ContentProvider {
         } else if (table.equals(TABLE_ADDR)) {
             finalValues = new ContentValues(values);
             finalValues.put(Addr.MSG_ID, uri.getPathSegments().get(0));
+            MmsSmsDatabaseHelper.putAddressMinMatch(finalValues, Addr.ADDRESS);
 
             if ((rowId = db.insert(table, null, finalValues)) <= 0) {
                 Log.e(TAG, "Failed to insert address");
@@ -537,23 +547,11 @@ public class MmsProvider extends ContentProvider {
 
             res = Uri.parse(res + "/part/" + rowId);
 
-            // Don't use a trigger for updating the words table because of a bug
-            // in FTS3.  The bug is such that the call to get the last inserted
-            // row is incorrect.
             if (plainText) {
-                // Update the words table with a corresponding row.  The words table
-                // allows us to search for words quickly, without scanning the whole
-                // table;
-                ContentValues cv = new ContentValues();
-
-                // we're using the row id of the part table row but we're also using ids
-                // from the sms table so this divides the space into two large chunks.
-                // The row ids from the part table start at 2 << 32.
-                cv.put(Telephony.MmsSms.WordsTable.ID, (2L << 32) + rowId);
-                cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("text"));
-                cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowId);
-                cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 2);
-                db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
+                // The new part was added to the pending search index log by a trigger.
+                if (mOpenHelper instanceof MmsSmsDatabaseHelper) {
+                    ((MmsSmsDatabaseHelper) mOpenHelper).getSearchIndexer().schedule();
+                }
             }
 
         } else if (table.equals(TABLE_RATE)) {
@@ -591,8 +589,9 @@ public class MmsProvider extends ContentProvider {
             throw new AssertionError("Unknown table type: " + table);
         }
 
+        onWrite();
         if (notify) {
-            notifyChange(res, caseSpecificUri);
+            notifyChange(res, caseSpecificUri, threadIds);
         }
         return res;
     }
@@ -675,8 +674,11 @@ public class MmsProvider extends ContentProvider {
         String finalSelection = concatSelections(selection, extraSelection);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int deletedRows = 0;
+        Set<Long> threadIds = Collections.emptySet();
 
         if (TABLE_PDU.equals(table)) {
+            threadIds = NotificationDispatcher.getThreadIds(db, TABLE_PDU, finalSelection,
+                    selectionArgs);
             deletedRows = deleteMessages(getContext(), db, finalSelection,
                                          selectionArgs, uri);
         } else if (TABLE_PART.equals(table)) {
@@ -687,8 +689,11 @@ public class MmsProvider extends ContentProvider {
             deletedRows = db.delete(table, finalSelection, selectionArgs);
         }
 
+        if (deletedRows > 0) {
+            onWrite();
+        }
         if ((deletedRows > 0) && notify) {
-            notifyChange(uri, null);
+            notifyChange(uri, null, threadIds);
         }
         return deletedRows;
     }
@@ -862,9 +867,23 @@ public class MmsProvider extends ContentProvider {
 
         String finalSelection = concatSelections(selection, extraSelection);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Long> threadIds = Collections.emptySet();
+        if (notify) {
+            // The threads the messages are in before the update, and the one they may be moved
+            // to.
+            threadIds = NotificationDispatcher.getThreadIds(db, table, finalSelection,
+                    selectionArgs);
+            Long newThreadId = finalValues.getAsLong(Mms.THREAD_ID);
+            if (newThreadId != null) {
+                threadIds.add(newThreadId);
+            }
+        }
         int count = db.update(table, finalValues, finalSelection, selectionArgs);
+        if (count > 0) {
+            onWrite();
+        }
         if (notify && (count > 0)) {
-            notifyChange(uri, null);
+            notifyChange(uri, null, threadIds);
         }
         return count;
     }
@@ -981,16 +1000,44 @@ public class MmsProvider extends ContentProvider {
         values.remove(Mms._ID);
     }
 
-    private void notifyChange(final Uri uri, final Uri caseSpecificUri) {
-        final Context context = getContext();
+    /**
+     * Push back the idle checkpoint of the database, after a write.
+     */
+    private void onWrite() {
+        if (mOpenHelper instanceof MmsSmsDatabaseHelper) {
+            ((MmsSmsDatabaseHelper) mOpenHelper).onWrite();
+        }
+    }
+
+    /**
+     * Notify the change of the given URIs and of the conversations of the given threads.
+     *
+     * @param threadIds the threads of the changed messages, see
+     *                  {@link NotificationDispatcher#notifyThreadsChange}
+     */
+    private void notifyChange(final Uri uri, final Uri caseSpecificUri,
+            Collection<Long> threadIds) {
+        NotificationDispatcher dispatcher = getNotificationDispatcher();
         if (caseSpecificUri != null) {
-            context.getContentResolver().notifyChange(
-                caseSpecificUri, null, true, UserHandle.USER_ALL);
+            dispatcher.notifyChange(caseSpecificUri);
         }
-        context.getContentResolver().notifyChange(
-                MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
-        ProviderUtil.notifyIfNotDefaultSmsApp(caseSpecificUri == null ? uri : caseSpecificUri,
-                getCallingPackage(), context);
+        dispatcher.notifyThreadsChange(threadIds);
+        dispatcher.notifyIfNotDefaultSmsApp(caseSpecificUri == null ? uri : caseSpecificUri,
+                getCallingPackage());
+        dispatcher.dispatch();
+    }
+
+    /**
+     * Returns the dispatcher of the change notifications, shared with the other message
+     * providers.
+     */
+    NotificationDispatcher getNotificationDispatcher() {
+        return NotificationDispatcher.getInstance(getContext());
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        getNotificationDispatcher().dump(writer);
     }
 
     private final static String TAG = "MmsProvider";
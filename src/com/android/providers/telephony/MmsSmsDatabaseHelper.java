@@ -27,6 +27,7 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.DatabaseErrorHandler;
 import android.database.DefaultDatabaseErrorHandler;
+import android.database.sqlite.SQLiteStatement;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -43,6 +44,7 @@ import android.provider.Telephony.MmsSms.PendingMessages;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Intents;
 import android.provider.Telephony.Threads;
+import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionManager;
 import android.util.Log;
 import android.util.Slog;
@@ -56,9 +58,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -247,15 +248,31 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String[] BIND_ARGS_NONE = new String[0];
 
-    private static boolean sTriedAutoIncrement = false;
+    /**
+     * Column of canonical_addresses, addr and sms holding the min-match key of the address
+     * column (see {@link #getAddressMinMatch}), or null if the address is not a phone number.
+     * It is indexed so that phone number lookups are an index probe, with PHONE_NUMBERS_EQUAL
+     * only applied to the matching rows.
+     */
+    static final String ADDRESS_MIN_MATCH = "min_match";
+
+    // Rows per UPDATE of backfillAddressMinMatch, 3 bind args each, under the limit of 999.
+    private static final int MIN_MATCH_BACKFILL_BATCH_SIZE = 300;
+
+    private static volatile boolean sTriedAutoIncrement = false;
     private static boolean sFakeLowStorageTest = false;     // for testing only
 
     static final String DATABASE_NAME = "mmssms.db";
-    static final int DATABASE_VERSION = 67;
+    static final int DATABASE_VERSION = 72;
     private static final int IDLE_CONNECTION_TIMEOUT_MS = 30000;
 
     private final Context mContext;
+    private final SearchIndexer mSearchIndexer = new SearchIndexer(this);
+    private final WalCheckpointScheduler mCheckpointScheduler = new WalCheckpointScheduler(this);
+    private final boolean mWalEnabled;
     private LowStorageMonitor mLowStorageMonitor;
+    // The database once opened, returned without taking the lock of this helper.
+    private volatile SQLiteDatabase mDatabase;
 
     // SharedPref key used to check if initial create has been done (if onCreate has already been
     // called once)
@@ -283,6 +300,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             sendDbLostIntent(mContext, true);
             // Let the default error handler take other actions
             mDefaultDatabaseErrorHandler.onCorruption(dbObj);
+            // The database is deleted and created again on the next open.
+            ThreadIdCache.getInstance().invalidateAll();
         }
     }
 
@@ -297,7 +316,37 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         } catch (IllegalArgumentException e) {
             // ignore
         }
-        setWriteAheadLoggingEnabled(false);
+        // Write-ahead logging lets the readers (inbox, search) run while a message is being
+        // written. The CE and DE databases are separate files, each with its own log. Turning
+        // the switch off converts the database back to the rollback journal on the next open,
+        // after checkpointing the log.
+        mWalEnabled = WalCheckpointScheduler.isWalEnabled();
+        setWriteAheadLoggingEnabled(mWalEnabled);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // Index the rows left in the pending log by a previous process.
+        mSearchIndexer.schedule();
+        if (mWalEnabled) {
+            // Watch the storage, to truncate the log when it is low.
+            registerLowStorageMonitor();
+        }
+    }
+
+    /**
+     * Returns the background indexer of the search tables of this database.
+     */
+    SearchIndexer getSearchIndexer() {
+        return mSearchIndexer;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Write-ahead logging: " + mWalEnabled);
+        if (mWalEnabled) {
+            mCheckpointScheduler.dump(writer);
+        }
+        mSearchIndexer.dump(writer);
     }
 
     private static synchronized MmsSmsDatabaseErrorHandler getDbErrorHandler(Context context) {
@@ -342,48 +391,12 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Look through all the recipientIds referenced by the threads and then delete any
-     * unreferenced rows from the canonical_addresses table.
+     * Delete the rows of the canonical_addresses table that no thread refers to.
      */
-    private static void removeUnferencedCanonicalAddresses(SQLiteDatabase db) {
-        Cursor c = db.query(MmsSmsProvider.TABLE_THREADS, new String[] { "recipient_ids" },
-                null, null, null, null, null);
-        if (c != null) {
-            try {
-                if (c.getCount() == 0) {
-                    // no threads, delete all addresses
-                    int rows = db.delete("canonical_addresses", null, null);
-                } else {
-                    // Find all the referenced recipient_ids from the threads. recipientIds is
-                    // a space-separated list of recipient ids: "1 14 21"
-                    HashSet<Integer> recipientIds = new HashSet<Integer>();
-                    while (c.moveToNext()) {
-                        String[] recips = c.getString(0).split(" ");
-                        for (String recip : recips) {
-                            try {
-                                int recipientId = Integer.parseInt(recip);
-                                recipientIds.add(recipientId);
-                            } catch (Exception e) {
-                            }
-                        }
-                    }
-                    // Now build a selection string of all the unique recipient ids
-                    StringBuilder sb = new StringBuilder();
-                    Iterator<Integer> iter = recipientIds.iterator();
-                    sb.append("_id NOT IN (");
-                    while (iter.hasNext()) {
-                        sb.append(iter.next());
-                        if (iter.hasNext()) {
-                            sb.append(",");
-                        }
-                    }
-                    sb.append(")");
-                    int rows = db.delete("canonical_addresses", sb.toString(), null);
-                }
-            } finally {
-                c.close();
-            }
-        }
+    static void removeUnferencedCanonicalAddresses(SQLiteDatabase db) {
+        db.delete("canonical_addresses", "NOT EXISTS (SELECT 1 FROM "
+                + MmsSmsProvider.TABLE_THREAD_RECIPIENTS
+                + " WHERE address_id = canonical_addresses._id)", null);
     }
 
     public static void updateThread(SQLiteDatabase db, long thread_id) {
@@ -397,6 +410,10 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     /**
      * Update all threads containing SMS matching the 'where' condition. Note that the condition
      * is applied to individual messages in the sms table, NOT the threads table.
+     *
+     * This recounts every thread when 'where' is null. Deletes should rather use
+     * {@link ThreadAggregates}, which only touches the threads of the deleted messages; this
+     * method is the repair operation for when the threads table got out of sync.
      */
     public static void updateThreads(SQLiteDatabase db, String where, String[] whereArgs) {
         if (where == null) {
@@ -420,6 +437,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             if (rows > 0) {
                 // If this deleted a row, let's remove orphaned canonical_addresses
                 removeUnferencedCanonicalAddresses(db);
+                ThreadIdCache.getInstance().invalidateAll();
             }
 
             // Update the message count in the threads table as the sum
@@ -502,22 +520,41 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public static int deleteOneSms(SQLiteDatabase db, int message_id) {
-        int thread_id = -1;
-        // Find the thread ID that the specified SMS belongs to.
-        Cursor c = db.query("sms", new String[] { "thread_id" },
-                            "_id=" + message_id, null, null, null, null);
-        if (c != null) {
-            if (c.moveToFirst()) {
-                thread_id = c.getInt(0);
-            }
-            c.close();
-        }
+        return deleteSms(db, "_id=" + message_id, null, null, false);
+    }
+
+    /**
+     * Delete the sms rows matching the 'where' condition and apply the change to the
+     * aggregates of their threads.
+     *
+     * @param threadId the deleted conversation, null for all of them. The conversation is
+     *        deleted if it is left without messages, even if the condition matched none of its
+     *        messages (an empty draft thread). With null, every thread left without messages is
+     *        deleted once a row was deleted, as updateThreads did.
+     */
+    static int deleteSms(SQLiteDatabase db, String where, String[] whereArgs, Long threadId) {
+        return deleteSms(db, where, whereArgs, threadId, threadId == null);
+    }
 
-        // Delete the specified message.
-        int rows = db.delete("sms", "_id=" + message_id, null);
-        if (thread_id > 0) {
-            // Update its thread.
-            updateThread(db, thread_id);
+    private static int deleteSms(SQLiteDatabase db, String where, String[] whereArgs,
+            Long threadId, boolean allThreads) {
+        int rows;
+        db.beginTransaction();
+        try {
+            ThreadAggregates aggregates = ThreadAggregates.forSmsDelete(db, where, whereArgs);
+            rows = db.delete(SmsProvider.TABLE_SMS, where, whereArgs);
+            if (threadId != null) {
+                aggregates.addThread(threadId);
+            }
+            if (allThreads && rows > 0) {
+                aggregates.addAllThreads();
+            }
+            if (rows > 0 || threadId != null) {
+                aggregates.apply(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
         return rows;
     }
@@ -546,6 +583,17 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
             mContext.sendBroadcast(intent, android.Manifest.permission.READ_SMS);
         }
+        createTables(db);
+        // The database is new, e.g. after a corruption or a failed upgrade, so the cached ids
+        // are of the rows of the old one.
+        ThreadIdCache.getInstance().invalidateAll();
+    }
+
+    /**
+     * Create the tables, triggers and indices of a new database.
+     */
+    @VisibleForTesting
+    void createTables(SQLiteDatabase db) {
         createMmsTables(db);
         createSmsTables(db);
         createCommonTables(db);
@@ -559,7 +607,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
         createCommonTriggers(db);
         createMmsTriggers(db);
-        createWordsTables(db);
+        createSearchTables(db);
         createIndices(db);
     }
 
@@ -587,96 +635,115 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    // When upgrading the database we need to populate the words
-    // table with the rows out of sms and part.
-    private void populateWordsTable(SQLiteDatabase db) {
-        final String TABLE_WORDS = "words";
-        {
-            Cursor smsRows = db.query(
-                    "sms",
-                    new String[] { Sms._ID, Sms.BODY },
-                    null,
-                    null,
-                    null,
-                    null,
-                    null);
-            try {
-                if (smsRows != null) {
-                    smsRows.moveToPosition(-1);
-                    ContentValues cv = new ContentValues();
-                    while (smsRows.moveToNext()) {
-                        cv.clear();
-
-                        long id = smsRows.getLong(0);        // 0 for Sms._ID
-                        String body = smsRows.getString(1);  // 1 for Sms.BODY
-
-                        cv.put(Telephony.MmsSms.WordsTable.ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, body);
-                        cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-                        db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-                    }
-                }
-            } finally {
-                if (smsRows != null) {
-                    smsRows.close();
-                }
-            }
-        }
+    /**
+     * Create the full-text search index of the sms bodies and the text/plain mms parts.
+     *
+     * Both are FTS4 tables with external content: they only hold the index, keyed by the _id of
+     * the sms or part row, and read the text back from the sms and part tables. Prefix indexes
+     * make the "pattern*" queries of the search URIs cheap.
+     *
+     * New rows are not indexed on insert: a trigger appends them to the pending log, which
+     * {@link SearchIndexer} drains in the background. Triggers keep the index in sync on update
+     * and delete, while the old text is still in the content table. Rows still in the log are
+     * not in the index yet, so these triggers leave the index alone for them.
+     */
+    static void createSearchTables(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + SmsProvider.TABLE_SMS_FTS +
+                " USING fts4(content=\"" + SmsProvider.TABLE_SMS + "\", " + Sms.BODY +
+                ", prefix=\"1,2,3\");");
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + MmsProvider.TABLE_PART_FTS +
+                " USING fts4(content=\"" + MmsProvider.TABLE_PART + "\", " + Part.TEXT +
+                ", prefix=\"1,2,3\");");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SearchIndexer.TABLE_PENDING + " (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "table_to_use INTEGER NOT NULL," +
+                "row_id INTEGER NOT NULL," +
+                "enqueued INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS searchIndexPendingRowIndex ON " +
+                SearchIndexer.TABLE_PENDING + " (table_to_use, row_id);");
+
+        // Unlike an insert into an FTS3 table, an insert into a regular table from a trigger
+        // doesn't change the row id returned for the message.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_fts_after_insert");
+        db.execSQL("CREATE TRIGGER sms_fts_after_insert AFTER INSERT ON sms " +
+                "BEGIN " +
+                "  INSERT INTO " + SearchIndexer.TABLE_PENDING +
+                "  (table_to_use, row_id, enqueued)" +
+                "  VALUES (" + SearchIndexer.TABLE_TO_USE_SMS + ", new._id, " +
+                SearchIndexer.NOW_MILLIS + "); " +
+                "END;");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_fts_before_update");
+        db.execSQL("CREATE TRIGGER sms_fts_before_update BEFORE UPDATE OF body ON sms " +
+                "WHEN " + getNotPendingCondition(SearchIndexer.TABLE_TO_USE_SMS, "old._id") +
+                " BEGIN " +
+                "  DELETE FROM " + SmsProvider.TABLE_SMS_FTS + " WHERE docid = old._id; " +
+                "END;");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_fts_after_update");
+        db.execSQL("CREATE TRIGGER sms_fts_after_update AFTER UPDATE OF body ON sms " +
+                "WHEN " + getNotPendingCondition(SearchIndexer.TABLE_TO_USE_SMS, "new._id") +
+                " BEGIN " +
+                "  INSERT INTO " + SmsProvider.TABLE_SMS_FTS + " (docid, body)" +
+                "  VALUES (new._id, new.body); " +
+                "END;");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_fts_before_delete");
+        db.execSQL("CREATE TRIGGER sms_fts_before_delete BEFORE DELETE ON sms " +
+                "BEGIN " +
+                "  DELETE FROM " + SmsProvider.TABLE_SMS_FTS + " WHERE docid = old._id" +
+                "  AND " + getNotPendingCondition(SearchIndexer.TABLE_TO_USE_SMS, "old._id") +
+                ";" +
+                "  DELETE FROM " + SearchIndexer.TABLE_PENDING +
+                "  WHERE table_to_use = " + SearchIndexer.TABLE_TO_USE_SMS +
+                "  AND row_id = old._id; " +
+                "END;");
 
-        {
-            Cursor mmsRows = db.query(
-                    "part",
-                    new String[] { Part._ID, Part.TEXT },
-                    "ct = 'text/plain'",
-                    null,
-                    null,
-                    null,
-                    null);
-            try {
-                if (mmsRows != null) {
-                    mmsRows.moveToPosition(-1);
-                    ContentValues cv = new ContentValues();
-                    while (mmsRows.moveToNext()) {
-                        cv.clear();
-
-                        long id = mmsRows.getLong(0);         // 0 for Part._ID
-                        String body = mmsRows.getString(1);   // 1 for Part.TEXT
-
-                        cv.put(Telephony.MmsSms.WordsTable.ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, body);
-                        cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-                        db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-                    }
-                }
-            } finally {
-                if (mmsRows != null) {
-                    mmsRows.close();
-                }
-            }
-        }
+        createPartSearchTriggers(db);
     }
 
-    private void createWordsTables(SQLiteDatabase db) {
-        try {
-            db.execSQL("CREATE VIRTUAL TABLE words USING FTS3 (_id INTEGER PRIMARY KEY, index_text TEXT, source_id INTEGER, table_to_use INTEGER);");
-
-            // monitor the sms table
-            // NOTE don't handle inserts using a trigger because it has an unwanted
-            // side effect:  the value returned for the last row ends up being the
-            // id of one of the trigger insert not the original row insert.
-            // Handle inserts manually in the provider.
-            db.execSQL("CREATE TRIGGER sms_words_update AFTER UPDATE ON sms BEGIN UPDATE words " +
-                    " SET index_text = NEW.body WHERE (source_id=NEW._id AND table_to_use=1); " +
-                    " END;");
-            db.execSQL("CREATE TRIGGER sms_words_delete AFTER DELETE ON sms BEGIN DELETE FROM " +
-                    "  words WHERE source_id = OLD._id AND table_to_use = 1; END;");
-
-            populateWordsTable(db);
-        } catch (Exception ex) {
-            Log.e(TAG, "got exception creating words table: " + ex.toString());
-        }
+    /**
+     * Create the triggers keeping part_fts in sync. Only text/plain parts are indexed.
+     */
+    private static void createPartSearchTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS part_fts_after_insert");
+        db.execSQL("CREATE TRIGGER part_fts_after_insert AFTER INSERT ON part " +
+                "WHEN new.ct = 'text/plain' " +
+                "BEGIN " +
+                "  INSERT INTO " + SearchIndexer.TABLE_PENDING +
+                "  (table_to_use, row_id, enqueued)" +
+                "  VALUES (" + SearchIndexer.TABLE_TO_USE_PART + ", new._id, " +
+                SearchIndexer.NOW_MILLIS + "); " +
+                "END;");
+        db.execSQL("DROP TRIGGER IF EXISTS part_fts_before_update");
+        db.execSQL("CREATE TRIGGER part_fts_before_update BEFORE UPDATE OF text, ct ON part " +
+                "WHEN old.ct = 'text/plain' AND " +
+                getNotPendingCondition(SearchIndexer.TABLE_TO_USE_PART, "old._id") +
+                " BEGIN " +
+                "  DELETE FROM " + MmsProvider.TABLE_PART_FTS + " WHERE docid = old._id; " +
+                "END;");
+        db.execSQL("DROP TRIGGER IF EXISTS part_fts_after_update");
+        db.execSQL("CREATE TRIGGER part_fts_after_update AFTER UPDATE OF text, ct ON part " +
+                "WHEN new.ct = 'text/plain' AND " +
+                getNotPendingCondition(SearchIndexer.TABLE_TO_USE_PART, "new._id") +
+                " BEGIN " +
+                "  INSERT INTO " + MmsProvider.TABLE_PART_FTS + " (docid, text)" +
+                "  VALUES (new._id, new.text); " +
+                "END;");
+        db.execSQL("DROP TRIGGER IF EXISTS part_fts_before_delete");
+        db.execSQL("CREATE TRIGGER part_fts_before_delete BEFORE DELETE ON part " +
+                "WHEN old.ct = 'text/plain' " +
+                "BEGIN " +
+                "  DELETE FROM " + MmsProvider.TABLE_PART_FTS + " WHERE docid = old._id" +
+                "  AND " + getNotPendingCondition(SearchIndexer.TABLE_TO_USE_PART, "old._id") +
+                ";" +
+                "  DELETE FROM " + SearchIndexer.TABLE_PENDING +
+                "  WHERE table_to_use = " + SearchIndexer.TABLE_TO_USE_PART +
+                "  AND row_id = old._id; " +
+                "END;");
+    }
+
+    private static String getNotPendingCondition(int tableToUse, String rowId) {
+        return "NOT EXISTS (SELECT 1 FROM " + SearchIndexer.TABLE_PENDING +
+                " WHERE table_to_use = " + tableToUse + " AND row_id = " + rowId + ")";
     }
 
     private void createIndices(SQLiteDatabase db) {
@@ -684,6 +751,9 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         createThreadIdDateIndex(db);
         createPartMidIndex(db);
         createAddrMsgIdIndex(db);
+        createAddressMinMatchIndices(db);
+        createThreadsDateIndex(db);
+        createPduThreadIdDateIndex(db);
     }
 
     private void createThreadIdIndex(SQLiteDatabase db) {
@@ -704,6 +774,25 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    // The conversation list is read from the threads table in (date, _id) order. The _id
+    // is the rowid, which every index already ends with.
+    private void createThreadsDateIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS threadsDateIndex ON threads (date)");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
+    private void createPduThreadIdDateIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS pduThreadIdDateIndex ON pdu" +
+            " (thread_id, date);");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
     private void createPartMidIndex(SQLiteDatabase db) {
         try {
             db.execSQL("CREATE INDEX IF NOT EXISTS partMidIndex ON part (mid)");
@@ -720,6 +809,90 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    private void createAddressMinMatchIndices(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS canonicalAddressesMinMatchIndex"
+                    + " ON canonical_addresses (" + ADDRESS_MIN_MATCH + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS addrMinMatchIndex ON addr ("
+                    + ADDRESS_MIN_MATCH + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS smsMinMatchIndex ON sms ("
+                    + ADDRESS_MIN_MATCH + ")");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
+    /**
+     * Return the key stored in {@link #ADDRESS_MIN_MATCH} for this address, or null if it is
+     * not a phone number.
+     */
+    static String getAddressMinMatch(String address) {
+        if (address == null || !Mms.isPhoneNumber(address)) {
+            return null;
+        }
+        return PhoneNumberUtils.toCallerIDMinMatch(address);
+    }
+
+    /**
+     * Set {@link #ADDRESS_MIN_MATCH} in these values to match the address being written. The
+     * column is internal, so any value passed in by the caller is dropped.
+     */
+    static void putAddressMinMatch(ContentValues values, String addressColumn) {
+        if (values == null) {
+            return;
+        }
+        values.remove(ADDRESS_MIN_MATCH);
+        if (values.containsKey(addressColumn)) {
+            values.put(ADDRESS_MIN_MATCH, getAddressMinMatch(values.getAsString(addressColumn)));
+        }
+    }
+
+    /**
+     * Create the thread_recipients table. It holds one (thread_id, address_id) row for each id
+     * of threads.recipient_ids, so that threads can be joined with their canonical addresses
+     * both ways using an index. Rows are added along with the thread, and removed by trigger
+     * when the thread is deleted.
+     */
+    private static void createThreadRecipientsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " (" +
+                   "thread_id INTEGER NOT NULL," +
+                   "address_id INTEGER NOT NULL," +
+                   "PRIMARY KEY (thread_id, address_id));");
+        db.execSQL("CREATE INDEX IF NOT EXISTS threadRecipientsAddressIdIndex ON " +
+                   MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " (address_id, thread_id);");
+        createThreadRecipientsCleanupTrigger(db);
+    }
+
+    // Dropped along with the threads table, so it has to be created again when the table is
+    // rebuilt.
+    private static void createThreadRecipientsCleanupTrigger(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS thread_recipients_cleanup");
+        db.execSQL("CREATE TRIGGER thread_recipients_cleanup " +
+                   "AFTER DELETE ON threads " +
+                   "BEGIN " +
+                   "  DELETE FROM " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS +
+                   "  WHERE thread_id = old._id; " +
+                   "END;");
+    }
+
+    /**
+     * Insert the thread_recipients rows of a thread.
+     */
+    static void insertThreadRecipients(SQLiteDatabase db, long threadId,
+            Iterable<Long> addressIds) {
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO "
+                + MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " (thread_id, address_id) VALUES (?, ?)");
+        try {
+            for (Long addressId : addressIds) {
+                insert.bindLong(1, threadId);
+                insert.bindLong(2, addressId);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
     @VisibleForTesting
     void createMmsTables(SQLiteDatabase db) {
         // N.B.: Whenever the columns here are changed, the columns in
@@ -769,7 +942,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    Addr.CONTACT_ID + " INTEGER," +
                    Addr.ADDRESS + " TEXT," +
                    Addr.TYPE + " INTEGER," +
-                   Addr.CHARSET + " INTEGER);");
+                   Addr.CHARSET + " INTEGER," +
+                   ADDRESS_MIN_MATCH + " TEXT);");
 
         db.execSQL("CREATE TABLE " + MmsProvider.TABLE_PART + " (" +
                    Part._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -915,15 +1089,9 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "      new." + Mms.MESSAGE_TYPE + ",0,0,0,0);" +
                    "END;");
 
-        // monitor the mms table
+        // The words table has been replaced by part_fts, see createSearchTables().
         db.execSQL("DROP TRIGGER IF EXISTS mms_words_update");
-        db.execSQL("CREATE TRIGGER mms_words_update AFTER UPDATE ON part BEGIN UPDATE words " +
-                " SET index_text = NEW.text WHERE (source_id=NEW._id AND table_to_use=2); " +
-                " END;");
-
         db.execSQL("DROP TRIGGER IF EXISTS mms_words_delete");
-        db.execSQL("CREATE TRIGGER mms_words_delete AFTER DELETE ON part BEGIN DELETE FROM " +
-                " words WHERE source_id = OLD._id AND table_to_use = 2; END;");
 
         // Updates threads table whenever a message in pdu is updated.
         db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_date_subject_on_update");
@@ -1013,7 +1181,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             "sub_id INTEGER DEFAULT " + SubscriptionManager.INVALID_SUBSCRIPTION_ID + ", " +
             "error_code INTEGER DEFAULT 0," +
             "creator TEXT," +
-            "seen INTEGER DEFAULT 0" +
+            "seen INTEGER DEFAULT 0," +
+            ADDRESS_MIN_MATCH + " TEXT" +
             ");";
 
     @VisibleForTesting
@@ -1086,7 +1255,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
          */
         db.execSQL("CREATE TABLE canonical_addresses (" +
                    "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                   "address TEXT);");
+                   "address TEXT," +
+                   ADDRESS_MIN_MATCH + " TEXT);");
 
         /**
          * This table maps the subject and an ordered set of recipient
@@ -1109,6 +1279,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    Threads.ERROR + " INTEGER DEFAULT 0," +
                    Threads.HAS_ATTACHMENT + " INTEGER DEFAULT 0);");
 
+        createThreadRecipientsTable(db);
+
         /**
          * This table stores the queue of messages to be sent/downloaded.
          */
@@ -1128,7 +1300,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     // TODO Check the query plans for these triggers.
-    private void createCommonTriggers(SQLiteDatabase db) {
+    @VisibleForTesting
+    void createCommonTriggers(SQLiteDatabase db) {
         // Updates threads table whenever a message is added to sms.
         db.execSQL("CREATE TRIGGER sms_update_thread_on_insert AFTER INSERT ON sms " +
                    SMS_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE);
@@ -1352,16 +1525,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                 return;
             }
 
-            db.beginTransaction();
-            try {
-                createWordsTables(db);
-                db.setTransactionSuccessful();
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.getMessage(), ex);
-                break;
-            } finally {
-                db.endTransaction();
-            }
+            // The legacy words table of version 49 is replaced by the search tables of version
+            // 70, which index the existing messages: it is not created anymore.
             // fall through
         case 49:
             if (currentVersion <= 49) {
@@ -1642,13 +1807,90 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             }
             // fall through
         case 67:
-            if (currentVersion <= 67 || !IS_RCS_TABLE_SCHEMA_CODE_COMPLETE) {
+            if (currentVersion <= 67) {
                 return;
             }
-            RcsProviderThreadHelper.createThreadTables(db);
-            RcsProviderParticipantHelper.createParticipantTables(db);
-            RcsProviderMessageHelper.createRcsMessageTables(db);
-            RcsProviderEventHelper.createRcsEventTables(db);
+            if (IS_RCS_TABLE_SCHEMA_CODE_COMPLETE) {
+                RcsProviderThreadHelper.createThreadTables(db);
+                RcsProviderParticipantHelper.createParticipantTables(db);
+                RcsProviderMessageHelper.createRcsMessageTables(db);
+                RcsProviderEventHelper.createRcsEventTables(db);
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion68(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 68:
+            if (currentVersion <= 68) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion69(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 69:
+            if (currentVersion <= 69) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion70(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 70:
+            if (currentVersion <= 70) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion71(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 71:
+            if (currentVersion <= 71) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion72(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
             return;
         }
 
@@ -1666,6 +1908,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         localLog("****DROPPING ALL SMS-MMS TABLES****");
         db.execSQL("DROP TABLE IF EXISTS canonical_addresses");
         db.execSQL("DROP TABLE IF EXISTS threads");
+        db.execSQL("DROP TABLE IF EXISTS " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS);
         db.execSQL("DROP TABLE IF EXISTS " + MmsSmsProvider.TABLE_PENDING_MSG);
         db.execSQL("DROP TABLE IF EXISTS sms");
         db.execSQL("DROP TABLE IF EXISTS raw");
@@ -1677,6 +1920,10 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_PART + ";");
         db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_RATE + ";");
         db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_DRM + ";");
+        db.execSQL("DROP TABLE IF EXISTS words");
+        db.execSQL("DROP TABLE IF EXISTS " + SmsProvider.TABLE_SMS_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_PART_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + SearchIndexer.TABLE_PENDING);
     }
 
     private void upgradeDatabaseToVersion41(SQLiteDatabase db) {
@@ -1954,21 +2201,162 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    @Override
-    public synchronized  SQLiteDatabase getReadableDatabase() {
-        SQLiteDatabase db = super.getWritableDatabase();
+    private void upgradeDatabaseToVersion68(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE canonical_addresses ADD COLUMN " + ADDRESS_MIN_MATCH + " TEXT");
+        db.execSQL("ALTER TABLE " + MmsProvider.TABLE_ADDR + " ADD COLUMN " + ADDRESS_MIN_MATCH
+                + " TEXT");
+        db.execSQL("ALTER TABLE " + SmsProvider.TABLE_SMS + " ADD COLUMN " + ADDRESS_MIN_MATCH
+                + " TEXT");
 
-        // getReadableDatabase gets or creates a database. So we know for sure that a database has
-        // already been created at this point.
-        if (mContext.isCredentialProtectedStorage()) {
-            setInitialCreateDone();
+        backfillAddressMinMatch(db, "canonical_addresses");
+        backfillAddressMinMatch(db, MmsProvider.TABLE_ADDR);
+        backfillAddressMinMatch(db, SmsProvider.TABLE_SMS);
+
+        createAddressMinMatchIndices(db);
+    }
+
+    @VisibleForTesting
+    void upgradeDatabaseToVersion69(SQLiteDatabase db) {
+        createThreadRecipientsTable(db);
+
+        // Split the recipient_ids of the existing threads into thread_recipients rows.
+        ArrayList<Long> addressIds = new ArrayList<>();
+        try (Cursor c = db.query(MmsSmsProvider.TABLE_THREADS,
+                new String[] { Threads._ID, Threads.RECIPIENT_IDS }, null, null, null, null,
+                null)) {
+            while (c.moveToNext()) {
+                String recipientIds = c.getString(1);
+                if (recipientIds == null) {
+                    continue;
+                }
+                addressIds.clear();
+                for (String recipientId : recipientIds.split(" ")) {
+                    try {
+                        addressIds.add(Long.parseLong(recipientId));
+                    } catch (NumberFormatException e) {
+                        // skip this id, as removeUnferencedCanonicalAddresses() used to
+                    }
+                }
+                insertThreadRecipients(db, c.getLong(0), addressIds);
+            }
         }
+    }
 
-        return db;
+    @VisibleForTesting
+    void upgradeDatabaseToVersion70(SQLiteDatabase db) {
+        // Replace the FTS3 words table, which held a copy of every message text, by the
+        // external content FTS4 index.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_words_update");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_words_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_update");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_delete");
+        db.execSQL("DROP TABLE IF EXISTS words");
+
+        // The index is filled in the background after the upgrade, see SearchIndexer.
+        SearchIndexer.resetIndex(db);
+    }
+
+    private void upgradeDatabaseToVersion71(SQLiteDatabase db) {
+        // Add the pending index log and move the indexing of new rows to its triggers.
+        createSearchTables(db);
+    }
+
+    private void upgradeDatabaseToVersion72(SQLiteDatabase db) {
+        createThreadsDateIndex(db);
+        createPduThreadIdDateIndex(db);
+    }
+
+    /**
+     * Compute {@link #ADDRESS_MIN_MATCH} for the existing rows of the given table. There is no
+     * SQL function for it, so the rows holding a phone number are read once and written back
+     * by batches, with one UPDATE per batch.
+     */
+    private static void backfillAddressMinMatch(SQLiteDatabase db, String table) {
+        ArrayList<Object> cases = new ArrayList<>();
+        int count = 0;
+        try (Cursor c = db.query(table, new String[] { BaseColumns._ID, "address" },
+                "address NOT NULL", null, null, null, null)) {
+            while (c.moveToNext()) {
+                String minMatch = getAddressMinMatch(c.getString(1));
+                if (minMatch == null) {
+                    continue;
+                }
+                cases.add(c.getLong(0));
+                cases.add(minMatch);
+                count++;
+                if (cases.size() == 2 * MIN_MATCH_BACKFILL_BATCH_SIZE) {
+                    updateAddressMinMatch(db, table, cases);
+                    cases.clear();
+                }
+            }
+        }
+        if (!cases.isEmpty()) {
+            updateAddressMinMatch(db, table, cases);
+        }
+        Log.d(TAG, "backfillAddressMinMatch: " + table + " rows=" + count);
     }
 
+    /**
+     * Set {@link #ADDRESS_MIN_MATCH} of a batch of rows, given as (_id, min match) pairs.
+     */
+    private static void updateAddressMinMatch(SQLiteDatabase db, String table,
+            ArrayList<Object> cases) {
+        StringBuilder sql = new StringBuilder("UPDATE " + table + " SET " + ADDRESS_MIN_MATCH
+                + "=CASE _id");
+        int rows = cases.size() / 2;
+        for (int i = 0; i < rows; i++) {
+            sql.append(" WHEN ? THEN ?");
+        }
+        sql.append(" END WHERE _id IN (");
+        Object[] bindArgs = new Object[cases.size() + rows];
+        for (int i = 0; i < cases.size(); i++) {
+            bindArgs[i] = cases.get(i);
+        }
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+            bindArgs[cases.size() + i] = cases.get(2 * i);
+        }
+        sql.append(")");
+        db.execSQL(sql.toString(), bindArgs);
+    }
+
+    /**
+     * Returns the database. Once it is open, no lock is taken: with write-ahead logging, the
+     * queries of the binder threads run in parallel on the read connections of the pool, and
+     * only the writes go through the primary connection.
+     */
     @Override
-    public synchronized SQLiteDatabase getWritableDatabase() {
+    public SQLiteDatabase getReadableDatabase() {
+        SQLiteDatabase db = mDatabase;
+        if (db != null && db.isOpen()) {
+            return db;
+        }
+        return openDatabase();
+    }
+
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        SQLiteDatabase db = mDatabase;
+        if (db == null || !db.isOpen() || !sTriedAutoIncrement) {
+            db = initWritableDatabase();
+        }
+        return db;
+    }
+
+    /**
+     * To be called by the providers once they have written to the database: pushes the idle
+     * checkpoint of the write-ahead log back. Getting the writable database is not enough of a
+     * hint, the queries get it too.
+     */
+    void onWrite() {
+        if (mWalEnabled) {
+            mCheckpointScheduler.onWrite();
+        }
+    }
+
+    private synchronized SQLiteDatabase openDatabase() {
+        // The readers get the writable database too, so that they use the same connection pool
+        // as the writers.
         SQLiteDatabase db = super.getWritableDatabase();
 
         // getWritableDatabase gets or creates a database. So we know for sure that a database has
@@ -1977,6 +2365,16 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             setInitialCreateDone();
         }
 
+        mDatabase = db;
+        return db;
+    }
+
+    /**
+     * Open the database and run the one-time checks and upgrades of its tables.
+     */
+    private synchronized SQLiteDatabase initWritableDatabase() {
+        SQLiteDatabase db = openDatabase();
+
         if (!sTriedAutoIncrement) {
             sTriedAutoIncrement = true;
             boolean hasAutoIncrementThreads = hasAutoIncrement(db, MmsSmsProvider.TABLE_THREADS);
@@ -2069,7 +2467,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                     autoIncrementAddressesSuccess &&
                     autoIncrementPartSuccess &&
                     autoIncrementPduSuccess) {
-                if (mLowStorageMonitor != null) {
+                if (mLowStorageMonitor != null && !mWalEnabled) {
                     // We've already updated the database. This receiver is no longer necessary.
                     Log.d(TAG, "Unregistering mLowStorageMonitor - we've upgraded");
                     mContext.unregisterReceiver(mLowStorageMonitor);
@@ -2082,19 +2480,23 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
                 // We failed, perhaps because of low storage. Turn on a receiver to watch for
                 // storage space.
-                if (mLowStorageMonitor == null) {
-                    Log.d(TAG, "[getWritableDatabase] turning on storage monitor");
-                    mLowStorageMonitor = new LowStorageMonitor();
-                    IntentFilter intentFilter = new IntentFilter();
-                    intentFilter.addAction(Intent.ACTION_DEVICE_STORAGE_LOW);
-                    intentFilter.addAction(Intent.ACTION_DEVICE_STORAGE_OK);
-                    mContext.registerReceiver(mLowStorageMonitor, intentFilter);
-                }
+                registerLowStorageMonitor();
             }
         }
         return db;
     }
 
+    private synchronized void registerLowStorageMonitor() {
+        if (mLowStorageMonitor == null) {
+            Log.d(TAG, "[getWritableDatabase] turning on storage monitor");
+            mLowStorageMonitor = new LowStorageMonitor();
+            IntentFilter intentFilter = new IntentFilter();
+            intentFilter.addAction(Intent.ACTION_DEVICE_STORAGE_LOW);
+            intentFilter.addAction(Intent.ACTION_DEVICE_STORAGE_OK);
+            mContext.registerReceiver(mLowStorageMonitor, intentFilter);
+        }
+    }
+
     // Determine whether a particular table has AUTOINCREMENT in its schema.
     private boolean hasAutoIncrement(SQLiteDatabase db, String tableName) {
         boolean result = false;
@@ -2145,6 +2547,9 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("INSERT INTO threads_temp SELECT * from threads;");
         db.execSQL("DROP TABLE threads;");
         db.execSQL("ALTER TABLE threads_temp RENAME TO threads;");
+        createThreadRecipientsCleanupTrigger(db);
+        // The indexes of the old table were dropped with it.
+        createThreadsDateIndex(db);
     }
 
     // upgradeAddressTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
@@ -2162,11 +2567,13 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         // Have to create a new temp canonical_addresses table. Copy all the info from the old
         // table. Drop the old table and rename the new table to that of the old.
         db.execSQL("CREATE TABLE canonical_addresses_temp (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                "address TEXT);");
+                "address TEXT," +
+                ADDRESS_MIN_MATCH + " TEXT);");
 
         db.execSQL("INSERT INTO canonical_addresses_temp SELECT * from canonical_addresses;");
         db.execSQL("DROP TABLE canonical_addresses;");
         db.execSQL("ALTER TABLE canonical_addresses_temp RENAME TO canonical_addresses;");
+        createAddressMinMatchIndices(db);
     }
 
     // upgradePartTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
@@ -2205,6 +2612,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
         // part-related triggers get tossed when the part table is dropped -- rebuild them.
         createMmsTriggers(db);
+        createPartSearchTriggers(db);
     }
 
     // upgradePduTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
@@ -2265,6 +2673,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
         // pdu-related triggers get tossed when the part table is dropped -- rebuild them.
         createMmsTriggers(db);
+        createPduThreadIdDateIndex(db);
     }
 
     private class LowStorageMonitor extends BroadcastReceiver {
@@ -2279,6 +2688,13 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
             if (Intent.ACTION_DEVICE_STORAGE_OK.equals(action)) {
                 sTriedAutoIncrement = false;    // try to upgrade on the next getWriteableDatabase
+                if (mWalEnabled) {
+                    mCheckpointScheduler.setLowStorage(false);
+                }
+            } else if (Intent.ACTION_DEVICE_STORAGE_LOW.equals(action)) {
+                if (mWalEnabled) {
+                    mCheckpointScheduler.setLowStorage(true);
+                }
             }
         }
     }
@@ -19,17 +19,17 @@ package com.android.providers.telephony;
 import android.app.AppOpsManager;
 import android.content.ContentProvider;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
-import android.os.UserHandle;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.CanonicalAddressesColumns;
@@ -40,16 +40,24 @@ import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Conversations;
 import android.provider.Telephony.Threads;
 import android.provider.Telephony.ThreadsColumns;
+import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.google.android.mms.pdu.PduHeaders;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -100,6 +108,10 @@ public class MmsSmsProvider extends ContentProvider {
     private static final int URI_FIRST_LOCKED_MESSAGE_ALL          = 16;
     private static final int URI_FIRST_LOCKED_MESSAGE_BY_THREAD_ID = 17;
     private static final int URI_MESSAGE_ID_TO_THREAD              = 18;
+    private static final int URI_CONVERSATIONS_ADDRESSES           = 19;
+    private static final int URI_CONVERSATIONS_BY_ADDRESS          = 20;
+    private static final int URI_SEARCH_RANKED                     = 21;
+    private static final int URI_CONVERSATIONS_PAGED               = 22;
 
     /**
      * the name of the table that is used to store the queue of
@@ -117,6 +129,11 @@ public class MmsSmsProvider extends ContentProvider {
      */
     static final String TABLE_THREADS = "threads";
 
+    /**
+     * the name of the table that maps each thread to the canonical addresses of its recipients.
+     */
+    static final String TABLE_THREAD_RECIPIENTS = "thread_recipients";
+
     // These constants are used to construct union queries across the
     // MMS and SMS base tables.
 
@@ -158,6 +175,27 @@ public class MmsSmsProvider extends ContentProvider {
             new String[] { CanonicalAddressesColumns._ID,
                     CanonicalAddressesColumns.ADDRESS };
 
+    // The columns of the conversations/#/addresses URI, from the joined canonical_addresses.
+    private static final Map<String, String> CONVERSATION_ADDRESSES_PROJECTION_MAP =
+            new HashMap<>();
+    static {
+        CONVERSATION_ADDRESSES_PROJECTION_MAP.put(CanonicalAddressesColumns._ID,
+                "canonical_addresses._id AS " + CanonicalAddressesColumns._ID);
+        CONVERSATION_ADDRESSES_PROJECTION_MAP.put(CanonicalAddressesColumns.ADDRESS,
+                "canonical_addresses.address AS " + CanonicalAddressesColumns.ADDRESS);
+    }
+
+    // The columns of the conversations/paged URI, all from the threads table.
+    private static final Map<String, String> PAGED_CONVERSATIONS_PROJECTION_MAP =
+            new HashMap<>();
+    static {
+        for (String column : new String[] { Threads._ID, Threads.DATE, Threads.MESSAGE_COUNT,
+                Threads.RECIPIENT_IDS, Threads.SNIPPET, Threads.SNIPPET_CHARSET, Threads.READ,
+                Threads.ARCHIVED, Threads.TYPE, Threads.ERROR, Threads.HAS_ATTACHMENT }) {
+            PAGED_CONVERSATIONS_PROJECTION_MAP.put(column, column);
+        }
+    }
+
     // These are all the columns that appear in the MMS and SMS
     // message tables.
     private static final String[] UNION_COLUMNS =
@@ -179,8 +217,37 @@ public class MmsSmsProvider extends ContentProvider {
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
     private static final String[] SEARCH_STRING = new String[1];
-    private static final String SEARCH_QUERY = "SELECT snippet(words, '', ' ', '', 1, 1) as " +
-            "snippet FROM words WHERE index_text MATCH ? ORDER BY snippet LIMIT 50;";
+    private static final String SEARCH_QUERY = "SELECT snippet FROM (" +
+            "SELECT snippet(" + SmsProvider.TABLE_SMS_FTS + ", '', ' ', '', -1, 1) AS snippet" +
+            " FROM " + SmsProvider.TABLE_SMS_FTS +
+            " WHERE " + SmsProvider.TABLE_SMS_FTS + " MATCH ?1" +
+            " UNION ALL " +
+            "SELECT snippet(" + MmsProvider.TABLE_PART_FTS + ", '', ' ', '', -1, 1) AS snippet" +
+            " FROM " + MmsProvider.TABLE_PART_FTS +
+            " WHERE " + MmsProvider.TABLE_PART_FTS + " MATCH ?1" +
+            ") ORDER BY snippet LIMIT 50;";
+
+    /** Default and maximum number of rows returned by one page of the ranked search. */
+    private static final int SEARCH_RANKED_DEFAULT_LIMIT = 50;
+    private static final int SEARCH_RANKED_MAX_LIMIT = 500;
+
+    /**
+     * BM25 term frequency saturation and length normalization parameters, and the assumed
+     * average length in characters of a message text.
+     */
+    private static final String BM25_K1 = "1.2";
+    private static final String BM25_B = "0.75";
+    private static final String BM25_AVERAGE_LENGTH = "80.0";
+
+    /** Default and maximum number of threads returned by one page of the conversation list. */
+    private static final int CONVERSATIONS_PAGE_DEFAULT_LIMIT = 50;
+    private static final int CONVERSATIONS_PAGE_MAX_LIMIT = 500;
+
+    /**
+     * Offset of the search_id of the mms parts, so that they don't collide with the sms ids.
+     * Same split as the legacy words table.
+     */
+    private static final long SEARCH_ID_PART_OFFSET = 2L << 32;
 
     private static final String SMS_CONVERSATION_CONSTRAINT = "(" +
             Sms.TYPE + " != " + Sms.MESSAGE_TYPE_DRAFT + ")";
@@ -192,22 +259,23 @@ public class MmsSmsProvider extends ContentProvider {
             Mms.MESSAGE_TYPE + " = " + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + "))";
 
     private static String getTextSearchQuery(String smsTable, String pduTable) {
-        // Search on the words table but return the rows from the corresponding sms table
+        // Search on the sms index but return the rows from the corresponding sms table.
+        // The columns are the same as with the legacy words table: index_text is the
+        // indexed text and the last column is the id of the index row.
         final String smsQuery = "SELECT "
                 + smsTable + "._id AS _id,"
-                + "thread_id,"
-                + "address,"
-                + "body,"
-                + "date,"
-                + "date_sent,"
-                + "index_text,"
-                + "words._id "
-                + "FROM " + smsTable + ",words "
-                + "WHERE (index_text MATCH ? "
-                + "AND " + smsTable + "._id=words.source_id "
-                + "AND words.table_to_use=1)";
-
-        // Search on the words table but return the rows from the corresponding parts table
+                + smsTable + ".thread_id,"
+                + smsTable + ".address,"
+                + smsTable + ".body,"
+                + smsTable + ".date,"
+                + smsTable + ".date_sent,"
+                + smsTable + ".body AS index_text,"
+                + SmsProvider.TABLE_SMS_FTS + ".docid AS _id "
+                + "FROM " + smsTable + "," + SmsProvider.TABLE_SMS_FTS + " "
+                + "WHERE (" + SmsProvider.TABLE_SMS_FTS + " MATCH ? "
+                + "AND " + smsTable + "._id=" + SmsProvider.TABLE_SMS_FTS + ".docid)";
+
+        // Search on the part index but return the rows from the corresponding parts table
         final String mmsQuery = "SELECT "
                 + pduTable + "._id,"
                 + "thread_id,"
@@ -215,16 +283,15 @@ public class MmsSmsProvider extends ContentProvider {
                 + "part.text AS body,"
                 + pduTable + ".date,"
                 + pduTable + ".date_sent,"
-                + "index_text,"
-                + "words._id "
-                + "FROM " + pduTable + ",part,addr,words "
+                + "part.text AS index_text,"
+                + "(" + SEARCH_ID_PART_OFFSET + " + part._id) AS _id "
+                + "FROM " + pduTable + ",part,addr," + MmsProvider.TABLE_PART_FTS + " "
                 + "WHERE ((part.mid=" + pduTable + "._id) "
                 + "AND (addr.msg_id=" + pduTable + "._id) "
                 + "AND (addr.type=" + PduHeaders.TO + ") "
                 + "AND (part.ct='text/plain') "
-                + "AND (index_text MATCH ?) "
-                + "AND (part._id = words.source_id) "
-                + "AND (words.table_to_use=2))";
+                + "AND (" + MmsProvider.TABLE_PART_FTS + " MATCH ?) "
+                + "AND (part._id = " + MmsProvider.TABLE_PART_FTS + ".docid))";
 
         // This code queries the sms and mms tables and returns a unified result set
         // of text matches.  We query the sms table which is pretty simple.  We also
@@ -236,6 +303,74 @@ public class MmsSmsProvider extends ContentProvider {
                 + "ORDER BY thread_id ASC, date DESC";
     }
 
+    /**
+     * BM25-style score of a hit, scaled to an integer so that it can be used as a paging key.
+     * FTS4 has no bm25(), so the term frequency is the number of matched phrases reported by
+     * offsets() (four integers per match), saturated and normalized by the length of the text.
+     * There is no inverse document frequency: all the hits of a query share the same terms.
+     */
+    private static String getSearchScore(String ftsTable, String text) {
+        final String offsets = "offsets(" + ftsTable + ")";
+        final String hits = "((length(" + offsets + ") - length(replace(" + offsets
+                + ", ' ', '')) + 1) / 4)";
+        return "CAST(1000.0 * " + hits + " * (" + BM25_K1 + " + 1) / (" + hits + " + "
+                + BM25_K1 + " * (1 - " + BM25_B + " + " + BM25_B + " * length(" + text
+                + ") / " + BM25_AVERAGE_LENGTH + ")) AS INTEGER)";
+    }
+
+    /**
+     * Query of the ranked search. Returns one row per matching sms or text part, best hits
+     * first, with the columns:
+     * _id, thread_id, address, body, date (ms), date_sent (ms), snippet, rank, table_to_use
+     * (1 for sms, 2 for mms) and search_id.
+     *
+     * Pages are chained with keyset paging on (rank, search_id): the next page starts right
+     * after the rank and search_id of the last row of the previous one. The bind arguments are
+     * the pattern, the rank and search_id to start after (Long.MAX_VALUE and 0 for the first
+     * page) and the page size.
+     */
+    private static String getRankedSearchQuery(String smsTable, String pduTable) {
+        final String smsFts = SmsProvider.TABLE_SMS_FTS;
+        final String partFts = MmsProvider.TABLE_PART_FTS;
+        final String smsQuery = "SELECT "
+                + smsTable + "._id AS _id,"
+                + smsTable + ".thread_id AS thread_id,"
+                + smsTable + ".address AS address,"
+                + smsTable + ".body AS body,"
+                + smsTable + ".date AS date,"
+                + smsTable + ".date_sent AS date_sent,"
+                + "snippet(" + smsFts + ", '<b>', '</b>', '...', -1, 15) AS snippet,"
+                + getSearchScore(smsFts, smsTable + ".body") + " AS rank,"
+                + "1 AS table_to_use,"
+                + smsFts + ".docid AS search_id "
+                + "FROM " + smsFts + " JOIN " + smsTable
+                + " ON " + smsTable + "._id=" + smsFts + ".docid "
+                + "WHERE " + smsFts + " MATCH ?1";
+
+        final String mmsQuery = "SELECT "
+                + pduTable + "._id AS _id,"
+                + pduTable + ".thread_id AS thread_id,"
+                + "(SELECT address FROM addr WHERE addr.msg_id=" + pduTable + "._id"
+                + " AND addr.type=" + PduHeaders.TO + " LIMIT 1) AS address,"
+                + "part.text AS body,"
+                + pduTable + ".date * 1000 AS date,"
+                + pduTable + ".date_sent * 1000 AS date_sent,"
+                + "snippet(" + partFts + ", '<b>', '</b>', '...', -1, 15) AS snippet,"
+                + getSearchScore(partFts, "part.text") + " AS rank,"
+                + "2 AS table_to_use,"
+                + "(" + SEARCH_ID_PART_OFFSET + " + " + partFts + ".docid) AS search_id "
+                + "FROM " + partFts
+                + " JOIN part ON part._id=" + partFts + ".docid"
+                + " JOIN " + pduTable + " ON " + pduTable + "._id=part.mid "
+                + "WHERE " + partFts + " MATCH ?1";
+
+        return "SELECT * FROM (" + smsQuery + " UNION ALL " + mmsQuery + ") "
+                + "WHERE rank < CAST(?2 AS INTEGER) "
+                + "OR (rank = CAST(?2 AS INTEGER) AND search_id > CAST(?3 AS INTEGER)) "
+                + "ORDER BY rank DESC, search_id ASC "
+                + "LIMIT CAST(?4 AS INTEGER)";
+    }
+
     private static final String AUTHORITY = "mms-sms";
 
     static {
@@ -253,6 +388,22 @@ public class MmsSmsProvider extends ContentProvider {
                 AUTHORITY, "conversations/#/subject",
                 URI_CONVERSATIONS_SUBJECT);
 
+        // Use this pattern to query the canonical addresses of the recipients of a thread.
+        URI_MATCHER.addURI(
+                AUTHORITY, "conversations/#/addresses",
+                URI_CONVERSATIONS_ADDRESSES);
+
+        // Use this pattern to query the threads that have the given address among their
+        // recipients. The threads table columns are returned.
+        URI_MATCHER.addURI(
+                AUTHORITY, "conversations/byaddress/*",
+                URI_CONVERSATIONS_BY_ADDRESS);
+
+        // Keyset-paged conversation list, read from the threads table only, most recent first.
+        // Query parameters: "limit", the "before_date" and "before_id" of the last thread of
+        // the previous page, and "latest" set to "true" to add the latest message columns.
+        URI_MATCHER.addURI(AUTHORITY, "conversations/paged", URI_CONVERSATIONS_PAGED);
+
         // URI for deleting obsolete threads.
         URI_MATCHER.addURI(AUTHORITY, "conversations/obsolete", URI_OBSOLETE_THREADS);
 
@@ -274,6 +425,10 @@ public class MmsSmsProvider extends ContentProvider {
         URI_MATCHER.addURI(AUTHORITY, "search", URI_SEARCH);
         URI_MATCHER.addURI(AUTHORITY, "searchSuggest", URI_SEARCH_SUGGEST);
 
+        // Ranked and paged search. Query parameters: "pattern", and optionally "limit" and
+        // the "after_rank" and "after_id" of the last row of the previous page.
+        URI_MATCHER.addURI(AUTHORITY, "search/ranked", URI_SEARCH_RANKED);
+
         // In this pattern, two query parameters may be supplied:
         // "protocol" and "message." For example:
         //   content://mms-sms/pending?
@@ -302,12 +457,23 @@ public class MmsSmsProvider extends ContentProvider {
         initializeColumnSets();
     }
 
-    private SQLiteOpenHelper mOpenHelper;
+    @VisibleForTesting
+    SQLiteOpenHelper mOpenHelper;
 
     private boolean mUseStrictPhoneNumberComparation;
 
+    private final ThreadIdCache mThreadIdCache = ThreadIdCache.getInstance();
+
+    // Number of trailing digits compared by PHONE_NUMBERS_EQUAL, as in PhoneNumberUtils.
+    private static final int MIN_MATCH = 7;
+
     private static final String METHOD_IS_RESTORING = "is_restoring";
     private static final String IS_RESTORING_KEY = "restoring";
+    private static final String METHOD_REPAIR_THREADS = "repair_threads";
+    private static final String METHOD_REBUILD_SEARCH_INDEX = "rebuild_search_index";
+    private static final String METHOD_GET_SEARCH_INDEX_STATUS = "get_search_index_status";
+    private static final String SEARCH_INDEX_PENDING_KEY = "pending";
+    private static final String SEARCH_INDEX_REBUILD_TOTAL_KEY = "rebuild_total";
 
     @Override
     public boolean onCreate() {
@@ -356,7 +522,7 @@ public class MmsSmsProvider extends ContentProvider {
                 }
                 break;
             case URI_CONVERSATIONS_MESSAGES:
-                cursor = getConversationMessages(uri.getPathSegments().get(1), projection,
+                cursor = getConversationMessages(uri, uri.getPathSegments().get(1), projection,
                         selection, sortOrder, smsTable, pduTable);
                 break;
             case URI_CONVERSATIONS_RECIPIENTS:
@@ -399,6 +565,21 @@ public class MmsSmsProvider extends ContentProvider {
                         null, null,
                         sortOrder);
                 break;
+            case URI_CONVERSATIONS_ADDRESSES:
+                cursor = getConversationAddresses(uri.getPathSegments().get(1), projection);
+                break;
+            case URI_CONVERSATIONS_PAGED:
+                if (sortOrder != null) {
+                    throw new IllegalArgumentException(
+                            "do not specify sortOrder with this query");
+                }
+                cursor = getPagedConversations(uri, projection, selection, selectionArgs,
+                        smsTable, pduTable);
+                break;
+            case URI_CONVERSATIONS_BY_ADDRESS:
+                cursor = getConversationsByAddress(uri.getPathSegments().get(2), projection,
+                        selection, selectionArgs, sortOrder);
+                break;
             case URI_SEARCH_SUGGEST: {
                 SEARCH_STRING[0] = uri.getQueryParameter("pattern") + '*' ;
 
@@ -414,6 +595,7 @@ public class MmsSmsProvider extends ContentProvider {
                             "with this query");
                 }
 
+                flushSearchIndex();
                 cursor = db.rawQuery(SEARCH_QUERY, SEARCH_STRING);
                 break;
             }
@@ -459,6 +641,7 @@ public class MmsSmsProvider extends ContentProvider {
                 String searchString = uri.getQueryParameter("pattern") + "*";
 
                 try {
+                    flushSearchIndex();
                     cursor = db.rawQuery(getTextSearchQuery(smsTable, pduTable),
                             new String[] { searchString, searchString });
                 } catch (Exception ex) {
@@ -466,6 +649,46 @@ public class MmsSmsProvider extends ContentProvider {
                 }
                 break;
             }
+            case URI_SEARCH_RANKED: {
+                if (       sortOrder != null
+                        || selection != null
+                        || selectionArgs != null
+                        || projection != null) {
+                    throw new IllegalArgumentException(
+                            "do not specify sortOrder, selection, selectionArgs, or projection" +
+                            "with this query");
+                }
+
+                String searchString = uri.getQueryParameter("pattern") + "*";
+                String afterRankString = uri.getQueryParameter("after_rank");
+                String afterIdString = uri.getQueryParameter("after_id");
+                long afterRank = Long.MAX_VALUE;
+                long afterId = 0;
+                int limit = SEARCH_RANKED_DEFAULT_LIMIT;
+                try {
+                    if (afterRankString != null) {
+                        afterRank = Long.parseLong(afterRankString);
+                        afterId = afterIdString != null ? Long.parseLong(afterIdString) : 0;
+                    }
+                    String limitString = uri.getQueryParameter("limit");
+                    if (limitString != null) {
+                        limit = Math.max(1,
+                                Math.min(Integer.parseInt(limitString), SEARCH_RANKED_MAX_LIMIT));
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("invalid paging parameters: " + uri);
+                }
+
+                try {
+                    flushSearchIndex();
+                    cursor = db.rawQuery(getRankedSearchQuery(smsTable, pduTable),
+                            new String[] { searchString, String.valueOf(afterRank),
+                                    String.valueOf(afterId), String.valueOf(limit) });
+                } catch (Exception ex) {
+                    Log.e(LOG_TAG, "got exception: " + ex.toString());
+                }
+                break;
+            }
             case URI_PENDING_MSG: {
                 String protoName = uri.getQueryParameter("protocol");
                 String msgId = uri.getQueryParameter("message");
@@ -522,24 +745,51 @@ public class MmsSmsProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Return the form of the address that is stored in canonical_addresses.
+     */
+    private static String refineAddress(String address) {
+        // We lowercase all email addresses, but not addresses that aren't numbers, because
+        // that would incorrectly turn an address such as "My Vodafone" into "my vodafone"
+        // and the thread title would be incorrect when displayed in the UI.
+        return Mms.isEmailAddress(address) ? address.toLowerCase() : address;
+    }
+
+    /**
+     * Return the key used for this address in the {@link ThreadIdCache}. Phone numbers that
+     * only differ by separators match the same canonical addresses, so they share a key.
+     */
+    private static String getAddressCacheKey(String refinedAddress) {
+        return Mms.isPhoneNumber(refinedAddress)
+                ? PhoneNumberUtils.stripSeparators(refinedAddress) : refinedAddress;
+    }
+
     /**
      * Return the canonical address ID for this address.
      */
     private long getSingleAddressId(String address) {
-        boolean isEmail = Mms.isEmailAddress(address);
         boolean isPhoneNumber = Mms.isPhoneNumber(address);
+        String refinedAddress = refineAddress(address);
 
-        // We lowercase all email addresses, but not addresses that aren't numbers, because
-        // that would incorrectly turn an address such as "My Vodafone" into "my vodafone"
-        // and the thread title would be incorrect when displayed in the UI.
-        String refinedAddress = isEmail ? address.toLowerCase() : address;
+        final String cacheKey = getAddressCacheKey(refinedAddress);
+        final long generation = mThreadIdCache.getGeneration();
+        Long cachedId = mThreadIdCache.getAddressId(cacheKey);
+        if (cachedId != null) {
+            return cachedId;
+        }
 
         String selection = "address=?";
         String[] selectionArgs;
         long retVal = -1L;
+        String minMatch = MmsSmsDatabaseHelper.getAddressMinMatch(refinedAddress);
 
         if (!isPhoneNumber) {
             selectionArgs = new String[] { refinedAddress };
+        } else if (hasFullMinMatch(minMatch)) {
+            selection = MmsSmsDatabaseHelper.ADDRESS_MIN_MATCH + "=? AND (address=? OR " +
+                    "PHONE_NUMBERS_EQUAL(address, ?, " +
+                    (mUseStrictPhoneNumberComparation ? 1 : 0) + "))";
+            selectionArgs = new String[] { minMatch, refinedAddress, refinedAddress };
         } else {
             selection += " OR PHONE_NUMBERS_EQUAL(address, ?, " +
                         (mUseStrictPhoneNumberComparation ? 1 : 0) + ")";
@@ -555,8 +805,9 @@ public class MmsSmsProvider extends ContentProvider {
                     selection, selectionArgs, null, null, null);
 
             if (cursor.getCount() == 0) {
-                ContentValues contentValues = new ContentValues(1);
+                ContentValues contentValues = new ContentValues(2);
                 contentValues.put(CanonicalAddressesColumns.ADDRESS, refinedAddress);
+                contentValues.put(MmsSmsDatabaseHelper.ADDRESS_MIN_MATCH, minMatch);
 
                 db = mOpenHelper.getWritableDatabase();
                 retVal = db.insert("canonical_addresses",
@@ -565,11 +816,15 @@ public class MmsSmsProvider extends ContentProvider {
                 Log.d(LOG_TAG, "getSingleAddressId: insert new canonical_address for " +
                         /*address*/ "xxxxxx" + ", _id=" + retVal);
 
+                if (retVal != -1L) {
+                    mThreadIdCache.putAddressId(cacheKey, retVal, generation);
+                }
                 return retVal;
             }
 
             if (cursor.moveToFirst()) {
                 retVal = cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
+                mThreadIdCache.putAddressId(cacheKey, retVal, generation);
             }
         } finally {
             if (cursor != null) {
@@ -580,6 +835,32 @@ public class MmsSmsProvider extends ContentProvider {
         return retVal;
     }
 
+    /**
+     * Return true if this min-match key covers as many digits as PHONE_NUMBERS_EQUAL compares,
+     * so that every equal phone number has the same key. Shorter numbers can still equal
+     * numbers with a different key, and have to be compared against every row.
+     */
+    private static boolean hasFullMinMatch(String minMatch) {
+        return minMatch != null && minMatch.length() >= MIN_MATCH;
+    }
+
+    /**
+     * Return the selection matching the address column of the given table against this
+     * phone number.
+     */
+    private String getPhoneNumberSelection(String table, String phoneNumber) {
+        String escapedPhoneNumber = DatabaseUtils.sqlEscapeString(phoneNumber);
+        String selection = "(" + table + ".address=" + escapedPhoneNumber +
+                " OR PHONE_NUMBERS_EQUAL(" + table + ".address, " + escapedPhoneNumber +
+                (mUseStrictPhoneNumberComparation ? ", 1))" : ", 0))");
+        String minMatch = MmsSmsDatabaseHelper.getAddressMinMatch(phoneNumber);
+        if (hasFullMinMatch(minMatch)) {
+            selection = "(" + table + "." + MmsSmsDatabaseHelper.ADDRESS_MIN_MATCH + "=" +
+                    DatabaseUtils.sqlEscapeString(minMatch) + " AND " + selection + ")";
+        }
+        return selection;
+    }
+
     /**
      * Return the canonical address IDs for these addresses.
      */
@@ -599,6 +880,38 @@ public class MmsSmsProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Return the canonical address IDs for these addresses from the {@link ThreadIdCache}
+     * only, or null if any of them is not cached.
+     */
+    private Set<Long> getCachedAddressIds(List<String> addresses) {
+        Set<Long> result = new HashSet<Long>(addresses.size());
+
+        for (String address : addresses) {
+            if (!address.equals(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR)) {
+                Long id = mThreadIdCache.getAddressId(getAddressCacheKey(refineAddress(address)));
+                if (id == null) {
+                    return null;
+                }
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the space separated, sorted recipient ids used as key of the threads table.
+     */
+    private String getRecipientIds(Set<Long> addressIds) {
+        if (addressIds.size() == 1) {
+            // optimize for size==1, which should be most of the cases
+            for (Long addressId : addressIds) {
+                return Long.toString(addressId);
+            }
+        }
+        return getSpaceSeparatedNumbers(getSortedSet(addressIds));
+    }
+
     /**
      * Return a sorted array of the given Set of Longs.
      */
@@ -638,7 +951,8 @@ public class MmsSmsProvider extends ContentProvider {
     /**
      * Insert a record for a new thread.
      */
-    private void insertThread(String recipientIds, int numberOfRecipients) {
+    private void insertThread(String recipientIds, Set<Long> addressIds,
+            int numberOfRecipients) {
         ContentValues values = new ContentValues(4);
 
         long date = System.currentTimeMillis();
@@ -649,12 +963,15 @@ public class MmsSmsProvider extends ContentProvider {
         }
         values.put(ThreadsColumns.MESSAGE_COUNT, 0);
 
-        long result = mOpenHelper.getWritableDatabase().insert(TABLE_THREADS, null, values);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long result = db.insert(TABLE_THREADS, null, values);
+        if (result != -1) {
+            MmsSmsDatabaseHelper.insertThreadRecipients(db, result, addressIds);
+        }
         Log.d(LOG_TAG, "insertThread: created new thread_id " + result +
                 " for recipientIds " + /*recipientIds*/ "xxxxxxx");
 
-        getContext().getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
-                UserHandle.USER_ALL);
+        notifyMmsSmsChange(result != -1 ? Collections.singleton(result) : null);
     }
 
     private static final String THREAD_QUERY =
@@ -666,7 +983,22 @@ public class MmsSmsProvider extends ContentProvider {
      * one and return it.  Callers should always use
      * Threads.getThreadId to access this information.
      */
-    private synchronized Cursor getThreadId(List<String> recipients) {
+    private Cursor getThreadId(List<String> recipients) {
+        // Hot senders resolve from memory, without taking the lock or touching the database.
+        Set<Long> cachedAddressIds = getCachedAddressIds(recipients);
+        if (cachedAddressIds != null && cachedAddressIds.size() > 0) {
+            Long threadId = mThreadIdCache.getThreadId(getRecipientIds(cachedAddressIds));
+            if (threadId != null) {
+                MatrixCursor cursor = new MatrixCursor(ID_PROJECTION, 1);
+                cursor.addRow(new Object[] { threadId });
+                return cursor;
+            }
+        }
+        return getOrCreateThreadId(recipients);
+    }
+
+    private synchronized Cursor getOrCreateThreadId(List<String> recipients) {
+        final long generation = mThreadIdCache.getGeneration();
         Set<Long> addressIds = getAddressIds(recipients);
         String recipientIds = "";
 
@@ -674,13 +1006,8 @@ public class MmsSmsProvider extends ContentProvider {
             Log.e(LOG_TAG, "getThreadId: NO receipients specified -- NOT creating thread",
                     new Exception());
             return null;
-        } else if (addressIds.size() == 1) {
-            // optimize for size==1, which should be most of the cases
-            for (Long addressId : addressIds) {
-                recipientIds = Long.toString(addressId);
-            }
         } else {
-            recipientIds = getSpaceSeparatedNumbers(getSortedSet(addressIds));
+            recipientIds = getRecipientIds(addressIds);
         }
 
         if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
@@ -703,7 +1030,7 @@ public class MmsSmsProvider extends ContentProvider {
 
                 Log.d(LOG_TAG, "getThreadId: create new thread_id for recipients " +
                         /*recipients*/ "xxxxxxxx");
-                insertThread(recipientIds, recipients.size());
+                insertThread(recipientIds, addressIds, recipients.size());
 
                 // The thread was just created, now find it and return it.
                 cursor = db.rawQuery(THREAD_QUERY, selectionArgs);
@@ -717,6 +1044,9 @@ public class MmsSmsProvider extends ContentProvider {
 
         if (cursor != null && cursor.getCount() > 1) {
             Log.w(LOG_TAG, "getThreadId: why is cursorCount=" + cursor.getCount());
+        } else if (cursor != null && cursor.moveToFirst()) {
+            mThreadIdCache.putThreadId(recipientIds, cursor.getLong(0), generation);
+            cursor.moveToPosition(-1);
         }
         return cursor;
     }
@@ -767,6 +1097,141 @@ public class MmsSmsProvider extends ContentProvider {
                 selection, selectionArgs, null, null, " date DESC");
     }
 
+    /**
+     * Return one page of the threads, most recent first, reading the threads table only.
+     *
+     * The page starts right after the thread given by the "before_date" and "before_id" query
+     * parameters, which are the date and _id of the last thread of the previous page, so each
+     * page costs a range scan of the threads date index. The projection may only name columns
+     * of the threads table; the _id and date columns are always returned, to build the next
+     * key.
+     *
+     * With "latest=true", the latest message of each thread is joined in as the
+     * latest_transport_type ("sms" or "mms"), latest_message_id, latest_message_date (ms),
+     * latest_message_box and latest_message_read columns. Drafts are skipped, as in the
+     * complete conversation list.
+     */
+    private Cursor getPagedConversations(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String smsTable, String pduTable) {
+        int limit = CONVERSATIONS_PAGE_DEFAULT_LIMIT;
+        String beforeDate = uri.getQueryParameter("before_date");
+        String beforeId = uri.getQueryParameter("before_id");
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(TABLE_THREADS);
+        queryBuilder.setProjectionMap(PAGED_CONVERSATIONS_PROJECTION_MAP);
+        // The paging key comes first in the statement, then the selection.
+        ArrayList<String> args = new ArrayList<>();
+        try {
+            String limitString = uri.getQueryParameter("limit");
+            if (limitString != null) {
+                limit = Math.max(1,
+                        Math.min(Integer.parseInt(limitString), CONVERSATIONS_PAGE_MAX_LIMIT));
+            }
+            if (beforeDate != null) {
+                long date = Long.parseLong(beforeDate);
+                long id = beforeId != null ? Long.parseLong(beforeId) : Long.MAX_VALUE;
+                // The date <= ? term lets sqlite scan a range of the date index.
+                queryBuilder.appendWhere("date <= ? AND (date < ? OR _id < ?)");
+                args.add(String.valueOf(date));
+                args.add(String.valueOf(date));
+                args.add(String.valueOf(id));
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("invalid paging parameters: " + uri);
+        }
+        if (selectionArgs != null) {
+            args.addAll(Arrays.asList(selectionArgs));
+        }
+
+        // The columns are checked against the projection map, null is all of them.
+        String[] columns = null;
+        if (projection != null) {
+            LinkedHashSet<String> columnSet = new LinkedHashSet<>(Arrays.asList(projection));
+            columnSet.add(Threads._ID);
+            columnSet.add(Threads.DATE);
+            columns = columnSet.toArray(new String[columnSet.size()]);
+        }
+        final String sortOrder = "date DESC, _id DESC";
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        if (!TextUtils.isEmpty(selection)) {
+            // As SQLiteQueryBuilder does in strict mode: the selection must not be able to
+            // escape its parentheses.
+            db.validateSql(queryBuilder.buildQuery(columns, "(" + selection + ")", null, null,
+                    sortOrder, String.valueOf(limit)), null);
+        }
+        String pageQuery = queryBuilder.buildQuery(columns, selection, null, null, sortOrder,
+                String.valueOf(limit));
+
+        if (!"true".equals(uri.getQueryParameter("latest"))) {
+            return db.rawQuery(pageQuery, args.toArray(new String[args.size()]));
+        }
+
+        // Only the threads of the page are looked at, each with the (thread_id, date) indexes
+        // of the sms and pdu tables.
+        final String mmsIsLatest = "(m._id IS NOT NULL AND (s._id IS NULL"
+                + " OR m.date * 1000 >= s.date))";
+        String query = "WITH page AS (" + pageQuery + "),"
+                + " latest AS (SELECT page._id AS tid,"
+                + " (SELECT _id FROM " + smsTable + " WHERE thread_id = page._id"
+                + " AND " + SMS_CONVERSATION_CONSTRAINT
+                + " ORDER BY date DESC LIMIT 1) AS sms_id,"
+                + " (SELECT _id FROM " + pduTable + " WHERE thread_id = page._id"
+                + " AND " + MMS_CONVERSATION_CONSTRAINT
+                + " ORDER BY date DESC LIMIT 1) AS mms_id"
+                + " FROM page)"
+                + " SELECT page.*,"
+                + " CASE WHEN " + mmsIsLatest + " THEN 'mms'"
+                + " WHEN s._id IS NOT NULL THEN 'sms' END AS latest_transport_type,"
+                + " CASE WHEN " + mmsIsLatest + " THEN m._id ELSE s._id END"
+                + " AS latest_message_id,"
+                + " CASE WHEN " + mmsIsLatest + " THEN m.date * 1000 ELSE s.date END"
+                + " AS latest_message_date,"
+                + " CASE WHEN " + mmsIsLatest + " THEN m.msg_box ELSE s.type END"
+                + " AS latest_message_box,"
+                + " CASE WHEN " + mmsIsLatest + " THEN m.read ELSE s.read END"
+                + " AS latest_message_read"
+                + " FROM page"
+                + " JOIN latest ON latest.tid = page._id"
+                + " LEFT JOIN " + smsTable + " s ON s._id = latest.sms_id"
+                + " LEFT JOIN " + pduTable + " m ON m._id = latest.mms_id"
+                + " ORDER BY page.date DESC, page._id DESC";
+        return db.rawQuery(query, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Return the canonical addresses of the recipients of this thread, in the order of
+     * recipient_ids, with the given columns of canonical_addresses (all of them if null).
+     */
+    private Cursor getConversationAddresses(String threadId, String[] projection) {
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(TABLE_THREAD_RECIPIENTS +
+                " JOIN canonical_addresses ON canonical_addresses._id = address_id");
+        queryBuilder.setProjectionMap(CONVERSATION_ADDRESSES_PROJECTION_MAP);
+        queryBuilder.setStrict(true);
+        return queryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection != null ? projection : CANONICAL_ADDRESSES_COLUMNS_2,
+                "thread_id = ?", new String[] { threadId }, null, null, "address_id");
+    }
+
+    /**
+     * Return the threads with a recipient matching this address, most recent first unless a
+     * sort order is given.
+     */
+    private Cursor getConversationsByAddress(String address, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
+        String refinedAddress = refineAddress(address);
+        String addressSelection = Mms.isPhoneNumber(refinedAddress)
+                ? getPhoneNumberSelection(TABLE_CANONICAL_ADDRESSES, refinedAddress)
+                : "address=" + DatabaseUtils.sqlEscapeString(refinedAddress);
+        String finalSelection = concatSelections(selection,
+                Threads._ID + " IN (SELECT thread_id FROM " + TABLE_THREAD_RECIPIENTS +
+                " WHERE address_id IN (SELECT _id FROM " + TABLE_CANONICAL_ADDRESSES +
+                " WHERE " + addressSelection + "))");
+        return mOpenHelper.getReadableDatabase().query(TABLE_THREADS, projection,
+                finalSelection, selectionArgs, null, null,
+                TextUtils.isEmpty(sortOrder) ? " date DESC" : sortOrder);
+    }
+
     /**
      * Return the thread which has draft in both MMS and SMS.
      *
@@ -968,8 +1433,11 @@ public class MmsSmsProvider extends ContentProvider {
 
     /**
      * Return the union of MMS and SMS messages for this thread ID.
+     *
+     * With a "before" or "after" query parameter, only a window of at most "limit" messages
+     * next to that normalized date is returned, see {@link MessageWindow}.
      */
-    private Cursor getConversationMessages(
+    private Cursor getConversationMessages(Uri uri,
             String threadIdString, String[] projection, String selection,
             String sortOrder, String smsTable, String pduTable) {
         try {
@@ -981,8 +1449,15 @@ public class MmsSmsProvider extends ContentProvider {
 
         String finalSelection = concatSelections(
                 selection, "thread_id = " + threadIdString);
-        String unionQuery = buildConversationQuery(projection, finalSelection, sortOrder, smsTable,
-                pduTable);
+        MessageWindow window = MessageWindow.fromUri(uri);
+        String unionQuery;
+        if (window == null) {
+            unionQuery = buildConversationQuery(projection, finalSelection, sortOrder, smsTable,
+                    pduTable);
+        } else {
+            unionQuery = buildConversationWindowQuery(projection, finalSelection, sortOrder,
+                    smsTable, pduTable, window);
+        }
 
         return mOpenHelper.getReadableDatabase().rawQuery(unionQuery, EMPTY_STRING_ARRAY);
     }
@@ -996,29 +1471,27 @@ public class MmsSmsProvider extends ContentProvider {
      * SELECT ...
      *   FROM pdu, (SELECT msg_id AS address_msg_id
      *              FROM addr
-     *              WHERE (address='<phoneNumber>' OR
-     *              PHONE_NUMBERS_EQUAL(addr.address, '<phoneNumber>', 1/0)))
+     *              WHERE (addr.min_match='<minMatch>' AND (addr.address='<phoneNumber>' OR
+     *              PHONE_NUMBERS_EQUAL(addr.address, '<phoneNumber>', 1/0))))
      *             AS matching_addresses
      *   WHERE pdu._id = matching_addresses.address_msg_id
      * UNION
      * SELECT ...
      *   FROM sms
-     *   WHERE (address='<phoneNumber>' OR PHONE_NUMBERS_EQUAL(sms.address, '<phoneNumber>', 1/0));
+     *   WHERE (sms.min_match='<minMatch>' AND (sms.address='<phoneNumber>' OR
+     *   PHONE_NUMBERS_EQUAL(sms.address, '<phoneNumber>', 1/0)));
+     *
+     * The min_match terms are left out for numbers too short to have a full min-match key.
      */
     private Cursor getMessagesByPhoneNumber(
             String phoneNumber, String[] projection, String selection,
             String sortOrder, String smsTable, String pduTable) {
-        String escapedPhoneNumber = DatabaseUtils.sqlEscapeString(phoneNumber);
         String finalMmsSelection =
                 concatSelections(
                         selection,
                         pduTable + "._id = matching_addresses.address_msg_id");
         String finalSmsSelection =
-                concatSelections(
-                        selection,
-                        "(address=" + escapedPhoneNumber + " OR PHONE_NUMBERS_EQUAL(address, " +
-                        escapedPhoneNumber +
-                        (mUseStrictPhoneNumberComparation ? ", 1))" : ", 0))"));
+                concatSelections(selection, getPhoneNumberSelection(smsTable, phoneNumber));
         SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
         SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
 
@@ -1027,11 +1500,8 @@ public class MmsSmsProvider extends ContentProvider {
         mmsQueryBuilder.setTables(
                 pduTable +
                 ", (SELECT msg_id AS address_msg_id " +
-                "FROM addr WHERE (address=" + escapedPhoneNumber +
-                " OR PHONE_NUMBERS_EQUAL(addr.address, " +
-                escapedPhoneNumber +
-                (mUseStrictPhoneNumberComparation ? ", 1))) " : ", 0))) ") +
-                "AS matching_addresses");
+                "FROM addr WHERE " + getPhoneNumberSelection(MmsProvider.TABLE_ADDR, phoneNumber) +
+                ") AS matching_addresses");
         smsQueryBuilder.setTables(smsTable);
 
         String[] columns = handleNullMessageProjection(projection);
@@ -1208,6 +1678,182 @@ public class MmsSmsProvider extends ContentProvider {
                 smsColumns, null, null, null, sortOrder, null);
     }
 
+    /**
+     * A window of the messages of a conversation, in (normalized_date, transport_type, _id)
+     * order: the "limit" messages right before or right after a key.
+     *
+     * The key is given by the "before" or "after" query parameter, a normalized date in ms. To
+     * chain windows without skipping messages sharing a date, the "transport_type" and "_id" of
+     * the boundary message can be added with the "key_type" and "key_id" parameters.
+     */
+    private static final class MessageWindow {
+        static final int DEFAULT_LIMIT = 100;
+        static final int MAX_LIMIT = 1000;
+
+        final boolean mBefore;
+        final long mDate;
+        final String mTransportType;
+        final long mId;
+        final int mLimit;
+
+        private MessageWindow(boolean before, long date, String transportType, long id,
+                int limit) {
+            mBefore = before;
+            mDate = date;
+            mTransportType = transportType;
+            mId = id;
+            mLimit = limit;
+        }
+
+        /**
+         * Returns the window requested by the query parameters, or null for the whole
+         * conversation.
+         */
+        static MessageWindow fromUri(Uri uri) {
+            String before = uri.getQueryParameter("before");
+            String after = uri.getQueryParameter("after");
+            if (before == null && after == null) {
+                return null;
+            }
+            if (before != null && after != null) {
+                throw new IllegalArgumentException("specify only one of before and after");
+            }
+            String transportType = uri.getQueryParameter("key_type");
+            if (transportType != null && !transportType.equals("sms")
+                    && !transportType.equals("mms")) {
+                throw new IllegalArgumentException("invalid key_type: " + transportType);
+            }
+            try {
+                long date = Long.parseLong(before != null ? before : after);
+                long id = 0;
+                if (transportType != null) {
+                    id = Long.parseLong(uri.getQueryParameter("key_id"));
+                }
+                int limit = DEFAULT_LIMIT;
+                String limitString = uri.getQueryParameter("limit");
+                if (limitString != null) {
+                    limit = Math.max(1, Math.min(Integer.parseInt(limitString), MAX_LIMIT));
+                }
+                return new MessageWindow(before != null, date, transportType, id, limit);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("invalid window parameters: " + uri);
+            }
+        }
+
+        /**
+         * Returns the selection of the rows of one table on the requested side of the key.
+         * The date is compared as stored in the table, in units of the given number of ms, so
+         * that the (thread_id, date) index can be used. The bounds are rounded so that the
+         * comparison holds for the normalized date, in ms.
+         */
+        String getSelection(String transportType, long unit, String id) {
+            // The stored dates before and after mDate: floor and ceiling of mDate / unit.
+            final long floor = Math.floorDiv(mDate, unit);
+            final long ceiling = -Math.floorDiv(-mDate, unit);
+            final String strict = mBefore ? "date < " + ceiling : "date > " + floor;
+            final String inclusive = mBefore ? "date <= " + floor : "date >= " + ceiling;
+            if (transportType.equals(mTransportType)) {
+                if (floor != ceiling) {
+                    // No row of this table is at the date of the key.
+                    return strict;
+                }
+                return "(" + strict + " OR (date = " + floor + " AND " + id + " "
+                        + (mBefore ? "<" : ">") + " " + mId + "))";
+            }
+            // Rows of the other table at the same date are on the requested side of the key
+            // if their transport type is.
+            boolean includeDate = mTransportType != null
+                    && (mBefore ? transportType.compareTo(mTransportType) < 0
+                            : transportType.compareTo(mTransportType) > 0);
+            return includeDate ? inclusive : strict;
+        }
+
+        /** The order of the scan of one table, from the key outwards. */
+        String getScanOrder(String id) {
+            final String direction = mBefore ? " DESC" : " ASC";
+            return "date" + direction + ", " + id + direction;
+        }
+
+        /** The order of the merged rows, from the key outwards. */
+        String getMergeOrder() {
+            final String direction = mBefore ? " DESC" : " ASC";
+            return "normalized_date" + direction + ", " + MmsSms.TYPE_DISCRIMINATOR_COLUMN
+                    + direction + ", " + BaseColumns._ID + direction;
+        }
+    }
+
+    /**
+     * Same as {@link #buildConversationQuery} but for a window of the messages only. Each table
+     * is read from the key outwards along its (thread_id, date) index and stops after
+     * window.mLimit rows, then the two are merged and cut at window.mLimit rows again. The
+     * _id and transport_type columns are always returned, to build the next key.
+     */
+    private static String buildConversationWindowQuery(String[] projection,
+            String selection, String sortOrder, String smsTable, String pduTable,
+            MessageWindow window) {
+        LinkedHashSet<String> columnSet =
+                new LinkedHashSet<>(Arrays.asList(handleNullMessageProjection(projection)));
+        columnSet.add(BaseColumns._ID);
+        columnSet.add(MmsSms.TYPE_DISCRIMINATOR_COLUMN);
+        String[] smsColumns = columnSet.toArray(new String[columnSet.size()]);
+        String[] mmsColumns = createMmsProjection(smsColumns, pduTable);
+
+        SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
+        SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
+
+        mmsQueryBuilder.setDistinct(true);
+        smsQueryBuilder.setDistinct(true);
+        mmsQueryBuilder.setTables(joinPduAndPendingMsgTables(pduTable));
+        smsQueryBuilder.setTables(smsTable);
+
+        String[] innerMmsProjection = makeProjectionWithNormalizedDate(mmsColumns, 1000);
+        String[] innerSmsProjection = makeProjectionWithNormalizedDate(smsColumns, 1);
+
+        Set<String> columnsPresentInTable = new HashSet<String>(MMS_COLUMNS);
+        columnsPresentInTable.add(pduTable + "._id");
+        columnsPresentInTable.add(PendingMessages.ERROR_TYPE);
+
+        String mmsSelection = concatSelections(selection,
+                Mms.MESSAGE_BOX + " != " + Mms.MESSAGE_BOX_DRAFTS);
+        mmsSelection = concatSelections(mmsSelection, MMS_CONVERSATION_CONSTRAINT);
+        // The mms dates are in seconds.
+        mmsSelection = concatSelections(mmsSelection,
+                window.getSelection("mms", 1000, pduTable + "._id"));
+        String smsSelection = concatSelections(selection, SMS_CONVERSATION_CONSTRAINT);
+        smsSelection = concatSelections(smsSelection,
+                window.getSelection("sms", 1, "_id"));
+
+        String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(
+                MmsSms.TYPE_DISCRIMINATOR_COLUMN, innerMmsProjection,
+                columnsPresentInTable, 0, "mms", mmsSelection, null, null);
+        String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(
+                MmsSms.TYPE_DISCRIMINATOR_COLUMN, innerSmsProjection, SMS_COLUMNS,
+                0, "sms", smsSelection, null, null);
+        mmsSubQuery = "SELECT * FROM (" + mmsSubQuery
+                + " ORDER BY " + window.getScanOrder(pduTable + "._id")
+                + " LIMIT " + window.mLimit + ")";
+        smsSubQuery = "SELECT * FROM (" + smsSubQuery
+                + " ORDER BY " + window.getScanOrder("_id")
+                + " LIMIT " + window.mLimit + ")";
+
+        SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
+
+        unionQueryBuilder.setDistinct(true);
+
+        String unionQuery = unionQueryBuilder.buildUnionQuery(
+                new String[] { smsSubQuery, mmsSubQuery },
+                window.getMergeOrder(), String.valueOf(window.mLimit));
+
+        SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
+
+        outerQueryBuilder.setTables("(" + unionQuery + ")");
+
+        return outerQueryBuilder.buildQuery(smsColumns, null, null, null,
+                sortOrder != null ? sortOrder : "normalized_date ASC, "
+                        + MmsSms.TYPE_DISCRIMINATOR_COLUMN + " ASC, " + BaseColumns._ID + " ASC",
+                null);
+    }
+
     @Override
     public String getType(Uri uri) {
         return VND_ANDROID_DIR_MMS_SMS;
@@ -1217,8 +1863,8 @@ public class MmsSmsProvider extends ContentProvider {
     public int delete(Uri uri, String selection,
             String[] selectionArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        Context context = getContext();
         int affectedRows = 0;
+        Set<Long> threadIds = null;
 
         switch(URI_MATCHER.match(uri)) {
             case URI_CONVERSATIONS_MESSAGES:
@@ -1229,45 +1875,75 @@ public class MmsSmsProvider extends ContentProvider {
                     Log.e(LOG_TAG, "Thread ID must be a long.");
                     break;
                 }
-                affectedRows = deleteConversation(uri, selection, selectionArgs);
-                MmsSmsDatabaseHelper.updateThread(db, threadId);
+                threadIds = Collections.singleton(threadId);
+                affectedRows = deleteMessages(uri,
+                        concatSelections(selection, "thread_id = " + threadId), selectionArgs,
+                        threadId);
                 break;
             case URI_CONVERSATIONS:
-                affectedRows = MmsProvider.deleteMessages(context, db,
-                                        selection, selectionArgs, uri)
-                        + db.delete("sms", selection, selectionArgs);
-                // Intentionally don't pass the selection variable to updateThreads.
-                // When we pass in "locked=0" there, the thread will get excluded from
-                // the selection and not get updated.
-                MmsSmsDatabaseHelper.updateThreads(db, null, null);
+                affectedRows = deleteMessages(uri, selection, selectionArgs, null);
                 break;
             case URI_OBSOLETE_THREADS:
                 affectedRows = db.delete(TABLE_THREADS,
                         "_id NOT IN (SELECT DISTINCT thread_id FROM sms where thread_id NOT NULL " +
                         "UNION SELECT DISTINCT thread_id FROM pdu where thread_id NOT NULL)", null);
+                if (affectedRows > 0) {
+                    mThreadIdCache.invalidateThreads();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException(NO_DELETES_INSERTS_OR_UPDATES + uri);
         }
 
         if (affectedRows > 0) {
-            context.getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
-                    UserHandle.USER_ALL);
+            notifyMmsSmsChange(threadIds);
         }
         return affectedRows;
     }
 
     /**
-     * Delete the conversation with the given thread ID.
+     * Delete the MMS and SMS messages matching the selection, and update their threads.
+     *
+     * @param threadId the deleted conversation, null for all of them. The conversations left
+     *        without messages are deleted, even if the selection matched none of their messages
+     *        ("locked=0" on a conversation that only has locked messages, or an empty one).
      */
-    private int deleteConversation(Uri uri, String selection, String[] selectionArgs) {
-        String threadId = uri.getLastPathSegment();
-
+    private int deleteMessages(Uri uri, String selection, String[] selectionArgs,
+            Long threadId) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        String finalSelection = concatSelections(selection, "thread_id = " + threadId);
-        return MmsProvider.deleteMessages(getContext(), db, finalSelection,
-                                          selectionArgs, uri)
-                + db.delete("sms", finalSelection, selectionArgs);
+        int affectedRows;
+        db.beginTransaction();
+        try {
+            // Collect the threads of the messages before they are gone. Only those threads
+            // have to be updated.
+            ThreadAggregates aggregates =
+                    ThreadAggregates.forSmsDelete(db, selection, selectionArgs);
+            aggregates.addPduDelete(db, selection, selectionArgs);
+            if (threadId != null) {
+                aggregates.addThread(threadId);
+            } else {
+                aggregates.addAllThreads();
+            }
+            affectedRows = MmsProvider.deleteMessages(getContext(), db, selection,
+                                                      selectionArgs, uri)
+                    + db.delete("sms", selection, selectionArgs);
+            aggregates.apply(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return affectedRows;
+    }
+
+    /**
+     * Recompute the aggregates of every thread from the sms and pdu tables, and delete the
+     * threads without messages. This repairs a threads table that got out of sync.
+     */
+    private void repairThreads() {
+        long start = SystemClock.elapsedRealtime();
+        MmsSmsDatabaseHelper.updateThreads(mOpenHelper.getWritableDatabase(), null, null);
+        Log.d(LOG_TAG, "repairThreads: took " + (SystemClock.elapsedRealtime() - start) + "ms");
+        notifyMmsSmsChange(null);
     }
 
     @Override
@@ -1277,9 +1953,13 @@ public class MmsSmsProvider extends ContentProvider {
 
         if (matchIndex == URI_PENDING_MSG) {
             long rowId = db.insert(TABLE_PENDING_MSG, null, values);
+            onWrite();
             return uri.buildUpon().appendPath(Long.toString(rowId)).build();
         } else if (matchIndex == URI_CANONICAL_ADDRESS) {
+            MmsSmsDatabaseHelper.putAddressMinMatch(values, CanonicalAddressesColumns.ADDRESS);
             long rowId = db.insert(TABLE_CANONICAL_ADDRESSES, null, values);
+            mThreadIdCache.invalidateAll();
+            onWrite();
             return uri.buildUpon().appendPath(Long.toString(rowId)).build();
         }
         throw new UnsupportedOperationException(NO_DELETES_INSERTS_OR_UPDATES + uri);
@@ -1292,15 +1972,20 @@ public class MmsSmsProvider extends ContentProvider {
         final String callerPkg = getCallingPackage();
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int affectedRows = 0;
+        Set<Long> threadIds = null;
         switch(URI_MATCHER.match(uri)) {
             case URI_CONVERSATIONS_MESSAGES:
                 String threadIdString = uri.getPathSegments().get(1);
                 affectedRows = updateConversation(threadIdString, values,
                         selection, selectionArgs, callerUid, callerPkg);
+                if (affectedRows > 0) {
+                    threadIds = Collections.singleton(Long.parseLong(threadIdString));
+                }
                 break;
 
             case URI_PENDING_MSG:
                 affectedRows = db.update(TABLE_PENDING_MSG, values, selection, null);
+                threadIds = Collections.emptySet();
                 break;
 
             case URI_CANONICAL_ADDRESS: {
@@ -1308,7 +1993,12 @@ public class MmsSmsProvider extends ContentProvider {
                 String finalSelection = TextUtils.isEmpty(selection)
                         ? extraSelection : extraSelection + " AND " + selection;
 
+                MmsSmsDatabaseHelper.putAddressMinMatch(values,
+                        CanonicalAddressesColumns.ADDRESS);
                 affectedRows = db.update(TABLE_CANONICAL_ADDRESSES, values, finalSelection, null);
+                if (affectedRows > 0) {
+                    mThreadIdCache.invalidateAll();
+                }
                 break;
             }
 
@@ -1328,8 +2018,7 @@ public class MmsSmsProvider extends ContentProvider {
         }
 
         if (affectedRows > 0) {
-            getContext().getContentResolver().notifyChange(
-                    MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
+            notifyMmsSmsChange(threadIds);
         }
         return affectedRows;
     }
@@ -1389,6 +2078,47 @@ public class MmsSmsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Push back the idle checkpoint of the database, after a write.
+     */
+    private void onWrite() {
+        if (mOpenHelper instanceof MmsSmsDatabaseHelper) {
+            ((MmsSmsDatabaseHelper) mOpenHelper).onWrite();
+        }
+    }
+
+    /**
+     * Notify the change of the conversations of the given threads, after a write.
+     *
+     * @param threadIds the changed threads, see
+     *                  {@link NotificationDispatcher#notifyThreadsChange}
+     */
+    private void notifyMmsSmsChange(Collection<Long> threadIds) {
+        onWrite();
+        NotificationDispatcher dispatcher = getNotificationDispatcher();
+        dispatcher.notifyThreadsChange(threadIds);
+        dispatcher.dispatch();
+    }
+
+    /**
+     * Returns the dispatcher of the change notifications, shared with the other message
+     * providers.
+     */
+    NotificationDispatcher getNotificationDispatcher() {
+        return NotificationDispatcher.getInstance(getContext());
+    }
+
+    /**
+     * Index the messages still in the pending search index log, so that the search queries
+     * see every message inserted so far. This waits for a large backlog, e.g. after a rebuild
+     * of the index, up to the flush timeout of the indexer.
+     */
+    private void flushSearchIndex() {
+        if (mOpenHelper instanceof MmsSmsDatabaseHelper) {
+            ((MmsSmsDatabaseHelper) mOpenHelper).getSearchIndexer().flush();
+        }
+    }
+
     @Override
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
         // Dump default SMS app
@@ -1397,6 +2127,11 @@ public class MmsSmsProvider extends ContentProvider {
             defaultSmsApp = "None";
         }
         writer.println("Default SMS app: " + defaultSmsApp);
+        mThreadIdCache.dump(writer);
+        getNotificationDispatcher().dump(writer);
+        if (mOpenHelper instanceof MmsSmsDatabaseHelper) {
+            ((MmsSmsDatabaseHelper) mOpenHelper).dump(writer);
+        }
     }
 
     @Override
@@ -1405,6 +2140,33 @@ public class MmsSmsProvider extends ContentProvider {
             Bundle result = new Bundle();
             result.putBoolean(IS_RESTORING_KEY, TelephonyBackupAgent.getIsRestoring());
             return result;
+        } else if (METHOD_REPAIR_THREADS.equals(method)) {
+            if (ProviderUtil.isAccessRestricted(getContext(), getCallingPackage(),
+                    Binder.getCallingUid())) {
+                throw new SecurityException("Only the system, phone or default SMS app can "
+                        + "repair threads");
+            }
+            repairThreads();
+            return null;
+        } else if (METHOD_REBUILD_SEARCH_INDEX.equals(method)
+                || METHOD_GET_SEARCH_INDEX_STATUS.equals(method)) {
+            if (ProviderUtil.isAccessRestricted(getContext(), getCallingPackage(),
+                    Binder.getCallingUid())) {
+                throw new SecurityException("Only the system, phone or default SMS app can "
+                        + "manage the search index");
+            }
+            if (!(mOpenHelper instanceof MmsSmsDatabaseHelper)) {
+                return null;
+            }
+            SearchIndexer indexer = ((MmsSmsDatabaseHelper) mOpenHelper).getSearchIndexer();
+            if (METHOD_REBUILD_SEARCH_INDEX.equals(method)) {
+                indexer.rebuild();
+            }
+            // The rebuild is done when no row is pending anymore.
+            Bundle result = new Bundle();
+            result.putLong(SEARCH_INDEX_PENDING_KEY, indexer.getPendingCount());
+            result.putLong(SEARCH_INDEX_REBUILD_TOTAL_KEY, indexer.getRebuildTotal());
+            return result;
         }
         Log.w(LOG_TAG, "Ignored unsupported " + method + " call");
         return null;
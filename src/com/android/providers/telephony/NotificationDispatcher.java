@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemProperties;
+import android.os.UserHandle;
+import android.provider.Telephony;
+import android.provider.Telephony.MmsSms;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces the content change notifications of the sms/mms providers.
+ *
+ * The URIs changed by the writes are collected for a short window, which starts with the first
+ * change. At the end of the window they are de-duplicated, URIs covered by a notified ancestor
+ * are dropped, and many URIs of one authority are collapsed into the authority root. Then one
+ * set of notifications and at most one external provider change broadcast are sent. With a
+ * window of 0, everything is sent right away, at the end of each operation.
+ *
+ * The message writes notify the conversations of the threads they change, see
+ * {@link #notifyThreadsChange}, so that an open conversation is only requeried when its own
+ * thread changes.
+ *
+ * The sms, mms and mms-sms providers share one dispatcher, see {@link #getInstance}, so that a
+ * URI notified by several of them in a window is sent once.
+ *
+ * The window is read from the {@link #WINDOW_PROPERTY} system property.
+ */
+final class NotificationDispatcher {
+    private static final String TAG = "NotificationDispatcher";
+
+    @VisibleForTesting
+    static final String WINDOW_PROPERTY = "persist.radio.mmssms.notify_window_ms";
+    private static final long DEFAULT_WINDOW_MS = 100;
+
+    /** Above this many URIs of one authority in a window, notify the authority root instead. */
+    private static final int MAX_URIS_PER_AUTHORITY = 8;
+
+    /** Above this many threads changed by one operation, notify all the conversations. */
+    @VisibleForTesting
+    static final int MAX_SCOPED_THREADS = 4;
+
+    private static final int SKIP_DESCENDANTS_FLAGS = ContentResolver.NOTIFY_SYNC_TO_NETWORK
+            | ContentResolver.NOTIFY_SKIP_NOTIFY_FOR_DESCENDANTS;
+
+    private static HandlerThread sThread;
+    private static NotificationDispatcher sInstance;
+
+    private final Context mContext;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Guarded by "this".
+    private long mWindowMs;
+    private final LinkedHashMap<Uri, Integer> mPendingUris = new LinkedHashMap<>();
+    private final List<Uri> mBroadcastUris = new ArrayList<>();
+    // The packages that made the changes to broadcast, none of them the default sms app.
+    private final Set<String> mBroadcastPackages = new HashSet<>();
+    private boolean mFlushScheduled;
+    private long mRequestedCount;
+    private long mSentCount;
+    private long mBroadcastCount;
+
+    @VisibleForTesting
+    NotificationDispatcher(Context context) {
+        mContext = context;
+        mWindowMs = SystemProperties.getLong(WINDOW_PROPERTY, DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * Returns the dispatcher shared by the providers of this process. The providers all run
+     * with the same application context, the one of the first caller is kept.
+     */
+    static synchronized NotificationDispatcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NotificationDispatcher(context);
+        }
+        return sInstance;
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sThread == null) {
+            sThread = new HandlerThread(TAG);
+            sThread.start();
+        }
+        return sThread.getThreadHandler();
+    }
+
+    @VisibleForTesting
+    synchronized void setWindowMs(long windowMs) {
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Queue a change notification of the given URI, for all users.
+     *
+     * @param flags the ContentResolver.NOTIFY_* flags
+     */
+    synchronized void notifyChange(Uri uri, int flags) {
+        if (uri == null) {
+            return;
+        }
+        mRequestedCount++;
+        Integer pendingFlags = mPendingUris.get(uri);
+        // Notifying the descendants covers the notification that skips them.
+        mPendingUris.put(uri, pendingFlags == null ? flags : (pendingFlags & flags));
+    }
+
+    /**
+     * Queue a change notification of the given URI, for all users, including the observers of
+     * its descendants.
+     */
+    void notifyChange(Uri uri) {
+        notifyChange(uri, ContentResolver.NOTIFY_SYNC_TO_NETWORK);
+    }
+
+    /**
+     * Queue the notifications of a change of the messages of the given threads. The
+     * conversations of these threads are notified, while the mms-sms root and the conversation
+     * list are notified without their descendants, so that the other conversations are not
+     * requeried, the same way TelephonyProvider notifies the SIMINFO changes.
+     *
+     * @param threadIds the changed threads; null if unknown or too many, in which case every
+     *                  conversation is notified. Empty if no conversation changed.
+     */
+    void notifyThreadsChange(Collection<Long> threadIds) {
+        if (threadIds == null || threadIds.size() > MAX_SCOPED_THREADS) {
+            notifyChange(MmsSms.CONTENT_URI);
+            return;
+        }
+        notifyChange(MmsSms.CONTENT_URI, SKIP_DESCENDANTS_FLAGS);
+        if (threadIds.isEmpty()) {
+            return;
+        }
+        notifyChange(MmsSms.CONTENT_CONVERSATIONS_URI, SKIP_DESCENDANTS_FLAGS);
+        for (long threadId : threadIds) {
+            notifyChange(ContentUris.withAppendedId(MmsSms.CONTENT_CONVERSATIONS_URI, threadId));
+        }
+    }
+
+    /**
+     * Returns the threads of the rows of the given message table matching the selection, to be
+     * passed to {@link #notifyThreadsChange}. Only the first {@link #MAX_SCOPED_THREADS} + 1
+     * threads are looked up.
+     */
+    static Set<Long> getThreadIds(SQLiteDatabase db, String table, String selection,
+            String[] selectionArgs) {
+        HashSet<Long> threadIds = new HashSet<>();
+        try (Cursor c = db.query(true /* distinct */, table, new String[] { "thread_id" },
+                selection, selectionArgs, null, null, null,
+                String.valueOf(MAX_SCOPED_THREADS + 1))) {
+            while (c.moveToNext()) {
+                if (!c.isNull(0)) {
+                    threadIds.add(c.getLong(0));
+                }
+            }
+        }
+        return threadIds;
+    }
+
+    /**
+     * Queue the broadcast of {@link ProviderUtil#notifyIfNotDefaultSmsApp}, if the change is not
+     * made by the default sms app. Only one broadcast is sent per window, for the common
+     * ancestor of the URIs, as long as one of the calling packages is still not the default sms
+     * app then.
+     */
+    void notifyIfNotDefaultSmsApp(Uri uri, String callingPackage) {
+        if (TextUtils.equals(callingPackage, Telephony.Sms.getDefaultSmsPackage(mContext))) {
+            return;
+        }
+        synchronized (this) {
+            mBroadcastUris.add(uri);
+            mBroadcastPackages.add(callingPackage);
+        }
+    }
+
+    /**
+     * To be called at the end of each write operation: sends the queued notifications, now or
+     * at the end of the window.
+     */
+    void dispatch() {
+        synchronized (this) {
+            if (mWindowMs > 0) {
+                if (!mFlushScheduled
+                        && (!mPendingUris.isEmpty() || !mBroadcastUris.isEmpty())) {
+                    mFlushScheduled = true;
+                    getHandler().postDelayed(mFlushRunnable, mWindowMs);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Send the queued notifications right away.
+     */
+    void flush() {
+        Map<Uri, Integer> uris;
+        List<Uri> broadcastUris;
+        Set<String> broadcastPackages;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPendingUris.isEmpty() && mBroadcastUris.isEmpty()) {
+                return;
+            }
+            uris = collapse(mPendingUris);
+            broadcastUris = new ArrayList<>(mBroadcastUris);
+            broadcastPackages = new HashSet<>(mBroadcastPackages);
+            mPendingUris.clear();
+            mBroadcastUris.clear();
+            mBroadcastPackages.clear();
+            mSentCount += uris.size();
+            if (!broadcastUris.isEmpty()) {
+                mBroadcastCount++;
+            }
+        }
+
+        ContentResolver cr = mContext.getContentResolver();
+        for (Map.Entry<Uri, Integer> entry : uris.entrySet()) {
+            int flags = entry.getValue();
+            if (flags == ContentResolver.NOTIFY_SYNC_TO_NETWORK) {
+                cr.notifyChange(entry.getKey(), null, true, UserHandle.USER_ALL);
+            } else {
+                cr.notifyChange(entry.getKey(), null, flags, UserHandle.USER_ALL);
+            }
+        }
+        if (!broadcastUris.isEmpty()) {
+            Uri broadcastUri = broadcastUris.get(0);
+            for (Uri uri : broadcastUris) {
+                broadcastUri = getCommonAncestor(broadcastUri, uri);
+            }
+            // The default sms app may have changed during the window.
+            String defaultSmsPackage = Telephony.Sms.getDefaultSmsPackage(mContext);
+            for (String broadcastPackage : broadcastPackages) {
+                if (!TextUtils.equals(broadcastPackage, defaultSmsPackage)) {
+                    ProviderUtil.notifyIfNotDefaultSmsApp(broadcastUri, broadcastPackage,
+                            mContext);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the URIs to notify for the given changed URIs: too many URIs of one authority are
+     * replaced by the authority root, and the URIs covered by the notification of an ancestor
+     * are dropped.
+     */
+    @VisibleForTesting
+    static Map<Uri, Integer> collapse(Map<Uri, Integer> pendingUris) {
+        HashMap<String, Integer> authorityCounts = new HashMap<>();
+        for (Uri uri : pendingUris.keySet()) {
+            Integer count = authorityCounts.get(uri.getAuthority());
+            authorityCounts.put(uri.getAuthority(), count == null ? 1 : count + 1);
+        }
+
+        LinkedHashMap<Uri, Integer> uris = new LinkedHashMap<>();
+        for (Map.Entry<Uri, Integer> entry : pendingUris.entrySet()) {
+            Uri uri = entry.getKey();
+            if (authorityCounts.get(uri.getAuthority()) > MAX_URIS_PER_AUTHORITY) {
+                uri = new Uri.Builder().scheme(uri.getScheme())
+                        .authority(uri.getAuthority()).build();
+                uris.put(uri, ContentResolver.NOTIFY_SYNC_TO_NETWORK);
+            } else {
+                Integer flags = uris.get(uri);
+                uris.put(uri, flags == null ? entry.getValue() : (flags & entry.getValue()));
+            }
+        }
+
+        LinkedHashMap<Uri, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<Uri, Integer> entry : uris.entrySet()) {
+            boolean covered = false;
+            for (Map.Entry<Uri, Integer> other : uris.entrySet()) {
+                if ((other.getValue() & ContentResolver.NOTIFY_SKIP_NOTIFY_FOR_DESCENDANTS) == 0
+                        && !other.getKey().equals(entry.getKey())
+                        && isAncestor(other.getKey(), entry.getKey())) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the observers of descendant are notified along with ancestor, i.e. if
+     * ancestor is descendant or one of its parents.
+     */
+    @VisibleForTesting
+    static boolean isAncestor(Uri ancestor, Uri descendant) {
+        if (!ancestor.getAuthority().equals(descendant.getAuthority())) {
+            return false;
+        }
+        List<String> ancestorSegments = ancestor.getPathSegments();
+        List<String> descendantSegments = descendant.getPathSegments();
+        return ancestorSegments.size() <= descendantSegments.size()
+                && descendantSegments.subList(0, ancestorSegments.size())
+                        .equals(ancestorSegments);
+    }
+
+    /**
+     * Returns the closest URI that is an ancestor of both, or the mms-sms root URI if they are
+     * not of the same authority.
+     */
+    @VisibleForTesting
+    static Uri getCommonAncestor(Uri first, Uri second) {
+        if (first == null || second == null) {
+            return first == null ? second : first;
+        }
+        if (!first.getAuthority().equals(second.getAuthority())) {
+            return MmsSms.CONTENT_URI;
+        }
+        List<String> firstSegments = first.getPathSegments();
+        List<String> secondSegments = second.getPathSegments();
+        Uri.Builder builder = new Uri.Builder().scheme(first.getScheme())
+                .authority(first.getAuthority());
+        for (int i = 0; i < Math.min(firstSegments.size(), secondSegments.size()); i++) {
+            if (!firstSegments.get(i).equals(secondSegments.get(i))) {
+                break;
+            }
+            builder.appendPath(firstSegments.get(i));
+        }
+        return builder.build();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Notification window: " + mWindowMs + "ms"
+                + " requested=" + mRequestedCount + " sent=" + mSentCount
+                + " broadcasts=" + mBroadcastCount + " pending=" + mPendingUris.size());
+    }
+}
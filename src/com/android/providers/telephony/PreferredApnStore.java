@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The preferred APN of each subscription, stored in the preferred_apn table of telephony.db
+ * with a write-through in-memory view.
+ *
+ * A row holds the _id of the preferred APN in the carriers table and, separately, the values of
+ * the unique fields of that APN. The _id does not survive a reload of the carriers table, the
+ * values are used to find the APN again afterwards. Either can be missing, a row without both
+ * is deleted.
+ *
+ * The view is loaded with the first access and updated after every write of the table. The
+ * writes may run in a transaction of the caller, together with the carriers edits; if that
+ * transaction is rolled back, the caller must {@link #reset()} the view.
+ */
+final class PreferredApnStore {
+    static final String TABLE = "preferred_apn";
+
+    static final String SUB_ID = "sub_id";
+    static final String APN_ID = "apn_id";
+    // Whether the APN was set by DcTracker or the user (true) or restored from the saved
+    // values (false). For debug purposes.
+    static final String EXPLICIT_SET = "explicit_set";
+    // Database version the values were saved with, null when no values are saved.
+    static final String VERSION = "version";
+
+    static final long INVALID_APN_ID = -1;
+
+    /**
+     * The preferred APN of one subscription.
+     */
+    static final class PreferredApn {
+        final long apnId;
+        final boolean explicitSet;
+        /** Unique field values of the APN, null when not saved. */
+        final Map<String, String> apn;
+        final int version;
+
+        PreferredApn(long apnId, boolean explicitSet, Map<String, String> apn, int version) {
+            this.apnId = apnId;
+            this.explicitSet = explicitSet;
+            this.apn = apn != null ? Collections.unmodifiableMap(apn) : null;
+            this.version = version;
+        }
+    }
+
+    private final List<String> mUniqueFields;
+
+    // Null until loaded. Guarded by "this".
+    private SparseArray<PreferredApn> mPreferredApns;
+    private long mLoadCount;
+
+    PreferredApnStore(List<String> uniqueFields) {
+        mUniqueFields = uniqueFields;
+    }
+
+    static String getStringForTableCreation(String tableName, List<String> uniqueFields) {
+        StringBuilder sb = new StringBuilder("CREATE TABLE " + tableName + "("
+                + SUB_ID + " INTEGER PRIMARY KEY,"
+                + APN_ID + " INTEGER DEFAULT " + INVALID_APN_ID + ","
+                + EXPLICIT_SET + " INTEGER DEFAULT 0,"
+                + VERSION + " INTEGER");
+        for (String field : uniqueFields) {
+            sb.append(",").append(field).append(" TEXT");
+        }
+        return sb.append(");").toString();
+    }
+
+    private SparseArray<PreferredApn> load(SQLiteDatabase db) {
+        if (mPreferredApns == null) {
+            SparseArray<PreferredApn> preferredApns = new SparseArray<>();
+            try (Cursor c = db.query(TABLE, null, null, null, null, null, null)) {
+                int subIdIndex = c.getColumnIndexOrThrow(SUB_ID);
+                int apnIdIndex = c.getColumnIndexOrThrow(APN_ID);
+                int explicitSetIndex = c.getColumnIndexOrThrow(EXPLICIT_SET);
+                int versionIndex = c.getColumnIndexOrThrow(VERSION);
+                while (c.moveToNext()) {
+                    Map<String, String> apn = null;
+                    if (!c.isNull(versionIndex)) {
+                        apn = new HashMap<>();
+                        for (String field : mUniqueFields) {
+                            apn.put(field, c.getString(c.getColumnIndexOrThrow(field)));
+                        }
+                    }
+                    preferredApns.put(c.getInt(subIdIndex), new PreferredApn(
+                            c.getLong(apnIdIndex), c.getInt(explicitSetIndex) != 0, apn,
+                            c.getInt(versionIndex)));
+                }
+            }
+            mPreferredApns = preferredApns;
+            mLoadCount++;
+        }
+        return mPreferredApns;
+    }
+
+    /**
+     * Returns the preferred APN of the subscription, null if none.
+     */
+    synchronized PreferredApn get(SQLiteDatabase db, int subId) {
+        return load(db).get(subId);
+    }
+
+    /**
+     * Returns the ids of the subscriptions with a preferred APN.
+     */
+    synchronized int[] getSubIds(SQLiteDatabase db) {
+        SparseArray<PreferredApn> preferredApns = load(db);
+        int[] subIds = new int[preferredApns.size()];
+        for (int i = 0; i < subIds.length; i++) {
+            subIds[i] = preferredApns.keyAt(i);
+        }
+        return subIds;
+    }
+
+    /**
+     * Stores the preferred APN of the subscription. Deletes it if there is neither an _id nor
+     * saved values.
+     */
+    synchronized void put(SQLiteDatabase db, int subId, long apnId, boolean explicitSet,
+            Map<String, String> apn, int version) {
+        SparseArray<PreferredApn> preferredApns = load(db);
+        if (apnId == INVALID_APN_ID && apn == null) {
+            db.delete(TABLE, SUB_ID + "=?", new String[]{String.valueOf(subId)});
+            preferredApns.remove(subId);
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(SUB_ID, subId);
+        values.put(APN_ID, apnId);
+        values.put(EXPLICIT_SET, explicitSet ? 1 : 0);
+        if (apn != null) {
+            values.put(VERSION, version);
+            for (String field : mUniqueFields) {
+                values.put(field, apn.get(field));
+            }
+        }
+        db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        preferredApns.put(subId, new PreferredApn(apnId, explicitSet, apn, version));
+    }
+
+    /**
+     * Deletes the preferred APNs of all subscriptions.
+     */
+    synchronized void clear(SQLiteDatabase db) {
+        db.delete(TABLE, null, null);
+        mPreferredApns = new SparseArray<>();
+    }
+
+    /**
+     * Drops the in-memory view, e.g. after a rolled back transaction. It is reloaded from the
+     * table with the next access.
+     */
+    synchronized void reset() {
+        mPreferredApns = null;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("PreferredApnStore: subs="
+                + (mPreferredApns != null ? mPreferredApns.size() : "not loaded")
+                + " loads=" + mLoadCount);
+    }
+}
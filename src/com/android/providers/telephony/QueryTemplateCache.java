@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cache of the SQL built by {@link TelephonyProvider} for its queries, keyed on everything that
+ * shapes the statement: the table, the provider constraints, the projection, the selection and
+ * the sort order. The values of the constraints are bound, not part of the key, so a URI type
+ * has a single statement whatever the subscription or the APN id, and SQLite finds it in its
+ * prepared statement cache.
+ *
+ * A statement is only cached once the caller validated it, so a hit skips both the building
+ * and the validation of the selection.
+ */
+final class QueryTemplateCache {
+    private static final int MAX_TEMPLATES = 32;
+
+    private final LruCache<List<Object>, String> mTemplates = new LruCache<>(MAX_TEMPLATES);
+
+    static List<Object> getKey(String table, String where, String[] projection, String selection,
+            String sort) {
+        return Arrays.asList(table, where, projection != null ? Arrays.asList(projection) : null,
+                selection, sort);
+    }
+
+    String get(List<Object> key) {
+        return mTemplates.get(key);
+    }
+
+    void put(List<Object> key, String sql) {
+        mTemplates.put(key, sql);
+    }
+
+    @VisibleForTesting
+    int hitCount() {
+        return mTemplates.hitCount();
+    }
+
+    @VisibleForTesting
+    int missCount() {
+        return mTemplates.missCount();
+    }
+
+    void dump(PrintWriter writer) {
+        int hits = mTemplates.hitCount();
+        int misses = mTemplates.missCount();
+        writer.println("QueryTemplateCache: templates " + mTemplates.size() + "/" + MAX_TEMPLATES
+                + " hits=" + hits + " misses=" + misses + " hitRate="
+                + (hits + misses > 0 ? (100 * hits / (hits + misses)) + "%" : "n/a"));
+    }
+}
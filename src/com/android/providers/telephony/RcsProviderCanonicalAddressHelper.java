@@ -37,6 +37,8 @@ public class RcsProviderCanonicalAddressHelper {
     private Cursor insertCanonicalAddress(String canonicalAddress) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(Telephony.CanonicalAddressesColumns.ADDRESS, canonicalAddress);
+        contentValues.put(MmsSmsDatabaseHelper.ADDRESS_MIN_MATCH,
+                MmsSmsDatabaseHelper.getAddressMinMatch(canonicalAddress));
 
         SQLiteDatabase db = mSQLiteOpenHelper.getWritableDatabase();
 
@@ -45,6 +47,8 @@ public class RcsProviderCanonicalAddressHelper {
         if (id == -1) {
             return null;
         }
+        // The row was not added through MmsSmsProvider, drop what it cached from the table.
+        ThreadIdCache.getInstance().invalidateAll();
 
         MatrixCursor matrixCursor = new MatrixCursor(new String[]{BaseColumns._ID}, 1);
         matrixCursor.addRow(new Object[]{id});
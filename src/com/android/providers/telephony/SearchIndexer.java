@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Background indexing of the message text for search.
+ *
+ * Inserting a sms or a text/plain mms part only appends its row id to the
+ * {@link #TABLE_PENDING} log, from a trigger, in the transaction of the insert. The full-text
+ * index itself is updated later on a background thread, which drains the log in batched
+ * transactions. The log lives in the database, so the rows not yet indexed when the process
+ * dies are picked up on the next drain.
+ *
+ * The search queries call {@link #flush()} first, so they see every message inserted so far. The
+ * flush drains the log on the binder thread of the query, along with the background drain,
+ * until it is empty. It gives up after {@link #FLUSH_TIMEOUT_MS} so that a huge backlog, e.g.
+ * of a rebuild, cannot hold the query for long; only then does the search miss the rows left.
+ *
+ * The same log is used to rebuild the whole index, see {@link #rebuild()}: the index is emptied
+ * and every message is added to the log, which is then drained in batches like new messages
+ * are. The rebuild thus doesn't hold the database for long at a time, and carries on after a
+ * process restart.
+ */
+final class SearchIndexer {
+    private static final String TAG = "SearchIndexer";
+
+    /**
+     * The name of the table that is used to store the rows waiting to be indexed.
+     */
+    static final String TABLE_PENDING = "search_index_pending";
+
+    static final int TABLE_TO_USE_SMS = 1;
+    static final int TABLE_TO_USE_PART = 2;
+
+    /** Number of log entries indexed per transaction. */
+    private static final int BATCH_SIZE = 200;
+
+    /** Maximum time {@link #flush()} spends indexing on the calling thread. */
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    /** Delay before draining the log, so that a burst of inserts is indexed at once. */
+    private static final long DRAIN_DELAY_MS = 500;
+
+    /** Pause of the background drain between two full batches, to let the readers in. */
+    private static final long BATCH_YIELD_MS = 20;
+
+    /** Number of drains failing in a row after which the index is rebuilt. */
+    private static final int MAX_DRAIN_FAILURES = 3;
+
+    // Current time in milliseconds, as stored in the "enqueued" column of the log.
+    static final String NOW_MILLIS =
+            "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    private static final String SELECT_HAS_PENDING =
+            "SELECT EXISTS (SELECT 1 FROM " + TABLE_PENDING + ")";
+
+    private static final String SELECT_BATCH_END =
+            "SELECT MAX(_id) FROM (SELECT _id FROM " + TABLE_PENDING +
+            " ORDER BY _id LIMIT " + BATCH_SIZE + ")";
+
+    private static final String INDEX_SMS_BATCH =
+            "INSERT INTO " + SmsProvider.TABLE_SMS_FTS + " (docid, body)" +
+            " SELECT sms._id, sms.body FROM " + TABLE_PENDING +
+            " JOIN sms ON sms._id = " + TABLE_PENDING + ".row_id" +
+            " WHERE " + TABLE_PENDING + ".table_to_use = " + TABLE_TO_USE_SMS +
+            " AND " + TABLE_PENDING + "._id <= ?";
+
+    private static final String INDEX_PART_BATCH =
+            "INSERT INTO " + MmsProvider.TABLE_PART_FTS + " (docid, text)" +
+            " SELECT part._id, part.text FROM " + TABLE_PENDING +
+            " JOIN part ON part._id = " + TABLE_PENDING + ".row_id" +
+            " AND part.ct = 'text/plain'" +
+            " WHERE " + TABLE_PENDING + ".table_to_use = " + TABLE_TO_USE_PART +
+            " AND " + TABLE_PENDING + "._id <= ?";
+
+    private static final String DELETE_BATCH =
+            "DELETE FROM " + TABLE_PENDING + " WHERE _id <= ?";
+
+    private static HandlerThread sThread;
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain(Long.MAX_VALUE, true /* yield */);
+        }
+    };
+    private final Runnable mRebuildRunnable = new Runnable() {
+        @Override
+        public void run() {
+            rebuild();
+        }
+    };
+
+    // Guarded by "this".
+    private long mIndexedCount;
+    private long mLastDrainTime;
+    private int mDrainFailures;
+    private long mRebuildTotal;
+
+    private long mFlushTimeoutMs = FLUSH_TIMEOUT_MS;
+
+    SearchIndexer(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sThread == null) {
+            sThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            sThread.start();
+        }
+        return sThread.getThreadHandler();
+    }
+
+    /**
+     * Schedule a drain of the log, after a short delay. Called after inserting messages.
+     */
+    void schedule() {
+        Handler handler = getHandler();
+        if (!handler.hasCallbacks(mDrainRunnable)) {
+            handler.postDelayed(mDrainRunnable, DRAIN_DELAY_MS);
+        }
+    }
+
+    /**
+     * Index the pending rows right away, on the calling thread, until none is left or
+     * {@link #FLUSH_TIMEOUT_MS} elapsed. The rows left then are indexed by the background drain.
+     *
+     * @return true if no row is pending anymore
+     */
+    boolean flush() {
+        long timeoutMs;
+        synchronized (this) {
+            timeoutMs = mFlushTimeoutMs;
+        }
+        if (drain(SystemClock.elapsedRealtime() + timeoutMs, false /* yield */)) {
+            return true;
+        }
+        Log.w(TAG, "flush: timed out after " + timeoutMs + "ms, " + getPendingCount()
+                + " rows not indexed yet");
+        schedule();
+        return false;
+    }
+
+    @VisibleForTesting
+    synchronized void setFlushTimeoutMs(long timeoutMs) {
+        mFlushTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Index the pending rows, one batch per transaction. The lock is only held for a batch at
+     * a time, so a flush and the background drain take turns.
+     *
+     * @param deadline the elapsedRealtime() after which no new batch is started; at least one
+     *        batch is always indexed
+     * @return true if no row is pending anymore, false if some are left at the deadline or the
+     *         drain failed
+     */
+    private boolean drain(long deadline, boolean yield) {
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            if (DatabaseUtils.longForQuery(db, SELECT_HAS_PENDING, null) == 0) {
+                return true;
+            }
+            for (int batches = 0; ; batches++) {
+                if (batches > 0 && SystemClock.elapsedRealtime() >= deadline) {
+                    // The next drain carries on from the log.
+                    return false;
+                }
+                if (batches > 0 && yield) {
+                    // Let the readers in between two batches.
+                    SystemClock.sleep(BATCH_YIELD_MS);
+                }
+                synchronized (this) {
+                    int indexed = drainBatch(db);
+                    mIndexedCount += indexed;
+                    mDrainFailures = 0;
+                    if (indexed < BATCH_SIZE) {
+                        mLastDrainTime = System.currentTimeMillis();
+                        if (mRebuildTotal > 0) {
+                            Log.i(TAG, "drain: rebuild of " + mRebuildTotal + " rows done");
+                            mRebuildTotal = 0;
+                        }
+                        return true;
+                    }
+                }
+            }
+        } catch (Throwable ex) {
+            // The entries stay in the log and are retried on the next drain.
+            Log.e(TAG, "drain: " + ex.getMessage(), ex);
+            synchronized (this) {
+                if (++mDrainFailures >= MAX_DRAIN_FAILURES) {
+                    // The index itself is likely damaged: start over from the content tables,
+                    // on the background thread since this may be the flush of a query.
+                    Log.e(TAG, "drain: failed " + mDrainFailures
+                            + " times, rebuilding the index");
+                    mDrainFailures = 0;
+                    getHandler().post(mRebuildRunnable);
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Empty the search index, recreating its tables, and add every sms and text/plain part to
+     * the pending log. Only set-based statements, to be called in a transaction.
+     *
+     * @return the number of rows to index
+     */
+    static long resetIndex(SQLiteDatabase db) {
+        // Dropping the tables rather than deleting their content also gets rid of a damaged
+        // index.
+        db.execSQL("DROP TABLE IF EXISTS " + SmsProvider.TABLE_SMS_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_PART_FTS);
+        MmsSmsDatabaseHelper.createSearchTables(db);
+
+        db.delete(TABLE_PENDING, null, null);
+        db.execSQL("INSERT INTO " + TABLE_PENDING + " (table_to_use, row_id, enqueued)" +
+                " SELECT " + TABLE_TO_USE_SMS + ", _id, " + NOW_MILLIS + " FROM sms" +
+                " ORDER BY _id");
+        db.execSQL("INSERT INTO " + TABLE_PENDING + " (table_to_use, row_id, enqueued)" +
+                " SELECT " + TABLE_TO_USE_PART + ", _id, " + NOW_MILLIS + " FROM part" +
+                " WHERE ct = 'text/plain' ORDER BY _id");
+        return DatabaseUtils.queryNumEntries(db, TABLE_PENDING);
+    }
+
+    /**
+     * Rebuild the search index from the sms and part tables. The index is emptied right away
+     * and filled again in the background; the search queries finish it first, within the
+     * flush timeout. The progress is reported by {@link #getPendingCount()}.
+     *
+     * @return the number of rows to index, or -1 on failure
+     */
+    long rebuild() {
+        long total;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            total = resetIndex(db);
+            db.setTransactionSuccessful();
+        } catch (Throwable ex) {
+            Log.e(TAG, "rebuild: " + ex.getMessage(), ex);
+            return -1;
+        } finally {
+            db.endTransaction();
+        }
+        synchronized (this) {
+            mRebuildTotal = total;
+        }
+        Log.i(TAG, "rebuild: " + total + " rows to index");
+        schedule();
+        return total;
+    }
+
+    /**
+     * Returns the number of rows waiting to be indexed, or -1 if unknown.
+     */
+    long getPendingCount() {
+        try {
+            return DatabaseUtils.queryNumEntries(mOpenHelper.getReadableDatabase(),
+                    TABLE_PENDING);
+        } catch (Throwable ex) {
+            Log.e(TAG, "getPendingCount: " + ex.getMessage(), ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the number of rows of the current rebuild, 0 if none is in progress.
+     */
+    synchronized long getRebuildTotal() {
+        return mRebuildTotal;
+    }
+
+    /**
+     * Index up to {@link #BATCH_SIZE} entries of the log in one transaction.
+     *
+     * @return the number of log entries consumed
+     */
+    private int drainBatch(SQLiteDatabase db) {
+        final long start = SystemClock.elapsedRealtime();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            long batchEnd;
+            try (Cursor c = db.rawQuery(SELECT_BATCH_END, null)) {
+                if (!c.moveToFirst() || c.isNull(0)) {
+                    return 0;
+                }
+                batchEnd = c.getLong(0);
+            }
+            Object[] args = new Object[] { batchEnd };
+            db.execSQL(INDEX_SMS_BATCH, args);
+            db.execSQL(INDEX_PART_BATCH, args);
+            try (SQLiteStatement delete = db.compileStatement(DELETE_BATCH)) {
+                delete.bindLong(1, batchEnd);
+                count = delete.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.d(TAG, "drainBatch: " + count + " entries in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+        return count;
+    }
+
+    void dump(PrintWriter writer) {
+        long depth = -1;
+        long lag = -1;
+        try (Cursor c = mOpenHelper.getReadableDatabase().rawQuery(
+                "SELECT COUNT(*), " + NOW_MILLIS + " - MIN(enqueued) FROM " + TABLE_PENDING,
+                null)) {
+            if (c.moveToFirst()) {
+                depth = c.getLong(0);
+                lag = c.isNull(1) ? 0 : c.getLong(1);
+            }
+        } catch (Throwable ex) {
+            Log.e(TAG, "dump: " + ex.getMessage(), ex);
+        }
+        synchronized (this) {
+            writer.println("Search index queue: depth=" + depth + " lag=" + lag + "ms"
+                    + " indexed=" + mIndexedCount + " lastDrain=" + mLastDrainTime
+                    + " rebuildTotal=" + mRebuildTotal);
+        }
+    }
+}
@@ -21,20 +21,20 @@ import android.app.AppOpsManager;
 import android.content.ContentProvider;
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.UserHandle;
 import android.provider.Contacts;
 import android.provider.Telephony;
-import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.TextBasedSmsColumns;
 import android.provider.Telephony.Threads;
@@ -45,8 +45,14 @@ import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 public class SmsProvider extends ContentProvider {
     private static final Uri NOTIFICATION_URI = Uri.parse("content://sms");
@@ -54,11 +60,15 @@ public class SmsProvider extends ContentProvider {
     static final String TABLE_SMS = "sms";
     static final String TABLE_RAW = "raw";
     private static final String TABLE_SR_PENDING = "sr_pending";
-    private static final String TABLE_WORDS = "words";
+    static final String TABLE_SMS_FTS = "sms_fts";
     static final String VIEW_SMS_RESTRICTED = "sms_restricted";
 
     private static final Integer ONE = Integer.valueOf(1);
 
+    /** Number of messages inserted per transaction by {@link #bulkInsert}. */
+    @VisibleForTesting
+    static final int BULK_INSERT_BATCH_SIZE = 100;
+
     private static final String[] CONTACT_QUERY_PROJECTION =
             new String[] { Contacts.Phones.PERSON_ID };
     private static final int PERSON_ID_COLUMN = 0;
@@ -291,6 +301,26 @@ public class SmsProvider extends ContentProvider {
         return mCeOpenHelper;
     }
 
+    /**
+     * Schedule the indexing for search of the messages added to the pending log.
+     */
+    private void scheduleSearchIndexing(int match) {
+        SQLiteOpenHelper openHelper = getDBOpenHelper(match);
+        if (openHelper instanceof MmsSmsDatabaseHelper) {
+            ((MmsSmsDatabaseHelper) openHelper).getSearchIndexer().schedule();
+        }
+    }
+
+    /**
+     * Push back the idle checkpoint of the database written to.
+     */
+    private void onWrite(int match) {
+        SQLiteOpenHelper openHelper = getDBOpenHelper(match);
+        if (openHelper instanceof MmsSmsDatabaseHelper) {
+            ((MmsSmsDatabaseHelper) openHelper).onWrite();
+        }
+    }
+
     private Object[] convertIccToSms(SmsMessage message, int id) {
         // N.B.: These calls must appear in the same order as the
         // columns appear in ICC_COLUMNS.
@@ -419,85 +449,218 @@ public class SmsProvider extends ContentProvider {
         final String callerPkg = getCallingPackage();
         long token = Binder.clearCallingIdentity();
         try {
+            final int match = sURLMatcher.match(url);
             int messagesInserted = 0;
-            for (ContentValues initialValues : values) {
-                Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg);
-                if (insertUri != null) {
-                    messagesInserted++;
+            HashSet<Long> threadIds = new HashSet<>();
+            if (isSmsTableMatch(match)) {
+                messagesInserted = bulkInsertSms(match, values, callerUid, callerPkg, threadIds);
+            } else {
+                for (ContentValues initialValues : values) {
+                    Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg,
+                            null);
+                    if (insertUri != null) {
+                        messagesInserted++;
+                    }
                 }
             }
+            if (messagesInserted > 0) {
+                onWrite(match);
+            }
 
             // The raw table is used by the telephony layer for storing an sms before
             // sending out a notification that an sms has arrived. We don't want to notify
             // the default sms app of changes to this table.
-            final boolean notifyIfNotDefault = sURLMatcher.match(url) != SMS_RAW_MESSAGE;
-            notifyChange(notifyIfNotDefault, url, callerPkg);
+            final boolean notifyIfNotDefault = match != SMS_RAW_MESSAGE;
+            notifyChange(notifyIfNotDefault, url, callerPkg, threadIds);
             return messagesInserted;
         } finally {
             Binder.restoreCallingIdentity(token);
         }
     }
 
+    /**
+     * Insert messages into the sms table in chunks of {@link #BULK_INSERT_BATCH_SIZE}, one
+     * transaction per chunk. Each row gets the same treatment as {@link #insertInner} (thread id,
+     * draft replacement, creator), but thread ids and contacts are resolved before the
+     * transaction is opened and the insert statements are compiled once per chunk.
+     */
+    private int bulkInsertSms(int match, ContentValues[] values, int callerUid,
+            String callerPkg, Set<Long> threadIds) {
+        SQLiteDatabase db = getWritableDatabase(match);
+        HashMap<String, Long> threadIdCache = new HashMap<>();
+        int messagesInserted = 0;
+        for (int start = 0; start < values.length; start += BULK_INSERT_BATCH_SIZE) {
+            int end = Math.min(values.length, start + BULK_INSERT_BATCH_SIZE);
+            ContentValues[] batch = new ContentValues[end - start];
+            for (int i = start; i < end; i++) {
+                int type = getInsertMessageType(match, values[i]);
+                batch[i - start] = prepareSmsValues(values[i], type, callerUid, callerPkg,
+                        threadIdCache);
+                Long threadId = batch[i - start].getAsLong(Sms.THREAD_ID);
+                if (threadId != null) {
+                    threadIds.add(threadId);
+                }
+            }
+            messagesInserted += insertSmsBatch(db, batch);
+        }
+        if (messagesInserted > 0) {
+            scheduleSearchIndexing(match);
+        }
+        return messagesInserted;
+    }
+
+    private int insertSmsBatch(SQLiteDatabase db, ContentValues[] batch) {
+        // Rows of one batch usually share the same set of columns, so there are only a couple
+        // of distinct insert statements to compile.
+        HashMap<String, SQLiteStatement> insertStatements = new HashMap<>();
+        int messagesInserted = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues values : batch) {
+                deleteOtherDrafts(db, values);
+                long rowID;
+                try {
+                    rowID = insertWithStatement(db, insertStatements, values);
+                } catch (SQLException e) {
+                    Log.e(TAG, "bulkInsert: insert failed", e);
+                    continue;
+                }
+                if (rowID > 0) {
+                    messagesInserted++;
+                } else {
+                    Log.e(TAG, "bulkInsert: insert failed!");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            for (SQLiteStatement statement : insertStatements.values()) {
+                statement.close();
+            }
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.d(TAG, "bulkInsert: inserted " + messagesInserted + " of " + batch.length);
+        }
+        return messagesInserted;
+    }
+
+    /**
+     * Insert the given values into the sms table, reusing a compiled statement for rows that
+     * have the same set of columns.
+     */
+    private static long insertWithStatement(SQLiteDatabase db,
+            HashMap<String, SQLiteStatement> statements, ContentValues values) {
+        ArrayList<String> columns = new ArrayList<>(values.keySet());
+        Collections.sort(columns);
+        String key = TextUtils.join(",", columns);
+        SQLiteStatement statement = statements.get(key);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO " + TABLE_SMS + " (");
+            sql.append(key).append(") VALUES (");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            sql.append(')');
+            statement = db.compileStatement(sql.toString());
+            statements.put(key, statement);
+        }
+        statement.clearBindings();
+        for (int i = 0; i < columns.size(); i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns.get(i)));
+        }
+        return statement.executeInsert();
+    }
+
     @Override
     public Uri insert(Uri url, ContentValues initialValues) {
         final int callerUid = Binder.getCallingUid();
         final String callerPkg = getCallingPackage();
         long token = Binder.clearCallingIdentity();
         try {
-            Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg);
+            HashSet<Long> threadIds = new HashSet<>();
+            Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg, threadIds);
+            final int match = sURLMatcher.match(url);
+            if (insertUri != null) {
+                onWrite(match);
+            }
 
             // The raw table is used by the telephony layer for storing an sms before
             // sending out a notification that an sms has arrived. We don't want to notify
             // the default sms app of changes to this table.
-            final boolean notifyIfNotDefault = sURLMatcher.match(url) != SMS_RAW_MESSAGE;
-            notifyChange(notifyIfNotDefault, insertUri, callerPkg);
+            final boolean notifyIfNotDefault = match != SMS_RAW_MESSAGE;
+            notifyChange(notifyIfNotDefault, insertUri, callerPkg, threadIds);
             return insertUri;
         } finally {
             Binder.restoreCallingIdentity(token);
         }
     }
 
-    private Uri insertInner(Uri url, ContentValues initialValues, int callerUid, String callerPkg) {
+    /**
+     * Whether an insert into the given URI match goes into the sms table.
+     */
+    private static boolean isSmsTableMatch(int match) {
+        switch (match) {
+            case SMS_ALL:
+            case SMS_INBOX:
+            case SMS_FAILED:
+            case SMS_QUEUED:
+            case SMS_SENT:
+            case SMS_DRAFT:
+            case SMS_OUTBOX:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the message type of a message inserted through the given URI match.
+     */
+    private static int getInsertMessageType(int match, ContentValues initialValues) {
+        switch (match) {
+            case SMS_ALL:
+                Integer typeObj = initialValues.getAsInteger(Sms.TYPE);
+                if (typeObj != null) {
+                    return typeObj.intValue();
+                }
+                // default to inbox
+                return Sms.MESSAGE_TYPE_INBOX;
+            case SMS_INBOX:
+                return Sms.MESSAGE_TYPE_INBOX;
+            case SMS_FAILED:
+                return Sms.MESSAGE_TYPE_FAILED;
+            case SMS_QUEUED:
+                return Sms.MESSAGE_TYPE_QUEUED;
+            case SMS_SENT:
+                return Sms.MESSAGE_TYPE_SENT;
+            case SMS_DRAFT:
+                return Sms.MESSAGE_TYPE_DRAFT;
+            case SMS_OUTBOX:
+                return Sms.MESSAGE_TYPE_OUTBOX;
+            default:
+                return Sms.MESSAGE_TYPE_ALL;
+        }
+    }
+
+    /**
+     * @param threadIds if not null, the thread of the new message is added to it
+     */
+    private Uri insertInner(Uri url, ContentValues initialValues, int callerUid, String callerPkg,
+            Set<Long> threadIds) {
         ContentValues values;
         long rowID;
-        int type = Sms.MESSAGE_TYPE_ALL;
 
         int match = sURLMatcher.match(url);
         String table = TABLE_SMS;
 
         switch (match) {
             case SMS_ALL:
-                Integer typeObj = initialValues.getAsInteger(Sms.TYPE);
-                if (typeObj != null) {
-                    type = typeObj.intValue();
-                } else {
-                    // default to inbox
-                    type = Sms.MESSAGE_TYPE_INBOX;
-                }
-                break;
-
             case SMS_INBOX:
-                type = Sms.MESSAGE_TYPE_INBOX;
-                break;
-
             case SMS_FAILED:
-                type = Sms.MESSAGE_TYPE_FAILED;
-                break;
-
             case SMS_QUEUED:
-                type = Sms.MESSAGE_TYPE_QUEUED;
-                break;
-
             case SMS_SENT:
-                type = Sms.MESSAGE_TYPE_SENT;
-                break;
-
             case SMS_DRAFT:
-                type = Sms.MESSAGE_TYPE_DRAFT;
-                break;
-
             case SMS_OUTBOX:
-                type = Sms.MESSAGE_TYPE_OUTBOX;
                 break;
 
             case SMS_RAW_MESSAGE:
@@ -524,112 +687,33 @@ public class SmsProvider extends ContentProvider {
         SQLiteDatabase db = getWritableDatabase(match);
 
         if (table.equals(TABLE_SMS)) {
-            boolean addDate = false;
-            boolean addType = false;
-
-            // Make sure that the date and type are set
-            if (initialValues == null) {
-                values = new ContentValues(1);
-                addDate = true;
-                addType = true;
-            } else {
-                values = new ContentValues(initialValues);
-
-                if (!initialValues.containsKey(Sms.DATE)) {
-                    addDate = true;
-                }
-
-                if (!initialValues.containsKey(Sms.TYPE)) {
-                    addType = true;
-                }
-            }
-
-            if (addDate) {
-                values.put(Sms.DATE, new Long(System.currentTimeMillis()));
-            }
-
-            if (addType && (type != Sms.MESSAGE_TYPE_ALL)) {
-                values.put(Sms.TYPE, Integer.valueOf(type));
-            }
-
-            // thread_id
-            Long threadId = values.getAsLong(Sms.THREAD_ID);
-            String address = values.getAsString(Sms.ADDRESS);
-
-            if (((threadId == null) || (threadId == 0)) && (!TextUtils.isEmpty(address))) {
-                values.put(Sms.THREAD_ID, Threads.getOrCreateThreadId(
-                                   getContext(), address));
-            }
-
-            // If this message is going in as a draft, it should replace any
-            // other draft messages in the thread.  Just delete all draft
-            // messages with this thread ID.  We could add an OR REPLACE to
-            // the insert below, but we'd have to query to find the old _id
-            // to produce a conflict anyway.
-            if (values.getAsInteger(Sms.TYPE) == Sms.MESSAGE_TYPE_DRAFT) {
-                db.delete(TABLE_SMS, "thread_id=? AND type=?",
-                        new String[] { values.getAsString(Sms.THREAD_ID),
-                                       Integer.toString(Sms.MESSAGE_TYPE_DRAFT) });
-            }
-
-            if (type == Sms.MESSAGE_TYPE_INBOX) {
-                // Look up the person if not already filled in.
-                if ((values.getAsLong(Sms.PERSON) == null) && (!TextUtils.isEmpty(address))) {
-                    Cursor cursor = null;
-                    Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL,
-                            Uri.encode(address));
-                    try {
-                        cursor = getContext().getContentResolver().query(
-                                uri,
-                                CONTACT_QUERY_PROJECTION,
-                                null, null, null);
-
-                        if (cursor.moveToFirst()) {
-                            Long id = Long.valueOf(cursor.getLong(PERSON_ID_COLUMN));
-                            values.put(Sms.PERSON, id);
-                        }
-                    } catch (Exception ex) {
-                        Log.e(TAG, "insert: query contact uri " + uri + " caught ", ex);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                }
-            } else {
-                // Mark all non-inbox messages read.
-                values.put(Sms.READ, ONE);
-            }
-            if (ProviderUtil.shouldSetCreator(values, callerUid)) {
-                // Only SYSTEM or PHONE can set CREATOR
-                // If caller is not SYSTEM or PHONE, or SYSTEM or PHONE does not set CREATOR
-                // set CREATOR using the truth on caller.
-                // Note: Inferring package name from UID may include unrelated package names
-                values.put(Sms.CREATOR, callerPkg);
-            }
+            values = prepareSmsValues(initialValues, getInsertMessageType(match, initialValues),
+                    callerUid, callerPkg, null);
+            deleteOtherDrafts(db, values);
         } else {
             if (initialValues == null) {
                 values = new ContentValues(1);
             } else {
                 values = initialValues;
             }
+            if (match == SMS_NEW_THREAD_ID) {
+                MmsSmsDatabaseHelper.putAddressMinMatch(values,
+                        Telephony.CanonicalAddressesColumns.ADDRESS);
+            }
         }
 
         rowID = db.insert(table, "body", values);
+        if (match == SMS_NEW_THREAD_ID) {
+            ThreadIdCache.getInstance().invalidateAll();
+        }
 
-        // Don't use a trigger for updating the words table because of a bug
-        // in FTS3.  The bug is such that the call to get the last inserted
-        // row is incorrect.
-        if (table == TABLE_SMS) {
-            // Update the words table with a corresponding row.  The words table
-            // allows us to search for words quickly, without scanning the whole
-            // table;
-            ContentValues cv = new ContentValues();
-            cv.put(Telephony.MmsSms.WordsTable.ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("body"));
-            cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-            db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
+        if (table == TABLE_SMS && rowID > 0) {
+            // The new message was added to the pending search index log by a trigger.
+            scheduleSearchIndexing(match);
+            Long threadId = values.getAsLong(Sms.THREAD_ID);
+            if (threadIds != null && threadId != null) {
+                threadIds.add(threadId);
+            }
         }
         if (rowID > 0) {
             Uri uri = Uri.withAppendedPath(url, String.valueOf(rowID));
@@ -644,24 +728,132 @@ public class SmsProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * Build the values for a new row of the sms table: fill in the date, type and thread id,
+     * look up the sender in contacts and set the creator.
+     *
+     * @param threadIdCache if not null, thread ids already resolved for an address are reused
+     *                      from and added to this map
+     */
+    private ContentValues prepareSmsValues(ContentValues initialValues, int type, int callerUid,
+            String callerPkg, HashMap<String, Long> threadIdCache) {
+        ContentValues values;
+        boolean addDate = false;
+        boolean addType = false;
+
+        // Make sure that the date and type are set
+        if (initialValues == null) {
+            values = new ContentValues(1);
+            addDate = true;
+            addType = true;
+        } else {
+            values = new ContentValues(initialValues);
+
+            if (!initialValues.containsKey(Sms.DATE)) {
+                addDate = true;
+            }
+
+            if (!initialValues.containsKey(Sms.TYPE)) {
+                addType = true;
+            }
+        }
+
+        if (addDate) {
+            values.put(Sms.DATE, new Long(System.currentTimeMillis()));
+        }
+
+        if (addType && (type != Sms.MESSAGE_TYPE_ALL)) {
+            values.put(Sms.TYPE, Integer.valueOf(type));
+        }
+
+        // thread_id
+        Long threadId = values.getAsLong(Sms.THREAD_ID);
+        String address = values.getAsString(Sms.ADDRESS);
+
+        if (((threadId == null) || (threadId == 0)) && (!TextUtils.isEmpty(address))) {
+            threadId = threadIdCache != null ? threadIdCache.get(address) : null;
+            if (threadId == null) {
+                threadId = Threads.getOrCreateThreadId(getContext(), address);
+                if (threadIdCache != null) {
+                    threadIdCache.put(address, threadId);
+                }
+            }
+            values.put(Sms.THREAD_ID, threadId);
+        }
+        MmsSmsDatabaseHelper.putAddressMinMatch(values, Sms.ADDRESS);
+
+        if (type == Sms.MESSAGE_TYPE_INBOX) {
+            // Look up the person if not already filled in.
+            if ((values.getAsLong(Sms.PERSON) == null) && (!TextUtils.isEmpty(address))) {
+                Cursor cursor = null;
+                Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL,
+                        Uri.encode(address));
+                try {
+                    cursor = getContext().getContentResolver().query(
+                            uri,
+                            CONTACT_QUERY_PROJECTION,
+                            null, null, null);
+
+                    if (cursor.moveToFirst()) {
+                        Long id = Long.valueOf(cursor.getLong(PERSON_ID_COLUMN));
+                        values.put(Sms.PERSON, id);
+                    }
+                } catch (Exception ex) {
+                    Log.e(TAG, "insert: query contact uri " + uri + " caught ", ex);
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        } else {
+            // Mark all non-inbox messages read.
+            values.put(Sms.READ, ONE);
+        }
+        if (ProviderUtil.shouldSetCreator(values, callerUid)) {
+            // Only SYSTEM or PHONE can set CREATOR
+            // If caller is not SYSTEM or PHONE, or SYSTEM or PHONE does not set CREATOR
+            // set CREATOR using the truth on caller.
+            // Note: Inferring package name from UID may include unrelated package names
+            values.put(Sms.CREATOR, callerPkg);
+        }
+        return values;
+    }
+
+    /**
+     * If this message is going in as a draft, it should replace any
+     * other draft messages in the thread.  Just delete all draft
+     * messages with this thread ID.  We could add an OR REPLACE to
+     * the insert, but we'd have to query to find the old _id
+     * to produce a conflict anyway.
+     */
+    private static void deleteOtherDrafts(SQLiteDatabase db, ContentValues values) {
+        Integer type = values.getAsInteger(Sms.TYPE);
+        if (type != null && type == Sms.MESSAGE_TYPE_DRAFT) {
+            db.delete(TABLE_SMS, "thread_id=? AND type=?",
+                    new String[] { values.getAsString(Sms.THREAD_ID),
+                                   Integer.toString(Sms.MESSAGE_TYPE_DRAFT) });
+        }
+    }
+
     @Override
     public int delete(Uri url, String where, String[] whereArgs) {
         int count;
         int match = sURLMatcher.match(url);
         SQLiteDatabase db = getWritableDatabase(match);
         boolean notifyIfNotDefault = true;
+        Set<Long> threadIds = Collections.emptySet();
         switch (match) {
             case SMS_ALL:
-                count = db.delete(TABLE_SMS, where, whereArgs);
-                if (count != 0) {
-                    // Don't update threads unless something changed.
-                    MmsSmsDatabaseHelper.updateThreads(db, where, whereArgs);
-                }
+                threadIds = NotificationDispatcher.getThreadIds(db, TABLE_SMS, where, whereArgs);
+                count = MmsSmsDatabaseHelper.deleteSms(db, where, whereArgs, null);
                 break;
 
             case SMS_ALL_ID:
                 try {
                     int message_id = Integer.parseInt(url.getPathSegments().get(0));
+                    threadIds = NotificationDispatcher.getThreadIds(db, TABLE_SMS,
+                            "_id=" + message_id, null);
                     count = MmsSmsDatabaseHelper.deleteOneSms(db, message_id);
                 } catch (Exception e) {
                     throw new IllegalArgumentException(
@@ -681,9 +873,9 @@ public class SmsProvider extends ContentProvider {
                 }
 
                 // delete the messages from the sms table
+                threadIds = Collections.singleton((long) threadID);
                 where = DatabaseUtils.concatenateWhere("thread_id=" + threadID, where);
-                count = db.delete(TABLE_SMS, where, whereArgs);
-                MmsSmsDatabaseHelper.updateThread(db, threadID);
+                count = MmsSmsDatabaseHelper.deleteSms(db, where, whereArgs, (long) threadID);
                 break;
 
             case SMS_RAW_MESSAGE:
@@ -718,7 +910,8 @@ public class SmsProvider extends ContentProvider {
         }
 
         if (count > 0) {
-            notifyChange(notifyIfNotDefault, url, getCallingPackage());
+            onWrite(match);
+            notifyChange(notifyIfNotDefault, url, getCallingPackage(), threadIds);
         }
         return count;
     }
@@ -753,6 +946,8 @@ public class SmsProvider extends ContentProvider {
         int count = 0;
         String table = TABLE_SMS;
         String extraWhere = null;
+        // The thread of the updated messages, if given by the URI.
+        Long conversationThreadId = null;
         boolean notifyIfNotDefault = true;
         int match = sURLMatcher.match(url);
         SQLiteDatabase db = getWritableDatabase(match);
@@ -793,7 +988,7 @@ public class SmsProvider extends ContentProvider {
                 String threadId = url.getPathSegments().get(1);
 
                 try {
-                    Integer.parseInt(threadId);
+                    conversationThreadId = (long) Integer.parseInt(threadId);
                 } catch (Exception ex) {
                     Log.e(TAG, "Bad conversation thread id: " + threadId);
                     break;
@@ -817,29 +1012,66 @@ public class SmsProvider extends ContentProvider {
             Log.w(TAG, callerPkg + " tries to update CREATOR");
             values.remove(Sms.CREATOR);
         }
+        if (table.equals(TABLE_SMS)) {
+            MmsSmsDatabaseHelper.putAddressMinMatch(values, Sms.ADDRESS);
+        }
 
         where = DatabaseUtils.concatenateWhere(where, extraWhere);
+        Set<Long> threadIds = Collections.emptySet();
+        if (table.equals(TABLE_SMS)) {
+            // The threads the messages are in before the update, and the one they may be moved
+            // to.
+            if (conversationThreadId != null) {
+                threadIds = new HashSet<>();
+                threadIds.add(conversationThreadId);
+            } else {
+                threadIds = NotificationDispatcher.getThreadIds(db, table, where, whereArgs);
+            }
+            Long newThreadId = values.getAsLong(Sms.THREAD_ID);
+            if (newThreadId != null) {
+                threadIds.add(newThreadId);
+            }
+        }
         count = db.update(table, values, where, whereArgs);
 
         if (count > 0) {
+            onWrite(match);
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "update " + url + " succeeded");
             }
-            notifyChange(notifyIfNotDefault, url, callerPkg);
+            notifyChange(notifyIfNotDefault, url, callerPkg, threadIds);
         }
         return count;
     }
 
-    private void notifyChange(boolean notifyIfNotDefault, Uri uri, final String callingPackage) {
-        final Context context = getContext();
-        ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(Uri.parse("content://mms-sms/conversations/"), null, true,
-                UserHandle.USER_ALL);
+    /**
+     * Notify the change of the given URI and of the conversations of the given threads.
+     *
+     * @param threadIds the threads of the changed messages, see
+     *                  {@link NotificationDispatcher#notifyThreadsChange}
+     */
+    private void notifyChange(boolean notifyIfNotDefault, Uri uri, final String callingPackage,
+            Collection<Long> threadIds) {
+        NotificationDispatcher dispatcher = getNotificationDispatcher();
+        dispatcher.notifyChange(uri);
+        dispatcher.notifyThreadsChange(threadIds);
         if (notifyIfNotDefault) {
-            ProviderUtil.notifyIfNotDefaultSmsApp(uri, callingPackage, context);
+            dispatcher.notifyIfNotDefaultSmsApp(uri, callingPackage);
         }
+        dispatcher.dispatch();
+    }
+
+    /**
+     * Returns the dispatcher of the change notifications, shared with the other message
+     * providers.
+     */
+    NotificationDispatcher getNotificationDispatcher() {
+        return NotificationDispatcher.getInstance(getContext());
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        getNotificationDispatcher().dump(writer);
     }
 
     // Db open helper for tables stored in CE(Credential Encrypted) storage.
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Copy of the rows of a table into a new table with another schema, for the table rebuilds of
+ * the database upgrades. The copy is a single INSERT ... SELECT: each column of the new table is
+ * either copied from the old table, with the conversion of its type, or computed by an SQL
+ * expression over the old columns. The columns that are not mapped, or are missing from the old
+ * table, get the default of the new table.
+ *
+ * The values that need Java code are computed afterwards, row by row, by a {@link RowFixup}
+ * from the rows of the old table. A row that violates a constraint of the new table is skipped.
+ */
+final class TableMigration {
+    private static final String TAG = "TableMigration";
+
+    // The defaults that are SQL literals as written: numbers, NULL and the current time keywords.
+    private static final Pattern SQL_LITERAL = Pattern.compile(
+            "[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?|0[xX][0-9a-fA-F]+|NULL"
+                    + "|CURRENT_(TIME|DATE|TIMESTAMP)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Computes values of a copied row that cannot be expressed in SQL.
+     */
+    interface RowFixup {
+        /**
+         * Returns the values to update in the copied row, or null to leave it as is.
+         *
+         * @param row the row of the old table, with those of the columns given to
+         *        {@link #fixup(String[], RowFixup)} that exist in the old table
+         */
+        ContentValues fixup(Cursor row);
+    }
+
+    // The steps run by this process, for dump.
+    private static final List<String> sSteps = new ArrayList<>();
+
+    private final String mName;
+    private final String mFrom;
+    private final String mTo;
+    // Kind of each copied column. Insertion order is the column order of the INSERT.
+    private final Map<String, Integer> mCopies = new LinkedHashMap<>();
+    private final Map<String, String> mExpressions = new LinkedHashMap<>();
+    private String mOrderBy;
+    private String[] mFixupColumns;
+    private RowFixup mFixup;
+
+    private static final int COPY_TEXT = 0;
+    private static final int COPY_INT = 1;
+    private static final int COPY_BLOB = 2;
+
+    /**
+     * @param name the name of the step, for the logs
+     * @param from the table to copy from
+     * @param to the new table, already created
+     */
+    TableMigration(String name, String from, String to) {
+        mName = name;
+        mFrom = from;
+        mTo = to;
+    }
+
+    /**
+     * Copies text columns. A null or empty value gets the default.
+     */
+    TableMigration copyText(String... columns) {
+        for (String column : columns) {
+            mCopies.put(column, COPY_TEXT);
+        }
+        return this;
+    }
+
+    /**
+     * Copies integer columns. A value that is not an integer gets the default.
+     */
+    TableMigration copyInt(String... columns) {
+        for (String column : columns) {
+            mCopies.put(column, COPY_INT);
+        }
+        return this;
+    }
+
+    /**
+     * Copies blob columns. A null value gets the default.
+     */
+    TableMigration copyBlob(String... columns) {
+        for (String column : columns) {
+            mCopies.put(column, COPY_BLOB);
+        }
+        return this;
+    }
+
+    /**
+     * Sets a column to an SQL expression over the columns of the old table. A null result gets
+     * the default.
+     */
+    TableMigration set(String column, String expression) {
+        mExpressions.put(column, expression);
+        return this;
+    }
+
+    /**
+     * Copies the rows in the given order, e.g. to keep the order of the _ids.
+     */
+    TableMigration orderBy(String orderBy) {
+        mOrderBy = orderBy;
+        return this;
+    }
+
+    /**
+     * Runs the fixup on every row of the old table and updates the copied row with the result.
+     * The rows are matched on their _id, which must be copied.
+     */
+    TableMigration fixup(String[] columns, RowFixup fixup) {
+        mFixupColumns = columns;
+        mFixup = fixup;
+        return this;
+    }
+
+    /**
+     * Returns the columns of the table with their default value as an SQL expression, "NULL"
+     * when there is none.
+     */
+    static Map<String, String> getColumns(SQLiteDatabase db, String table) {
+        Map<String, String> columns = new HashMap<>();
+        try (Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int nameIndex = c.getColumnIndexOrThrow("name");
+            int defaultIndex = c.getColumnIndexOrThrow("dflt_value");
+            while (c.moveToNext()) {
+                columns.put(c.getString(nameIndex), toSqlDefault(c.getString(defaultIndex)));
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the default of a column, as given by table_info, as an SQL expression. The default
+     * is returned as it was written in the CREATE TABLE, so a bare word such as the IP of
+     * "protocol TEXT DEFAULT IP" is a string for SQLite there but a column name in a SELECT.
+     */
+    @VisibleForTesting
+    static String toSqlDefault(String defaultValue) {
+        if (defaultValue == null) {
+            return "NULL";
+        }
+        if (defaultValue.startsWith("'") || defaultValue.startsWith("(")
+                || SQL_LITERAL.matcher(defaultValue).matches()) {
+            return defaultValue;
+        }
+        return DatabaseUtils.sqlEscapeString(defaultValue);
+    }
+
+    /**
+     * Copies the rows.
+     *
+     * @return the number of rows copied
+     */
+    int run(SQLiteDatabase db) {
+        long start = SystemClock.elapsedRealtime();
+        Map<String, String> fromColumns = getColumns(db, mFrom);
+        Map<String, String> toColumns = getColumns(db, mTo);
+
+        List<String> columns = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (Map.Entry<String, Integer> copy : mCopies.entrySet()) {
+            String column = copy.getKey();
+            if (!fromColumns.containsKey(column) || !toColumns.containsKey(column)) {
+                continue;
+            }
+            String defaultValue = toColumns.get(column);
+            columns.add(column);
+            switch (copy.getValue()) {
+                case COPY_TEXT:
+                    values.add("COALESCE(NULLIF(" + column + ", ''), " + defaultValue + ")");
+                    break;
+                case COPY_INT:
+                    values.add("CASE WHEN typeof(" + column + ") = 'integer' THEN " + column
+                            + " WHEN typeof(" + column + ") = 'text'"
+                            + " AND CAST(CAST(" + column + " AS INTEGER) AS TEXT) = " + column
+                            + " THEN CAST(" + column + " AS INTEGER)"
+                            + " ELSE " + defaultValue + " END");
+                    break;
+                default:
+                    values.add("COALESCE(" + column + ", " + defaultValue + ")");
+                    break;
+            }
+        }
+        for (Map.Entry<String, String> expression : mExpressions.entrySet()) {
+            String column = expression.getKey();
+            columns.add(column);
+            values.add("COALESCE(" + expression.getValue() + ", " + toColumns.get(column) + ")");
+        }
+
+        String sql = "INSERT OR IGNORE INTO " + mTo + " (" + TextUtils.join(", ", columns)
+                + ") SELECT " + TextUtils.join(", ", values) + " FROM " + mFrom
+                + (mOrderBy != null ? " ORDER BY " + mOrderBy : "");
+        int rows;
+        try (SQLiteStatement statement = db.compileStatement(sql)) {
+            rows = statement.executeUpdateDelete();
+        }
+        long copyMs = SystemClock.elapsedRealtime() - start;
+
+        int fixed = 0;
+        if (mFixup != null) {
+            List<String> projection = new ArrayList<>();
+            projection.add("_id");
+            for (String column : mFixupColumns) {
+                if (fromColumns.containsKey(column)) {
+                    projection.add(column);
+                }
+            }
+            try (Cursor c = db.query(mFrom, projection.toArray(new String[projection.size()]),
+                    null, null, null, null, null)) {
+                int idIndex = c.getColumnIndexOrThrow("_id");
+                while (c.moveToNext()) {
+                    ContentValues update = mFixup.fixup(c);
+                    if (update != null && update.size() > 0) {
+                        db.update(mTo, update, "_id=?", new String[]{c.getString(idIndex)});
+                        fixed++;
+                    }
+                }
+            }
+        }
+
+        String step = mName + ": " + rows + " rows copied in " + copyMs + " ms"
+                + (mFixup != null ? ", " + fixed + " fixed in "
+                        + (SystemClock.elapsedRealtime() - start - copyMs) + " ms" : "");
+        Log.d(TAG, step);
+        synchronized (sSteps) {
+            sSteps.add(step);
+        }
+        return rows;
+    }
+
+    static void dump(PrintWriter writer) {
+        synchronized (sSteps) {
+            if (sSteps.isEmpty()) {
+                return;
+            }
+            writer.println("Table migrations:");
+            for (String step : sSteps) {
+                writer.println("  " + step);
+            }
+        }
+    }
+}
@@ -203,12 +203,6 @@ public class TelephonyBackupAgent extends BackupAgent {
             Telephony.Sms.READ
     };
 
-    // Columns to fetch recepients of SMS.
-    private static final String[] SMS_RECIPIENTS_PROJECTION = {
-            Telephony.Threads._ID,
-            Telephony.Threads.RECIPIENT_IDS
-    };
-
     // Columns from MMS database for backup/restore.
     @VisibleForTesting
     static final String[] MMS_PROJECTION = new String[] {
@@ -1318,105 +1312,55 @@ public class TelephonyBackupAgent extends BackupAgent {
         }
 
         if (!mCacheRecipientsByThread.containsKey(threadId)) {
-            final String spaceSepIds = getRawRecipientIdsForThread(threadId);
-            if (!TextUtils.isEmpty(spaceSepIds)) {
-                mCacheRecipientsByThread.put(threadId, getAddresses(spaceSepIds));
-            } else {
-                mCacheRecipientsByThread.put(threadId, new ArrayList<String>());
-            }
+            mCacheRecipientsByThread.put(threadId, getAddresses(threadId));
         }
 
         return mCacheRecipientsByThread.get(threadId);
     }
 
     @VisibleForTesting
-    static final Uri ALL_THREADS_URI =
-            Telephony.Threads.CONTENT_URI.buildUpon().
-                    appendQueryParameter("simple", "true").build();
-    private static final int RECIPIENT_IDS  = 1;
+    static final Uri CONVERSATIONS_URI = Uri.parse("content://mms-sms/conversations");
+    private static final String[] ADDRESS_PROJECTION =
+            new String[] { Telephony.CanonicalAddressesColumns.ADDRESS };
 
-    // Copied from packages/apps/Messaging/src/com/android/messaging/sms/MmsUtils.java.
+    // Returns the addresses of the recipients of the thread, all fetched with one query.
     // NOTE: There are phones on which you can't get the recipients from the thread id for SMS
     // until you have a message in the conversation!
-    private String getRawRecipientIdsForThread(final long threadId) {
+    private List<String> getAddresses(final long threadId) {
+        final List<String> numbers = new ArrayList<String>();
         if (threadId <= 0) {
-            return null;
+            return numbers;
         }
-        final Cursor thread = mContentResolver.query(
-                ALL_THREADS_URI,
-                SMS_RECIPIENTS_PROJECTION, "_id=?", new String[]{String.valueOf(threadId)}, null);
-        if (thread != null) {
-            try {
-                if (thread.moveToFirst()) {
-                    // recipientIds will be a space-separated list of ids into the
-                    // canonical addresses table.
-                    return thread.getString(RECIPIENT_IDS);
-                }
-            } finally {
-                thread.close();
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(CONVERSATIONS_URI.buildUpon()
+                            .appendPath(String.valueOf(threadId)).appendPath("addresses").build(),
+                    ADDRESS_PROJECTION, null, null, null);
+        } catch (final Exception e) {
+            if (DEBUG) {
+                Log.e(TAG, "getAddresses: query failed for thread " + threadId, e);
             }
         }
-        return null;
-    }
-
-    @VisibleForTesting
-    static final Uri SINGLE_CANONICAL_ADDRESS_URI =
-            Uri.parse("content://mms-sms/canonical-address");
-
-    // Copied from packages/apps/Messaging/src/com/android/messaging/sms/MmsUtils.java.
-    private List<String> getAddresses(final String spaceSepIds) {
-        final List<String> numbers = new ArrayList<String>();
-        final String[] ids = spaceSepIds.split(" ");
-        for (final String id : ids) {
-            long longId;
-
-            try {
-                longId = Long.parseLong(id);
-                if (longId < 0) {
-                    if (DEBUG) {
-                        Log.e(TAG, "getAddresses: invalid id " + longId);
-                    }
-                    continue;
-                }
-            } catch (final NumberFormatException ex) {
-                if (DEBUG) {
-                    Log.e(TAG, "getAddresses: invalid id. " + ex, ex);
-                }
-                // skip this id
-                continue;
-            }
-
-            // TODO: build a single query where we get all the addresses at once.
-            Cursor c = null;
+        if (c != null) {
             try {
-                c = mContentResolver.query(
-                        ContentUris.withAppendedId(SINGLE_CANONICAL_ADDRESS_URI, longId),
-                        null, null, null, null);
-            } catch (final Exception e) {
-                if (DEBUG) {
-                    Log.e(TAG, "getAddresses: query failed for id " + longId, e);
-                }
-            }
-            if (c != null) {
-                try {
-                    if (c.moveToFirst()) {
-                        final String number = c.getString(0);
-                        if (!TextUtils.isEmpty(number)) {
-                            numbers.add(number);
-                        } else {
-                            if (DEBUG) {
-                                Log.d(TAG, "Canonical MMS/SMS address is empty for id: " + longId);
-                            }
+                while (c.moveToNext()) {
+                    final String number = c.getString(0);
+                    if (!TextUtils.isEmpty(number)) {
+                        numbers.add(number);
+                    } else {
+                        if (DEBUG) {
+                            Log.d(TAG, "Canonical MMS/SMS address is empty for thread: "
+                                    + threadId);
                         }
                     }
-                } finally {
-                    c.close();
                 }
+            } finally {
+                c.close();
             }
         }
         if (numbers.isEmpty()) {
             if (DEBUG) {
-                Log.d(TAG, "No MMS addresses found from ids string [" + spaceSepIds + "]");
+                Log.d(TAG, "No MMS addresses found for thread " + threadId);
             }
         }
         return numbers;
@@ -70,6 +70,7 @@ import static android.provider.Telephony.Carriers.USER_VISIBLE;
 import static android.provider.Telephony.Carriers.WAIT_TIME_RETRY;
 import static android.provider.Telephony.Carriers._ID;
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentProvider;
 import android.content.ContentResolver;
@@ -77,6 +78,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
@@ -84,6 +86,7 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
@@ -94,26 +97,31 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Environment;
 import android.os.FileUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Telephony;
+import android.telephony.CarrierConfigManager;
 import android.telephony.ServiceState;
-import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.data.ApnSetting;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
 import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.IApnSourceService;
 import com.android.internal.telephony.PhoneConstants;
+import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.dataconnection.ApnSettingUtils;
 import com.android.internal.telephony.uicc.IccRecords;
 import com.android.internal.telephony.uicc.UiccController;
@@ -122,12 +130,13 @@ import com.android.internal.util.XmlUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -136,6 +145,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.CRC32;
 
 public class TelephonyProvider extends ContentProvider
@@ -145,7 +158,7 @@ public class TelephonyProvider extends ContentProvider
     private static final boolean DBG = true;
     private static final boolean VDBG = false; // STOPSHIP if true
 
-    private static final int DATABASE_VERSION = 38 << 16;
+    private static final int DATABASE_VERSION = 39 << 16;
     private static final int URL_UNKNOWN = 0;
     private static final int URL_TELEPHONY = 1;
     private static final int URL_CURRENT = 2;
@@ -181,6 +194,8 @@ public class TelephonyProvider extends ContentProvider
     private static final String SIMINFO_TABLE = "siminfo";
     private static final String SIMINFO_TABLE_TMP = "siminfo_tmp";
 
+    // Shared preferences that held the preferred APNs before the preferred_apn table, only read
+    // to migrate them.
     private static final String PREF_FILE_APN = "preferred-apn";
     private static final String COLUMN_APN_ID = "apn_id";
     private static final String EXPLICIT_SET_CALLED = "explicit_set_called";
@@ -196,6 +211,8 @@ public class TelephonyProvider extends ContentProvider
 
     private static final String PREF_FILE = "telephonyprovider";
     private static final String APN_CONF_CHECKSUM = "apn_conf_checksum";
+    // The APNs parsed from the xml files, see ApnSnapshot.
+    private static final String APN_SNAPSHOT_FILE = "apns.snapshot";
 
     private static final String PARTNER_APNS_PATH = "etc/apns-conf.xml";
     private static final String OEM_APNS_PATH = "telephony/apns-conf.xml";
@@ -228,6 +245,10 @@ public class TelephonyProvider extends ContentProvider
             EDITED_STATUS + "=" + CARRIER_DELETED_BUT_PRESENT_IN_XML;
     private static final String IS_NOT_CARRIER_DELETED_BUT_PRESENT_IN_XML =
             EDITED_STATUS + "!=" + CARRIER_DELETED_BUT_PRESENT_IN_XML;
+    // Excludes the entries marked deleted from the queries of the carriers table.
+    private static final String IS_NOT_DELETED = IS_NOT_USER_DELETED + " and "
+            + IS_NOT_USER_DELETED_BUT_PRESENT_IN_XML + " and " + IS_NOT_CARRIER_DELETED + " and "
+            + IS_NOT_CARRIER_DELETED_BUT_PRESENT_IN_XML;
     private static final String IS_OWNED_BY_DPC = OWNED_BY + "=" + OWNED_BY_DPC;
     private static final String IS_NOT_OWNED_BY_DPC = OWNED_BY + "!=" + OWNED_BY_DPC;
 
@@ -249,6 +270,59 @@ public class TelephonyProvider extends ContentProvider
 
     private boolean mManagedApnEnforced;
 
+    // The APN update run in the background by onCreate on a build update, see
+    // waitForApnDbReady(). Null when there is none.
+    private static final long APN_DB_READY_TIMEOUT_MS = 20000;
+    private static HandlerThread sStartupThread;
+    @VisibleForTesting
+    volatile CountDownLatch mApnDbReady;
+
+    @VisibleForTesting
+    final QueryTemplateCache mQueryTemplates = new QueryTemplateCache();
+
+    private final PreferredApnStore mPreferredApnStore =
+            new PreferredApnStore(CARRIERS_UNIQUE_FIELDS);
+
+    // The carriers table, with the preferred APNs and the managed APN state, and the siminfo
+    // table each have their own lock, so that an APN query does not wait for a siminfo update
+    // and the other way around. Queries take the read lock and run in parallel, writes take
+    // the write lock of their table.
+    private final ReentrantReadWriteLock mCarriersLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock mSimInfoLock = new ReentrantReadWriteLock();
+
+    // The resolved sim_apn_list queries. Invalidated by every write of this provider, siminfo
+    // included since it tracks the subscriptions, and by the SIM and subscription changes.
+    private final ApnListCache mApnListCache = new ApnListCache();
+
+    // The outcome of checkPermission() per calling UID. It depends on the packages of the UID
+    // and on their carrier privileges, which come from the SIM and the carrier config.
+    @GuardedBy("mPermissionDecisions")
+    private final SparseBooleanArray mPermissionDecisions = new SparseBooleanArray();
+    @GuardedBy("mPermissionDecisions")
+    private long mPermissionGeneration;
+
+    @VisibleForTesting
+    final BroadcastReceiver mCacheInvalidationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (VDBG) log("onReceive: " + intent.getAction() + ", invalidating the caches");
+            invalidatePermissionDecisions();
+            if (intent.getData() == null) {
+                // Not a package change.
+                mApnListCache.invalidate();
+            }
+        }
+    };
+
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+        @Override
+        public void onSubscriptionsChanged() {
+            invalidatePermissionDecisions();
+            mApnListCache.invalidate();
+        }
+    };
+
     static {
         // Columns not included in UNIQUE constraint: name, current, edited, user, server, password,
         // authtype, type, protocol, roaming_protocol, sub_id, modem_cognitive, max_conns,
@@ -339,6 +413,11 @@ public class TelephonyProvider extends ContentProvider
                 "UNIQUE (" + TextUtils.join(", ", CARRIERS_UNIQUE_FIELDS) + "));";
     }
 
+    @VisibleForTesting
+    public static String getStringForPreferredApnTableCreation(String tableName) {
+        return PreferredApnStore.getStringForTableCreation(tableName, CARRIERS_UNIQUE_FIELDS);
+    }
+
     @VisibleForTesting
     public static String getStringForSimInfoTableCreation(String tableName) {
         return "CREATE TABLE " + tableName + "("
@@ -477,6 +556,9 @@ public class TelephonyProvider extends ContentProvider
     public static class DatabaseHelper extends SQLiteOpenHelper {
         // Context to access resources with
         private Context mContext;
+        // Whether the preferred APNs were moved out of the shared preferences by onUpgrade. The
+        // preferences are only cleared in onOpen, once the upgrade transaction has committed.
+        private boolean mPreferredApnsMigrated;
 
         /**
          * DatabaseHelper helper class for loading apns into a database.
@@ -488,7 +570,9 @@ public class TelephonyProvider extends ContentProvider
             mContext = context;
             // Memory optimization - close idle connections after 30s of inactivity
             setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MS);
-            setWriteAheadLoggingEnabled(false);
+            // Write-ahead logging, so that the queries, which only take the read lock of their
+            // table, also run in parallel in the database on the connection pool.
+            setWriteAheadLoggingEnabled(true);
         }
 
         @VisibleForTesting
@@ -521,6 +605,7 @@ public class TelephonyProvider extends ContentProvider
             if (DBG) log("dbh.onCreate:+ db=" + db);
             createSimInfoTable(db, SIMINFO_TABLE);
             createCarriersTable(db, CARRIERS_TABLE);
+            createPreferredApnTable(db, PreferredApnStore.TABLE);
             // if CarrierSettings app is installed, we expect it to do the initializiation instead
             if (apnSourceServiceExists(mContext)) {
                 log("dbh.onCreate: Skipping apply APNs from xml.");
@@ -553,6 +638,23 @@ public class TelephonyProvider extends ContentProvider
                     createCarriersTable(db, CARRIERS_TABLE);
                 }
             }
+            try {
+                db.query(PreferredApnStore.TABLE, null, null, null, null, null, null);
+                if (DBG) log("dbh.onOpen: ok, queried table=" + PreferredApnStore.TABLE);
+            } catch (SQLiteException e) {
+                loge("Exception " + PreferredApnStore.TABLE + " e=" + e);
+                if (e.getMessage().startsWith("no such table")) {
+                    createPreferredApnTable(db, PreferredApnStore.TABLE);
+                }
+            }
+            if (mPreferredApnsMigrated) {
+                mPreferredApnsMigrated = false;
+                mContext.getSharedPreferences(PREF_FILE_APN, Context.MODE_PRIVATE)
+                        .edit().clear().apply();
+                mContext.getSharedPreferences(PREF_FILE_FULL_APN, Context.MODE_PRIVATE)
+                        .edit().clear().apply();
+                if (DBG) log("dbh.onOpen: cleared the migrated preferred APN preferences");
+            }
             if (VDBG) log("dbh.onOpen:- db=" + db);
         }
 
@@ -569,6 +671,77 @@ public class TelephonyProvider extends ContentProvider
             if (DBG) log("dbh.createCarriersTable:-");
         }
 
+        private void createPreferredApnTable(SQLiteDatabase db, String tableName) {
+            if (DBG) log("dbh.createPreferredApnTable: " + tableName);
+            db.execSQL(getStringForPreferredApnTableCreation(tableName));
+            if (DBG) log("dbh.createPreferredApnTable:-");
+        }
+
+        /**
+         * Copy the preferred APNs from the shared preferences they were kept in before into the
+         * preferred_apn table. The preferences are cleared by onOpen, so that they are still
+         * there to migrate again if the upgrade is rolled back.
+         */
+        private void migratePreferredApns(SQLiteDatabase db) {
+            SharedPreferences spApnId = mContext.getSharedPreferences(PREF_FILE_APN,
+                    Context.MODE_PRIVATE);
+            SharedPreferences spApn = mContext.getSharedPreferences(PREF_FILE_FULL_APN,
+                    Context.MODE_PRIVATE);
+            Map<Integer, ContentValues> rows = new HashMap<>();
+            for (Map.Entry<String, ?> entry : spApnId.getAll().entrySet()) {
+                String key = entry.getKey();
+                try {
+                    if (key.startsWith(COLUMN_APN_ID)) {
+                        int subId = Integer.parseInt(key.substring(COLUMN_APN_ID.length()));
+                        getPreferredApnRow(rows, subId).put(PreferredApnStore.APN_ID,
+                                (Long) entry.getValue());
+                    } else if (key.startsWith(EXPLICIT_SET_CALLED)) {
+                        int subId = Integer.parseInt(
+                                key.substring(EXPLICIT_SET_CALLED.length()));
+                        getPreferredApnRow(rows, subId).put(PreferredApnStore.EXPLICIT_SET,
+                                (Boolean) entry.getValue() ? 1 : 0);
+                    }
+                } catch (NumberFormatException | ClassCastException e) {
+                    loge("Skipping over key " + key + " due to exception " + e);
+                }
+            }
+            for (Map.Entry<String, ?> entry : spApn.getAll().entrySet()) {
+                String key = entry.getKey();
+                if (!key.startsWith(DB_VERSION_KEY)) {
+                    continue;
+                }
+                try {
+                    int subId = Integer.parseInt(key.substring(DB_VERSION_KEY.length()));
+                    ContentValues row = getPreferredApnRow(rows, subId);
+                    row.put(PreferredApnStore.VERSION,
+                            Integer.parseInt((String) entry.getValue()));
+                    for (String field : CARRIERS_UNIQUE_FIELDS) {
+                        row.put(field, spApn.getString(field + subId, null));
+                    }
+                } catch (NumberFormatException | ClassCastException e) {
+                    loge("Skipping over key " + key + " due to exception " + e);
+                }
+            }
+
+            for (ContentValues row : rows.values()) {
+                db.insertWithOnConflict(PreferredApnStore.TABLE, null, row,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            if (DBG) log("dbh.migratePreferredApns: migrated " + rows.size() + " subscriptions");
+            mPreferredApnsMigrated = true;
+        }
+
+        private static ContentValues getPreferredApnRow(Map<Integer, ContentValues> rows,
+                int subId) {
+            ContentValues row = rows.get(subId);
+            if (row == null) {
+                row = new ContentValues();
+                row.put(PreferredApnStore.SUB_ID, subId);
+                rows.put(subId, row);
+            }
+            return row;
+        }
+
         private long getChecksum(File file) {
             long checksum = -1;
             try {
@@ -584,9 +757,12 @@ public class TelephonyProvider extends ContentProvider
             // resources to the total checksum so that apns in an RRO update is not missed.
             try (InputStream inputStream = mContext.getResources().
                         openRawResource(com.android.internal.R.xml.apns)) {
-                byte[] array = toByteArray(inputStream);
                 CRC32 c = new CRC32();
-                c.update(array);
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    c.update(buffer, 0, bytesRead);
+                }
                 checksum += c.getValue();
                 if (DBG) log("Checksum after adding resource is " + checksum);
             } catch (IOException | Resources.NotFoundException e) {
@@ -595,22 +771,12 @@ public class TelephonyProvider extends ContentProvider
             return checksum;
         }
 
-        private static byte[] toByteArray(InputStream input) throws IOException {
-            byte[] buffer = new byte[128];
-            int bytesRead;
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            while ((bytesRead = input.read(buffer)) != -1) {
-                output.write(buffer, 0, bytesRead);
-            }
-            return output.toByteArray();
-        }
-
         private long getApnConfChecksum() {
             SharedPreferences sp = mContext.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
             return sp.getLong(APN_CONF_CHECKSUM, -1);
         }
 
-        private void setApnConfChecksum(long checksum) {
+        void setApnConfChecksum(long checksum) {
             SharedPreferences sp = mContext.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
             SharedPreferences.Editor editor = sp.edit();
             editor.putLong(APN_CONF_CHECKSUM, checksum);
@@ -635,7 +801,8 @@ public class TelephonyProvider extends ContentProvider
          * not exist.
          * @return true if DB should be updated with new conf file, false otherwise
          */
-        private boolean apnDbUpdateNeeded() {
+        @VisibleForTesting
+        boolean apnDbUpdateNeeded() {
             File confFile = getApnConfFile();
             long newChecksum = getChecksum(confFile);
             long oldChecksum = getApnConfChecksum();
@@ -652,8 +819,113 @@ public class TelephonyProvider extends ContentProvider
          *  This function adds APNs from xml file(s) to db. The db may or may not be empty to begin
          *  with.
          */
-        private void initDatabase(SQLiteDatabase db) {
+        @VisibleForTesting
+        void initDatabase(SQLiteDatabase db) {
+            initDatabase(db, null, readApnFiles());
+        }
+
+        /**
+         * Refresh the APNs from the xml files, applying to the unedited entries only the
+         * differences with the files: the entries that are unchanged are not written and keep
+         * their _id, the changed ones are replaced in place, the new ones are inserted and the
+         * ones no longer in the files are deleted. The edited entries are merged with the files
+         * as in {@link #initDatabase(SQLiteDatabase)}.
+         */
+        @VisibleForTesting
+        void updateDatabase(SQLiteDatabase db) {
+            updateDatabase(db, readApnFiles());
+        }
+
+        void updateDatabase(SQLiteDatabase db, ApnFiles apnFiles) {
+            ApnDiff diff = loadUneditedApns(db);
+            initDatabase(db, diff, apnFiles);
+            log("dbh.updateDatabase: unchanged=" + diff.unchanged + " updated=" + diff.updated
+                    + " inserted=" + diff.inserted + " deleted=" + diff.deleted);
+        }
+
+        /**
+         * The APNs of the xml files, to be loaded once, with the checksum of the files.
+         */
+        static final class ApnFiles {
+            final long checksum;
+            final List<ContentValues> rows;
+
+            ApnFiles(long checksum, List<ContentValues> rows) {
+                this.checksum = checksum;
+                this.rows = rows;
+            }
+        }
+
+        /**
+         * Reads the APNs of the xml files, from the snapshot if the files did not change since it
+         * was written. Does not access the database.
+         */
+        ApnFiles readApnFiles() {
+            File confFile = getApnConfFile();
+            long checksum = getChecksum(confFile);
+
+            File snapshotFile = new File(mContext.getNoBackupFilesDir(), APN_SNAPSHOT_FILE);
+            List<ContentValues> rows = ApnSnapshot.read(snapshotFile, checksum);
+            if (rows != null) {
+                if (DBG) log("readApnFiles: " + rows.size() + " APNs from the snapshot");
+            } else {
+                rows = new ArrayList<>();
+                if (parseApnFiles(confFile, rows)) {
+                    // Written before loading, which modifies the rows.
+                    ApnSnapshot.write(snapshotFile, checksum, rows);
+                }
+            }
+            return new ApnFiles(checksum, rows);
+        }
+
+        private void initDatabase(SQLiteDatabase db, ApnDiff diff, ApnFiles apnFiles) {
             if (VDBG) log("dbh.initDatabase:+ db=" + db);
+            Map<String, Long> rowIds = loadRowIds(db);
+            // Throws for an update, which is rolled back by the caller.
+            loadApns(db, apnFiles.rows, diff, rowIds);
+            if (diff != null) {
+                deleteRemainingApns(db, diff);
+            }
+
+            // Get rid of user/carrier deleted entries that are not present in apn xml file.
+            // Those entries have edited value USER_DELETED/CARRIER_DELETED.
+            if (VDBG) {
+                log("initDatabase: deleting USER_DELETED and replacing "
+                        + "DELETED_BUT_PRESENT_IN_XML with DELETED");
+            }
+
+            // Delete USER_DELETED
+            db.delete(CARRIERS_TABLE, IS_USER_DELETED + " or " + IS_CARRIER_DELETED, null);
+
+            // Change USER_DELETED_BUT_PRESENT_IN_XML to USER_DELETED
+            ContentValues cv = new ContentValues();
+            cv.put(EDITED_STATUS, USER_DELETED);
+            db.update(CARRIERS_TABLE, cv, IS_USER_DELETED_BUT_PRESENT_IN_XML, null);
+
+            // Change CARRIER_DELETED_BUT_PRESENT_IN_XML to CARRIER_DELETED
+            cv = new ContentValues();
+            cv.put(EDITED_STATUS, CARRIER_DELETED);
+            db.update(CARRIERS_TABLE, cv, IS_CARRIER_DELETED_BUT_PRESENT_IN_XML, null);
+
+            // Update the stored checksum. An update runs in a transaction of the caller, which
+            // stores the checksum once the transaction has committed, so that an update that is
+            // rolled back is tried again.
+            if (diff == null) {
+                setApnConfChecksum(apnFiles.checksum);
+            }
+            if (VDBG) log("dbh.initDatabase:- db=" + db);
+
+        }
+
+        /**
+         * Parses the APNs of the internal xml and of the partner xml file, if any, into rows in
+         * load order. A file that fails to parse is left out entirely.
+         *
+         * @return false if a file failed to parse
+         */
+        private boolean parseApnFiles(File confFile, List<ContentValues> rows) {
+            boolean complete = true;
+
             // Read internal APNS data
             Resources r = mContext.getResources();
             int publicversion = -1;
@@ -662,20 +934,20 @@ public class TelephonyProvider extends ContentProvider
                 try {
                     XmlUtils.beginDocument(parser, "apns");
                     publicversion = Integer.parseInt(parser.getAttributeValue(null, "version"));
-                    loadApns(db, parser);
+                    rows.addAll(parseApns(parser));
                 } catch (Exception e) {
                     loge("Got exception while loading APN database." + e);
+                    complete = false;
                 } finally {
                     parser.close();
                 }
             } else {
                 loge("initDatabase: resources=null");
+                complete = false;
             }
 
             // Read external APNS data (partner-provided)
             XmlPullParser confparser = null;
-            File confFile = getApnConfFile();
-
             FileReader confreader = null;
             if (DBG) log("confFile = " + confFile);
             try {
@@ -692,34 +964,15 @@ public class TelephonyProvider extends ContentProvider
                             + confFile.getAbsolutePath());
                 }
 
-                loadApns(db, confparser);
+                rows.addAll(parseApns(confparser));
             } catch (FileNotFoundException e) {
                 // It's ok if the file isn't found. It means there isn't a confidential file
                 // Log.e(TAG, "File not found: '" + confFile.getAbsolutePath() + "'");
             } catch (Exception e) {
                 loge("initDatabase: Exception while parsing '" + confFile.getAbsolutePath() + "'" +
                         e);
+                complete = false;
             } finally {
-                // Get rid of user/carrier deleted entries that are not present in apn xml file.
-                // Those entries have edited value USER_DELETED/CARRIER_DELETED.
-                if (VDBG) {
-                    log("initDatabase: deleting USER_DELETED and replacing "
-                            + "DELETED_BUT_PRESENT_IN_XML with DELETED");
-                }
-
-                // Delete USER_DELETED
-                db.delete(CARRIERS_TABLE, IS_USER_DELETED + " or " + IS_CARRIER_DELETED, null);
-
-                // Change USER_DELETED_BUT_PRESENT_IN_XML to USER_DELETED
-                ContentValues cv = new ContentValues();
-                cv.put(EDITED_STATUS, USER_DELETED);
-                db.update(CARRIERS_TABLE, cv, IS_USER_DELETED_BUT_PRESENT_IN_XML, null);
-
-                // Change CARRIER_DELETED_BUT_PRESENT_IN_XML to CARRIER_DELETED
-                cv = new ContentValues();
-                cv.put(EDITED_STATUS, CARRIER_DELETED);
-                db.update(CARRIERS_TABLE, cv, IS_CARRIER_DELETED_BUT_PRESENT_IN_XML, null);
-
                 if (confreader != null) {
                     try {
                         confreader.close();
@@ -727,12 +980,8 @@ public class TelephonyProvider extends ContentProvider
                         // do nothing
                     }
                 }
-
-                // Update the stored checksum
-                setApnConfChecksum(getChecksum(confFile));
             }
-            if (VDBG) log("dbh.initDatabase:- db=" + db);
-
+            return complete;
         }
 
         private File pickSecondIfExists(File sysApnFile, File altApnFile) {
@@ -1302,6 +1551,20 @@ public class TelephonyProvider extends ContentProvider
                 oldVersion = 38 << 16 | 6;
             }
 
+            if (oldVersion < (39 << 16 | 6)) {
+                // Move the preferred APNs from the shared preferences into their own table.
+                try {
+                    createPreferredApnTable(db, PreferredApnStore.TABLE);
+                    migratePreferredApns(db);
+                } catch (SQLiteException e) {
+                    if (DBG) {
+                        log("onUpgrade skipping " + PreferredApnStore.TABLE + " upgrade. " +
+                                "The table will get created in onOpen.");
+                    }
+                }
+                oldVersion = 39 << 16 | 6;
+            }
+
             if (DBG) {
                 log("dbh.onUpgrade:- db=" + db + " oldV=" + oldVersion + " newV=" + newVersion);
             }
@@ -1317,17 +1580,56 @@ public class TelephonyProvider extends ContentProvider
                 c.close();
             }
 
-            // Sort in ascending order by subscription id to make sure the rows do not get flipped
-            // during the query and added in the new sim info table in another order (sub id is
-            // stored in settings between migrations).
-            c = db.query(SIMINFO_TABLE, null, null, null, null, null, ORDER_BY_SUB_ID);
-
             db.execSQL("DROP TABLE IF EXISTS " + SIMINFO_TABLE_TMP);
 
             createSimInfoTable(db, SIMINFO_TABLE_TMP);
 
-            copySimInfoDataToTmpTable(db, c);
-            c.close();
+            // Copy in ascending order by subscription id, with the subscription id, so that the
+            // ids do not change (sub id is stored in settings between migrations).
+            // The card ID is supposed to be the ICCID of the profile for UICC card, and the EID of
+            // the card for eUICC card. Since EID is unknown for old entries in SIMINFO_TABLE, we
+            // use ICCID as the card ID for all the old entries while upgrading the SIMINFO_TABLE.
+            // In UiccController, both the card ID and ICCID will be checked when user queries the
+            // slot information using the card ID from the database.
+            new TableMigration("siminfo v25", SIMINFO_TABLE, SIMINFO_TABLE_TMP)
+                    .copyInt(SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID)
+                    .copyText(SubscriptionManager.ICC_ID,
+                            SubscriptionManager.DISPLAY_NAME,
+                            SubscriptionManager.CARRIER_NAME,
+                            SubscriptionManager.NUMBER)
+                    .copyInt(SubscriptionManager.SIM_SLOT_INDEX,
+                            SubscriptionManager.NAME_SOURCE,
+                            SubscriptionManager.COLOR,
+                            SubscriptionManager.DISPLAY_NUMBER_FORMAT,
+                            SubscriptionManager.DATA_ROAMING,
+                            SubscriptionManager.MCC,
+                            SubscriptionManager.MNC,
+                            SubscriptionManager.SIM_PROVISIONING_STATUS,
+                            SubscriptionManager.IS_EMBEDDED,
+                            SubscriptionManager.IS_REMOVABLE,
+                            SubscriptionManager.CB_EXTREME_THREAT_ALERT,
+                            SubscriptionManager.CB_SEVERE_THREAT_ALERT,
+                            SubscriptionManager.CB_AMBER_ALERT,
+                            SubscriptionManager.CB_EMERGENCY_ALERT,
+                            SubscriptionManager.CB_ALERT_SOUND_DURATION,
+                            SubscriptionManager.CB_ALERT_REMINDER_INTERVAL,
+                            SubscriptionManager.CB_ALERT_VIBRATE,
+                            SubscriptionManager.CB_ALERT_SPEECH,
+                            SubscriptionManager.CB_ETWS_TEST_ALERT,
+                            SubscriptionManager.CB_CHANNEL_50_ALERT,
+                            SubscriptionManager.CB_CMAS_TEST_ALERT,
+                            SubscriptionManager.CB_OPT_OUT_DIALOG,
+                            SubscriptionManager.ENHANCED_4G_MODE_ENABLED,
+                            SubscriptionManager.VT_IMS_ENABLED,
+                            SubscriptionManager.WFC_IMS_ENABLED,
+                            SubscriptionManager.WFC_IMS_MODE,
+                            SubscriptionManager.WFC_IMS_ROAMING_MODE,
+                            SubscriptionManager.WFC_IMS_ROAMING_ENABLED)
+                    .copyBlob(SubscriptionManager.ACCESS_RULES)
+                    .set(SubscriptionManager.CARD_ID,
+                            "NULLIF(" + SubscriptionManager.ICC_ID + ", '')")
+                    .orderBy(ORDER_BY_SUB_ID)
+                    .run(db);
 
             db.execSQL("DROP TABLE IF EXISTS " + SIMINFO_TABLE);
 
@@ -1335,85 +1637,6 @@ public class TelephonyProvider extends ContentProvider
 
         }
 
-        private void copySimInfoDataToTmpTable(SQLiteDatabase db, Cursor c) {
-            // Move entries from SIMINFO_TABLE to SIMINFO_TABLE_TMP
-            if (c != null) {
-                while (c.moveToNext()) {
-                    ContentValues cv = new ContentValues();
-                    copySimInfoValuesV24(cv, c);
-                    // The card ID is supposed to be the ICCID of the profile for UICC card, and
-                    // the EID of the card for eUICC card. Since EID is unknown for old entries in
-                    // SIMINFO_TABLE, we use ICCID as the card ID for all the old entries while
-                    // upgrading the SIMINFO_TABLE. In UiccController, both the card ID and ICCID
-                    // will be checked when user queries the slot information using the card ID
-                    // from the database.
-                    getCardIdfromIccid(cv, c);
-                    try {
-                        db.insert(SIMINFO_TABLE_TMP, null, cv);
-                        if (VDBG) {
-                            log("dbh.copySimInfoDataToTmpTable: db.insert returned >= 0; " +
-                                "insert successful for cv " + cv);
-                        }
-                    } catch (SQLException e) {
-                        if (VDBG)
-                            log("dbh.copySimInfoDataToTmpTable insertWithOnConflict exception " +
-                                e + " for cv " + cv);
-                    }
-                }
-            }
-        }
-
-        private void copySimInfoValuesV24(ContentValues cv, Cursor c) {
-            // String vals
-            getStringValueFromCursor(cv, c, SubscriptionManager.ICC_ID);
-            getStringValueFromCursor(cv, c, SubscriptionManager.DISPLAY_NAME);
-            getStringValueFromCursor(cv, c, SubscriptionManager.CARRIER_NAME);
-            getStringValueFromCursor(cv, c, SubscriptionManager.NUMBER);
-
-            // bool/int vals
-            getIntValueFromCursor(cv, c, SubscriptionManager.SIM_SLOT_INDEX);
-            getIntValueFromCursor(cv, c, SubscriptionManager.NAME_SOURCE);
-            getIntValueFromCursor(cv, c, SubscriptionManager.COLOR);
-            getIntValueFromCursor(cv, c, SubscriptionManager.DISPLAY_NUMBER_FORMAT);
-            getIntValueFromCursor(cv, c, SubscriptionManager.DATA_ROAMING);
-            getIntValueFromCursor(cv, c, SubscriptionManager.MCC);
-            getIntValueFromCursor(cv, c, SubscriptionManager.MNC);
-            getIntValueFromCursor(cv, c, SubscriptionManager.SIM_PROVISIONING_STATUS);
-            getIntValueFromCursor(cv, c, SubscriptionManager.IS_EMBEDDED);
-            getIntValueFromCursor(cv, c, SubscriptionManager.IS_REMOVABLE);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_EXTREME_THREAT_ALERT);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_SEVERE_THREAT_ALERT);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_AMBER_ALERT);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_EMERGENCY_ALERT);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_ALERT_SOUND_DURATION);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_ALERT_REMINDER_INTERVAL);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_ALERT_VIBRATE);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_ALERT_SPEECH);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_ETWS_TEST_ALERT);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_CHANNEL_50_ALERT);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_CMAS_TEST_ALERT);
-            getIntValueFromCursor(cv, c, SubscriptionManager.CB_OPT_OUT_DIALOG);
-            getIntValueFromCursor(cv, c, SubscriptionManager.ENHANCED_4G_MODE_ENABLED);
-            getIntValueFromCursor(cv, c, SubscriptionManager.VT_IMS_ENABLED);
-            getIntValueFromCursor(cv, c, SubscriptionManager.WFC_IMS_ENABLED);
-            getIntValueFromCursor(cv, c, SubscriptionManager.WFC_IMS_MODE);
-            getIntValueFromCursor(cv, c, SubscriptionManager.WFC_IMS_ROAMING_MODE);
-            getIntValueFromCursor(cv, c, SubscriptionManager.WFC_IMS_ROAMING_ENABLED);
-
-            // Blob vals
-            getBlobValueFromCursor(cv, c, SubscriptionManager.ACCESS_RULES);
-        }
-
-        private void getCardIdfromIccid(ContentValues cv, Cursor c) {
-            int columnIndex = c.getColumnIndex(SubscriptionManager.ICC_ID);
-            if (columnIndex != -1) {
-                String fromCursor = c.getString(columnIndex);
-                if (!TextUtils.isEmpty(fromCursor)) {
-                    cv.put(SubscriptionManager.CARD_ID, fromCursor);
-                }
-            }
-        }
-
         private void recreateDB(SQLiteDatabase db, String[] proj, int version) {
             // Upgrade steps are:
             // 1. Create a temp table- done in createCarriersTable()
@@ -1427,19 +1650,11 @@ public class TelephonyProvider extends ContentProvider
                 c.close();
             }
 
-            c = db.query(CARRIERS_TABLE, null, null, null, null, null, null);
-
-            if (VDBG) {
-                log("dbh.onUpgrade:- starting data copy of existing rows: " +
-                        + ((c == null) ? 0 : c.getCount()));
-            }
-
             db.execSQL("DROP TABLE IF EXISTS " + CARRIERS_TABLE_TMP);
 
             createCarriersTable(db, CARRIERS_TABLE_TMP);
 
-            copyDataToTmpTable(db, c, version);
-            c.close();
+            copyDataToTmpTable(db, version);
 
             db.execSQL("DROP TABLE IF EXISTS " + CARRIERS_TABLE);
 
@@ -1632,30 +1847,24 @@ public class TelephonyProvider extends ContentProvider
             db.delete(CARRIERS_TABLE, where, whereArgs);
         }
 
-        private void copyDataToTmpTable(SQLiteDatabase db, Cursor c, int version) {
+        private void copyDataToTmpTable(SQLiteDatabase db, int version) {
             // Move entries from CARRIERS_TABLE to CARRIERS_TABLE_TMP
-            if (c != null) {
-                while (c.moveToNext()) {
-                    ContentValues cv = new ContentValues();
-                    copyAllApnValues(cv, c);
-                    if (version == 24) {
-                        // Sync bearer bitmask and network type bitmask
-                        getNetworkTypeBitmaskFromCursor(cv, c);
-                    }
-                    try {
-                        db.insertWithOnConflict(CARRIERS_TABLE_TMP, null, cv,
-                                SQLiteDatabase.CONFLICT_ABORT);
-                        if (VDBG) {
-                            log("dbh.copyPreservedApnsToNewTable: db.insert returned >= 0; " +
-                                    "insert successful for cv " + cv);
-                        }
-                    } catch (SQLException e) {
-                        if (VDBG)
-                            log("dbh.copyPreservedApnsToNewTable insertWithOnConflict exception " +
-                                    e + " for cv " + cv);
-                    }
-                }
+            TableMigration migration = new TableMigration("carriers v" + version, CARRIERS_TABLE,
+                    CARRIERS_TABLE_TMP);
+            copyAllApnValues(migration);
+            if (version == 24) {
+                // Sync bearer bitmask and network type bitmask
+                migration.fixup(new String[]{NETWORK_TYPE_BITMASK, BEARER_BITMASK},
+                        new TableMigration.RowFixup() {
+                            @Override
+                            public ContentValues fixup(Cursor row) {
+                                ContentValues cv = new ContentValues();
+                                getNetworkTypeBitmaskFromCursor(cv, row);
+                                return cv;
+                            }
+                        });
             }
+            migration.run(db);
         }
 
         private void copyApnValuesV17(ContentValues cv, Cursor c) {
@@ -1699,47 +1908,18 @@ public class TelephonyProvider extends ContentProvider
             getIntValueFromCursor(cv, c, USER_VISIBLE);
         }
 
-        private void copyAllApnValues(ContentValues cv, Cursor c) {
-            // String vals
-            getStringValueFromCursor(cv, c, NAME);
-            getStringValueFromCursor(cv, c, NUMERIC);
-            getStringValueFromCursor(cv, c, MCC);
-            getStringValueFromCursor(cv, c, MNC);
-            getStringValueFromCursor(cv, c, APN);
-            getStringValueFromCursor(cv, c, USER);
-            getStringValueFromCursor(cv, c, SERVER);
-            getStringValueFromCursor(cv, c, PASSWORD);
-            getStringValueFromCursor(cv, c, PROXY);
-            getStringValueFromCursor(cv, c, PORT);
-            getStringValueFromCursor(cv, c, MMSPROXY);
-            getStringValueFromCursor(cv, c, MMSPORT);
-            getStringValueFromCursor(cv, c, MMSC);
-            getStringValueFromCursor(cv, c, TYPE);
-            getStringValueFromCursor(cv, c, PROTOCOL);
-            getStringValueFromCursor(cv, c, ROAMING_PROTOCOL);
-            getStringValueFromCursor(cv, c, MVNO_TYPE);
-            getStringValueFromCursor(cv, c, MVNO_MATCH_DATA);
-
-            // bool/int vals
-            getIntValueFromCursor(cv, c, AUTH_TYPE);
-            getIntValueFromCursor(cv, c, CURRENT);
-            getIntValueFromCursor(cv, c, CARRIER_ENABLED);
-            getIntValueFromCursor(cv, c, BEARER);
-            getIntValueFromCursor(cv, c, SUBSCRIPTION_ID);
-            getIntValueFromCursor(cv, c, PROFILE_ID);
-            getIntValueFromCursor(cv, c, MODEM_PERSIST);
-            getIntValueFromCursor(cv, c, MAX_CONNECTIONS);
-            getIntValueFromCursor(cv, c, WAIT_TIME_RETRY);
-            getIntValueFromCursor(cv, c, TIME_LIMIT_FOR_MAX_CONNECTIONS);
-            getIntValueFromCursor(cv, c, MTU);
-            getIntValueFromCursor(cv, c, NETWORK_TYPE_BITMASK);
-            getIntValueFromCursor(cv, c, BEARER_BITMASK);
-            getIntValueFromCursor(cv, c, EDITED_STATUS);
-            getIntValueFromCursor(cv, c, USER_VISIBLE);
-            getIntValueFromCursor(cv, c, USER_EDITABLE);
-            getIntValueFromCursor(cv, c, OWNED_BY);
-            getIntValueFromCursor(cv, c, APN_SET_ID);
-            getIntValueFromCursor(cv, c, SKIP_464XLAT);
+        private void copyAllApnValues(TableMigration migration) {
+            migration.copyInt(_ID)
+                    // String vals
+                    .copyText(NAME, NUMERIC, MCC, MNC, APN, USER, SERVER, PASSWORD, PROXY, PORT,
+                            MMSPROXY, MMSPORT, MMSC, TYPE, PROTOCOL, ROAMING_PROTOCOL, MVNO_TYPE,
+                            MVNO_MATCH_DATA)
+                    // bool/int vals
+                    .copyInt(AUTH_TYPE, CURRENT, CARRIER_ENABLED, BEARER, SUBSCRIPTION_ID,
+                            PROFILE_ID, MODEM_PERSIST, MAX_CONNECTIONS, WAIT_TIME_RETRY,
+                            TIME_LIMIT_FOR_MAX_CONNECTIONS, MTU, NETWORK_TYPE_BITMASK,
+                            BEARER_BITMASK, EDITED_STATUS, USER_VISIBLE, USER_EDITABLE, OWNED_BY,
+                            APN_SET_ID, SKIP_464XLAT);
         }
 
         private void copyPreservedApnsToNewTable(SQLiteDatabase db, Cursor c) {
@@ -1884,16 +2064,6 @@ public class TelephonyProvider extends ContentProvider
             }
         }
 
-        private void getBlobValueFromCursor(ContentValues cv, Cursor c, String key) {
-            int columnIndex = c.getColumnIndex(key);
-            if (columnIndex != -1) {
-                byte[] fromCursor = c.getBlob(columnIndex);
-                if (fromCursor != null) {
-                    cv.put(key, fromCursor);
-                }
-            }
-        }
-
         /**
          * Gets the next row of apn values.
          *
@@ -2012,110 +2182,308 @@ public class TelephonyProvider extends ContentProvider
             }
         }
 
+        /**
+         * Parses the apn elements of an xml file.
+         *
+         * @param parser the xml parser, positioned on the apns element
+         * @return the rows, in file order
+         */
+        private List<ContentValues> parseApns(XmlPullParser parser)
+                throws XmlPullParserException, IOException {
+            List<ContentValues> rows = new ArrayList<>();
+            XmlUtils.nextElement(parser);
+            while (parser.getEventType() != XmlPullParser.END_DOCUMENT) {
+                ContentValues row = getRow(parser);
+                if (row == null) {
+                    throw new XmlPullParserException("Expected 'apn' tag", parser, null);
+                }
+                rows.add(row);
+                XmlUtils.nextElement(parser);
+            }
+            return rows;
+        }
+
         /*
-         * Loads apns from xml file into the database
+         * Loads apns parsed from the xml files into the database
          *
          * @param db the sqlite database to write to
-         * @param parser the xml parser
-         *
+         * @param rows the rows of the xml files
+         * @param diff the unedited entries to diff with, null to only insert and merge
+         * @param rowIds the _id of the entries of the table, by unique key
+         * @throws SQLException if the diff could not be applied. The diff runs in a transaction
+         *         of the caller, which would otherwise be rolled back without notice.
          */
-        private void loadApns(SQLiteDatabase db, XmlPullParser parser) {
-            if (parser != null) {
-                try {
-                    db.beginTransaction();
-                    XmlUtils.nextElement(parser);
-                    while (parser.getEventType() != XmlPullParser.END_DOCUMENT) {
-                        ContentValues row = getRow(parser);
-                        if (row == null) {
-                            throw new XmlPullParserException("Expected 'apn' tag", parser, null);
+        private void loadApns(SQLiteDatabase db, List<ContentValues> rows, ApnDiff diff,
+                Map<String, Long> rowIds) {
+            try {
+                db.beginTransaction();
+                for (ContentValues row : rows) {
+                    if (diff == null || !applyToUneditedApn(db, row, diff)) {
+                        insertAddingDefaults(db, row, rowIds);
+                        if (diff != null) {
+                            diff.inserted++;
                         }
-                        insertAddingDefaults(db, row);
-                        XmlUtils.nextElement(parser);
                     }
-                    db.setTransactionSuccessful();
-                } catch (XmlPullParserException e) {
-                    loge("Got XmlPullParserException while loading apns." + e);
-                } catch (IOException e) {
-                    loge("Got IOException while loading apns." + e);
-                } catch (SQLException e) {
-                    loge("Got SQLException while loading apns." + e);
-                } finally {
-                    db.endTransaction();
                 }
+                db.setTransactionSuccessful();
+            } catch (SQLException e) {
+                loge("Got SQLException while loading apns." + e);
+                if (diff != null) {
+                    throw e;
+                }
+            } finally {
+                db.endTransaction();
             }
         }
 
-        static public ContentValues setDefaultValue(ContentValues values) {
-            if (!values.containsKey(SUBSCRIPTION_ID)) {
-                int subId = SubscriptionManager.getDefaultSubscriptionId();
-                values.put(SUBSCRIPTION_ID, subId);
-            }
+        // The columns read from an existing entry to merge a row into it.
+        private static final String[] CONFLICTING_ROW_COLUMNS = { "_id",
+                TYPE,
+                EDITED_STATUS,
+                BEARER_BITMASK,
+                NETWORK_TYPE_BITMASK,
+                PROFILE_ID };
 
-            return values;
+        /**
+         * The unedited, non-DPC entries of the carriers table keyed on their unique fields, for
+         * {@link #updateDatabase(SQLiteDatabase)}. The entries found in the xml files are removed
+         * as they are applied, the remaining ones are deleted at the end.
+         */
+        private static final class ApnDiff {
+            String[] columns;
+            final Map<String, String[]> rows = new HashMap<>();
+            // Column name to default value, as SQLite returns it as a string.
+            final Map<String, String> defaults = new HashMap<>();
+            int unchanged;
+            int updated;
+            int inserted;
+            int deleted;
         }
 
-        private void insertAddingDefaults(SQLiteDatabase db, ContentValues row) {
-            row = setDefaultValue(row);
-            try {
-                db.insertWithOnConflict(CARRIERS_TABLE, null, row, SQLiteDatabase.CONFLICT_ABORT);
-                if (VDBG) log("dbh.insertAddingDefaults: db.insert returned >= 0; insert " +
-                        "successful for cv " + row);
-            } catch (SQLException e) {
-                if (VDBG) log("dbh.insertAddingDefaults: exception " + e);
-                // Insertion failed which could be due to a conflict. Check if that is the case and
-                // update edited field accordingly.
-                // Search for the exact same entry and update edited field.
-                // If it is USER_EDITED/CARRIER_EDITED change it to UNEDITED,
-                // and if USER/CARRIER_DELETED change it to USER/CARRIER_DELETED_BUT_PRESENT_IN_XML.
-                Cursor oldRow = selectConflictingRow(db, CARRIERS_TABLE, row);
-                if (oldRow != null) {
-                    // Update the row
-                    ContentValues mergedValues = new ContentValues();
-                    int edited = oldRow.getInt(oldRow.getColumnIndex(EDITED_STATUS));
-                    int old_edited = edited;
-                    if (edited != UNEDITED) {
-                        if (edited == USER_DELETED) {
-                            // USER_DELETED_BUT_PRESENT_IN_XML indicates entry has been deleted
-                            // by user but present in apn xml file.
-                            edited = USER_DELETED_BUT_PRESENT_IN_XML;
-                        } else if (edited == CARRIER_DELETED) {
-                            // CARRIER_DELETED_BUT_PRESENT_IN_XML indicates entry has been deleted
-                            // by user but present in apn xml file.
-                            edited = CARRIER_DELETED_BUT_PRESENT_IN_XML;
-                        }
-                        mergedValues.put(EDITED_STATUS, edited);
+        private ApnDiff loadUneditedApns(SQLiteDatabase db) {
+            ApnDiff diff = new ApnDiff();
+            try (Cursor c = db.query(CARRIERS_TABLE, null,
+                    IS_UNEDITED + " and " + IS_NOT_OWNED_BY_DPC, null, null, null, null)) {
+                diff.columns = c.getColumnNames();
+                int[] uniqueIndexes = getUniqueFieldIndexes(c);
+                while (c.moveToNext()) {
+                    String[] row = new String[diff.columns.length];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = c.getString(i);
                     }
+                    diff.rows.put(getUniqueKey(c, uniqueIndexes), row);
+                }
+            }
+            for (Map.Entry<String, String> column
+                    : TableMigration.getColumns(db, CARRIERS_TABLE).entrySet()) {
+                diff.defaults.put(column.getKey(),
+                        DatabaseUtils.stringForQuery(db, "SELECT " + column.getValue(), null));
+            }
+            return diff;
+        }
 
-                    mergeFieldsAndUpdateDb(db, CARRIERS_TABLE, oldRow, row, mergedValues, false,
-                            mContext);
-
-                    if (VDBG) log("dbh.insertAddingDefaults: old edited = " + old_edited
-                            + " new edited = " + edited);
-
-                    oldRow.close();
+        /**
+         * Returns the _id of every entry of the carriers table by unique key, see
+         * {@link #getUniqueKey(ContentValues)}.
+         */
+        static Map<String, Long> loadRowIds(SQLiteDatabase db) {
+            Map<String, Long> rowIds = new HashMap<>();
+            String[] columns = new String[CARRIERS_UNIQUE_FIELDS.size() + 1];
+            CARRIERS_UNIQUE_FIELDS.toArray(columns);
+            columns[columns.length - 1] = _ID;
+            try (Cursor c = db.query(CARRIERS_TABLE, columns, null, null, null, null, null)) {
+                int[] uniqueIndexes = getUniqueFieldIndexes(c);
+                int idIndex = c.getColumnIndexOrThrow(_ID);
+                while (c.moveToNext()) {
+                    rowIds.put(getUniqueKey(c, uniqueIndexes), c.getLong(idIndex));
                 }
             }
+            return rowIds;
         }
 
-        public static void mergeFieldsAndUpdateDb(SQLiteDatabase db, String table, Cursor oldRow,
-                                                  ContentValues newRow, ContentValues mergedValues,
-                                                  boolean onUpgrade, Context context) {
-            if (newRow.containsKey(TYPE)) {
-                // Merge the types
-                String oldType = oldRow.getString(oldRow.getColumnIndex(TYPE));
-                String newType = newRow.getAsString(TYPE);
+        private static int[] getUniqueFieldIndexes(Cursor c) {
+            int[] uniqueIndexes = new int[CARRIERS_UNIQUE_FIELDS.size()];
+            for (int i = 0; i < uniqueIndexes.length; i++) {
+                uniqueIndexes[i] = c.getColumnIndexOrThrow(CARRIERS_UNIQUE_FIELDS.get(i));
+            }
+            return uniqueIndexes;
+        }
 
-                if (!oldType.equalsIgnoreCase(newType)) {
-                    if (oldType.equals("") || newType.equals("")) {
-                        newRow.put(TYPE, "");
-                    } else {
-                        String[] oldTypes = oldType.toLowerCase().split(",");
-                        String[] newTypes = newType.toLowerCase().split(",");
+        private static String getUniqueKey(Cursor c, int[] uniqueIndexes) {
+            StringBuilder key = new StringBuilder();
+            for (int index : uniqueIndexes) {
+                key.append(c.getString(index)).append('\0');
+            }
+            return key.toString();
+        }
 
-                        if (VDBG) {
-                            log("mergeFieldsAndUpdateDb: Calling separateRowsNeeded() oldType=" +
-                                    oldType + " old bearer=" + oldRow.getInt(oldRow.getColumnIndex(
-                                    BEARER_BITMASK)) +  " old networkType=" +
+        /**
+         * Returns the values of the unique fields of the row as they are stored in the table,
+         * defaults and booleans included, so that the rows that would conflict on the UNIQUE
+         * constraint have the same key.
+         */
+        static String getUniqueKey(ContentValues row) {
+            StringBuilder key = new StringBuilder();
+            for (String field : CARRIERS_UNIQUE_FIELDS) {
+                String value;
+                if (!row.containsKey(field)) {
+                    value = CARRIERS_UNIQUE_FIELDS_DEFAULTS.get(field);
+                } else if (CARRIERS_BOOLEAN_FIELDS.contains(field)) {
+                    value = convertStringToIntString(row.getAsString(field));
+                } else {
+                    value = row.getAsString(field);
+                }
+                key.append(value).append('\0');
+            }
+            return key.toString();
+        }
+
+        /**
+         * Returns the value as SQLite returns it as a string, booleans being stored as ints.
+         */
+        private static String toSqlString(Object value) {
+            if (value instanceof Boolean) {
+                return (Boolean) value ? "1" : "0";
+            }
+            return value != null ? value.toString() : null;
+        }
+
+        /**
+         * Applies an APN of the xml files to the unedited entry with the same unique fields, if
+         * any: replaces it in place, with the same _id, if a field differs. A field that is not
+         * in the xml is compared with its default, so that an attribute removed from the files
+         * is reset. The _id and the sub_id, which is defaulted on insert to the subscription of
+         * the time, depend on the device and are not compared. Returns false if there is no such
+         * entry.
+         */
+        private boolean applyToUneditedApn(SQLiteDatabase db, ContentValues row, ApnDiff diff) {
+            String[] old = diff.rows.remove(getUniqueKey(row));
+            if (old == null) {
+                return false;
+            }
+
+            List<String> columns = Arrays.asList(diff.columns);
+            String id = old[columns.indexOf(_ID)];
+            boolean changed = !columns.containsAll(row.keySet());
+            for (int i = 0; i < old.length && !changed; i++) {
+                String column = diff.columns[i];
+                if (_ID.equals(column) || SUBSCRIPTION_ID.equals(column)) {
+                    continue;
+                }
+                String value = row.containsKey(column) ? toSqlString(row.get(column))
+                        : diff.defaults.get(column);
+                changed = !TextUtils.equals(old[i], value);
+            }
+            if (changed) {
+                // The columns not in the xml go back to their default, as for a new entry.
+                ContentValues values = setDefaultValue(new ContentValues(row));
+                values.put(_ID, Long.parseLong(id));
+                db.insertWithOnConflict(CARRIERS_TABLE, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+                diff.updated++;
+            } else {
+                diff.unchanged++;
+            }
+            return true;
+        }
+
+        private void deleteRemainingApns(SQLiteDatabase db, ApnDiff diff) {
+            int idIndex = Arrays.asList(diff.columns).indexOf(_ID);
+            for (String[] row : diff.rows.values()) {
+                diff.deleted += db.delete(CARRIERS_TABLE, _ID + "=?", new String[]{row[idIndex]});
+            }
+            diff.rows.clear();
+        }
+
+        static public ContentValues setDefaultValue(ContentValues values) {
+            if (!values.containsKey(SUBSCRIPTION_ID)) {
+                int subId = SubscriptionManager.getDefaultSubscriptionId();
+                values.put(SUBSCRIPTION_ID, subId);
+            }
+
+            return values;
+        }
+
+        /**
+         * Inserts the row, or merges it into the entry with the same unique fields. The entry is
+         * looked up in rowIds, which is kept up to date with the inserted rows, so a conflict is
+         * not expected on insert; it is still handled, by looking up the conflicting entry in the
+         * table.
+         */
+        private void insertAddingDefaults(SQLiteDatabase db, ContentValues row,
+                Map<String, Long> rowIds) {
+            row = setDefaultValue(row);
+            String key = getUniqueKey(row);
+            Long id = rowIds.get(key);
+            if (id == null) {
+                try {
+                    rowIds.put(key, db.insertWithOnConflict(CARRIERS_TABLE, null, row,
+                            SQLiteDatabase.CONFLICT_ABORT));
+                    if (VDBG) log("dbh.insertAddingDefaults: db.insert returned >= 0; insert " +
+                            "successful for cv " + row);
+                    return;
+                } catch (SQLException e) {
+                    if (VDBG) log("dbh.insertAddingDefaults: exception " + e);
+                }
+            }
+            // The row conflicts with an existing entry. Update the edited field accordingly:
+            // if it is USER_EDITED/CARRIER_EDITED change it to UNEDITED, and if
+            // USER/CARRIER_DELETED change it to USER/CARRIER_DELETED_BUT_PRESENT_IN_XML.
+            Cursor oldRow = id != null ? selectRowById(db, id)
+                    : selectConflictingRow(db, CARRIERS_TABLE, row);
+            if (oldRow != null) {
+                // Update the row
+                ContentValues mergedValues = new ContentValues();
+                int edited = oldRow.getInt(oldRow.getColumnIndex(EDITED_STATUS));
+                int old_edited = edited;
+                if (edited != UNEDITED) {
+                    if (edited == USER_DELETED) {
+                        // USER_DELETED_BUT_PRESENT_IN_XML indicates entry has been deleted
+                        // by user but present in apn xml file.
+                        edited = USER_DELETED_BUT_PRESENT_IN_XML;
+                    } else if (edited == CARRIER_DELETED) {
+                        // CARRIER_DELETED_BUT_PRESENT_IN_XML indicates entry has been deleted
+                        // by user but present in apn xml file.
+                        edited = CARRIER_DELETED_BUT_PRESENT_IN_XML;
+                    }
+                    mergedValues.put(EDITED_STATUS, edited);
+                }
+
+                mergeFieldsAndUpdateDb(db, CARRIERS_TABLE, oldRow, row, mergedValues, false,
+                        mContext);
+
+                if (VDBG) log("dbh.insertAddingDefaults: old edited = " + old_edited
+                        + " new edited = " + edited);
+
+                oldRow.close();
+            }
+        }
+
+        /**
+         * Merges newRow into oldRow and updates the entry.
+         *
+         * @return false if the rows were kept separate instead, see separateRowsNeeded()
+         */
+        public static boolean mergeFieldsAndUpdateDb(SQLiteDatabase db, String table,
+                                                     Cursor oldRow, ContentValues newRow,
+                                                     ContentValues mergedValues,
+                                                     boolean onUpgrade, Context context) {
+            if (newRow.containsKey(TYPE)) {
+                // Merge the types
+                String oldType = oldRow.getString(oldRow.getColumnIndex(TYPE));
+                String newType = newRow.getAsString(TYPE);
+
+                if (!oldType.equalsIgnoreCase(newType)) {
+                    if (oldType.equals("") || newType.equals("")) {
+                        newRow.put(TYPE, "");
+                    } else {
+                        String[] oldTypes = oldType.toLowerCase().split(",");
+                        String[] newTypes = newType.toLowerCase().split(",");
+
+                        if (VDBG) {
+                            log("mergeFieldsAndUpdateDb: Calling separateRowsNeeded() oldType=" +
+                                    oldType + " old bearer=" + oldRow.getInt(oldRow.getColumnIndex(
+                                    BEARER_BITMASK)) +  " old networkType=" +
                                     oldRow.getInt(oldRow.getColumnIndex(NETWORK_TYPE_BITMASK)) +
                                     " old profile_id=" + oldRow.getInt(oldRow.getColumnIndex(
                                     PROFILE_ID)) + " newRow " + newRow);
@@ -2126,7 +2494,7 @@ public class TelephonyProvider extends ContentProvider
                                 newTypes)) {
                             if (VDBG) log("mergeFieldsAndUpdateDb: separateRowsNeeded() returned " +
                                     "true");
-                            return;
+                            return false;
                         }
 
                         // Merge the 2 types
@@ -2199,6 +2567,7 @@ public class TelephonyProvider extends ContentProvider
                 db.update(table, mergedValues, "_id=" + oldRow.getInt(oldRow.getColumnIndex("_id")),
                         null);
             }
+            return true;
         }
 
         private static boolean separateRowsNeeded(SQLiteDatabase db, String table, Cursor oldRow,
@@ -2299,6 +2668,23 @@ public class TelephonyProvider extends ContentProvider
             return false;
         }
 
+        /**
+         * Returns the entry of the carriers table with the given _id, with the columns of
+         * {@link #selectConflictingRow}, or null if not found.
+         */
+        static Cursor selectRowById(SQLiteDatabase db, long id) {
+            Cursor c = db.query(CARRIERS_TABLE, CONFLICTING_ROW_COLUMNS, _ID + "=?",
+                    new String[]{String.valueOf(id)}, null, null, null);
+            if (c != null && c.moveToFirst()) {
+                return c;
+            }
+            loge("dbh.selectRowById: no row found for _id " + id);
+            if (c != null) {
+                c.close();
+            }
+            return null;
+        }
+
         public static Cursor selectConflictingRow(SQLiteDatabase db, String table,
                                                   ContentValues row) {
             // Conflict is possible only when numeric, mcc, mnc (fields without any default value)
@@ -2308,12 +2694,6 @@ public class TelephonyProvider extends ContentProvider
                 return null;
             }
 
-            String[] columns = { "_id",
-                    TYPE,
-                    EDITED_STATUS,
-                    BEARER_BITMASK,
-                    NETWORK_TYPE_BITMASK,
-                    PROFILE_ID };
             String selection = TextUtils.join("=? AND ", CARRIERS_UNIQUE_FIELDS) + "=?";
             int i = 0;
             String[] selectionArgs = new String[CARRIERS_UNIQUE_FIELDS.size()];
@@ -2331,7 +2711,8 @@ public class TelephonyProvider extends ContentProvider
                 }
             }
 
-            Cursor c = db.query(table, columns, selection, selectionArgs, null, null, null);
+            Cursor c = db.query(table, CONFLICTING_ROW_COLUMNS, selection, selectionArgs, null,
+                    null, null);
 
             if (c != null) {
                 if (c.getCount() == 1) {
@@ -2387,6 +2768,15 @@ public class TelephonyProvider extends ContentProvider
     void initDatabaseWithDatabaseHelper(SQLiteDatabase db) {
         mOpenHelper.initDatabase(db);
     }
+    DatabaseHelper.ApnFiles readApnFilesWithDatabaseHelper() {
+        return mOpenHelper.readApnFiles();
+    }
+    void updateDatabaseWithDatabaseHelper(SQLiteDatabase db, DatabaseHelper.ApnFiles apnFiles) {
+        mOpenHelper.updateDatabase(db, apnFiles);
+    }
+    void setApnConfChecksumWithDatabaseHelper(long checksum) {
+        mOpenHelper.setApnConfChecksum(checksum);
+    }
     boolean needApnDbUpdate() {
         return mOpenHelper.apnDbUpdateNeeded();
     }
@@ -2452,7 +2842,7 @@ public class TelephonyProvider extends ContentProvider
                         ContentValues[] values = mIApnSourceService.getApns(subId);
                         if (values != null) {
                             // we use the unsynchronized insert because this function is called
-                            // within the syncrhonized function delete()
+                            // from delete(), which already holds the carriers write lock
                             unsynchronizedBulkInsert(CONTENT_URI, values);
                             log("restoreApnsWithService: restored");
                         }
@@ -2481,56 +2871,160 @@ public class TelephonyProvider extends ContentProvider
         mOpenHelper = new DatabaseHelper(getContext());
 
         if (!apnSourceServiceExists(getContext())) {
-            // Call getReadableDatabase() to make sure onUpgrade is called
-            if (VDBG) log("onCreate: calling getReadableDatabase to trigger onUpgrade");
-            SQLiteDatabase db = getReadableDatabase();
-
-            // Update APN db on build update
-            String newBuildId = SystemProperties.get("ro.build.id", null);
-            if (!TextUtils.isEmpty(newBuildId)) {
-                // Check if build id has changed
-                SharedPreferences sp = getContext().getSharedPreferences(BUILD_ID_FILE,
-                        Context.MODE_PRIVATE);
-                String oldBuildId = sp.getString(RO_BUILD_ID, "");
-                if (!newBuildId.equals(oldBuildId)) {
-                    if (DBG) log("onCreate: build id changed from " + oldBuildId + " to " +
-                            newBuildId);
-
-                    // Get rid of old preferred apn shared preferences
-                    SubscriptionManager sm = SubscriptionManager.from(getContext());
-                    if (sm != null) {
-                        List<SubscriptionInfo> subInfoList = sm.getAllSubscriptionInfoList();
-                        for (SubscriptionInfo subInfo : subInfoList) {
-                            SharedPreferences spPrefFile = getContext().getSharedPreferences(
-                                    PREF_FILE_APN + subInfo.getSubscriptionId(), Context.MODE_PRIVATE);
-                            if (spPrefFile != null) {
-                                SharedPreferences.Editor editor = spPrefFile.edit();
-                                editor.clear();
-                                editor.apply();
-                            }
-                        }
+            // Open the database, which runs onUpgrade, and update the APNs on a build update in
+            // the background. The queries are served from the database as it is meanwhile,
+            // except the ones that pick the APNs to use, see waitForApnDbReady().
+            mApnDbReady = new CountDownLatch(1);
+            getStartupHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        updateApnDbOnBuildUpdate();
+                    } catch (RuntimeException e) {
+                        loge("onCreate: APN db update failed: " + e);
+                    } finally {
+                        mApnDbReady.countDown();
                     }
-
-                    // Update APN DB
-                    updateApnDb();
-                } else {
-                    if (VDBG) log("onCreate: build id did not change: " + oldBuildId);
                 }
-                sp.edit().putString(RO_BUILD_ID, newBuildId).apply();
-            } else {
-                if (VDBG) log("onCreate: newBuildId is empty");
-            }
+            });
         }
 
         SharedPreferences sp = getContext().getSharedPreferences(ENFORCED_FILE,
                 Context.MODE_PRIVATE);
         mManagedApnEnforced = sp.getBoolean(ENFORCED_KEY, false);
 
+        registerCacheInvalidation();
+
         if (VDBG) log("onCreate:- ret true");
 
         return true;
     }
 
+    private static synchronized Handler getStartupHandler() {
+        if (sStartupThread == null) {
+            sStartupThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            sStartupThread.start();
+        }
+        return sStartupThread.getThreadHandler();
+    }
+
+    /**
+     * Opens the database and, if the build id changed since the last run, updates the APNs from
+     * the xml files. The new build id is only stored once the update has committed, so that an
+     * update that did not complete is run again with the next start.
+     */
+    private void updateApnDbOnBuildUpdate() {
+        // Call getReadableDatabase() to make sure onUpgrade is called
+        if (VDBG) log("updateApnDbOnBuildUpdate: calling getReadableDatabase to trigger onUpgrade");
+        getReadableDatabase();
+
+        // Update APN db on build update
+        String newBuildId = SystemProperties.get("ro.build.id", null);
+        if (TextUtils.isEmpty(newBuildId)) {
+            if (VDBG) log("updateApnDbOnBuildUpdate: newBuildId is empty");
+            return;
+        }
+        // Check if build id has changed
+        SharedPreferences sp = getContext().getSharedPreferences(BUILD_ID_FILE,
+                Context.MODE_PRIVATE);
+        String oldBuildId = sp.getString(RO_BUILD_ID, "");
+        if (newBuildId.equals(oldBuildId)) {
+            if (VDBG) log("updateApnDbOnBuildUpdate: build id did not change: " + oldBuildId);
+            return;
+        }
+        if (DBG) log("updateApnDbOnBuildUpdate: build id changed from " + oldBuildId + " to "
+                + newBuildId);
+
+        // Update APN DB
+        if (updateApnDb()) {
+            sp.edit().putString(RO_BUILD_ID, newBuildId).apply();
+        }
+    }
+
+    /**
+     * Waits for the APN update started by onCreate, for the queries that pick the APNs to use:
+     * they must not see the APNs of the previous build. Gives up after
+     * {@link #APN_DB_READY_TIMEOUT_MS} and serves the database as it is.
+     */
+    private void waitForApnDbReady(int match) {
+        CountDownLatch apnDbReady = mApnDbReady;
+        if (apnDbReady == null || apnDbReady.getCount() == 0) {
+            return;
+        }
+        switch (match) {
+            case URL_PREFERAPN:
+            case URL_PREFERAPN_NO_UPDATE:
+            case URL_PREFERAPN_USING_SUBID:
+            case URL_PREFERAPN_NO_UPDATE_USING_SUBID:
+            case URL_PREFERAPNSET:
+            case URL_PREFERAPNSET_USING_SUBID:
+            case URL_SIM_APN_LIST:
+            case URL_SIM_APN_LIST_ID:
+            case URL_SIM_APN_LIST_FILTERED:
+            case URL_SIM_APN_LIST_FILTERED_ID:
+                break;
+            default:
+                return;
+        }
+        try {
+            if (!apnDbReady.await(getApnDbReadyTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                loge("waitForApnDbReady: timed out, match=" + match);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @VisibleForTesting
+    long getApnDbReadyTimeoutMs() {
+        return APN_DB_READY_TIMEOUT_MS;
+    }
+
+    /**
+     * Invalidate the resolved APN lists and the permission decisions when the SIM, its records,
+     * the carrier config or the subscriptions change, and the permission decisions when a
+     * package changes. The SIM state changed broadcast is also sent when the SIM records are
+     * loaded. The callers come from every user, so the package changes of all the users are
+     * listened to.
+     */
+    private void registerCacheInvalidation() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        getContext().registerReceiver(mCacheInvalidationReceiver, filter);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        getContext().registerReceiverAsUser(mCacheInvalidationReceiver, UserHandle.ALL,
+                packageFilter, null, null);
+
+        SubscriptionManager sm = SubscriptionManager.from(getContext());
+        if (sm != null) {
+            sm.addOnSubscriptionsChangedListener(mSubscriptionsListener);
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        CountDownLatch apnDbReady = mApnDbReady;
+        writer.println("APN db ready: "
+                + (apnDbReady == null || apnDbReady.getCount() == 0));
+        mQueryTemplates.dump(writer);
+        mApnListCache.dump(writer);
+        mPreferredApnStore.dump(writer);
+        TableMigration.dump(writer);
+        synchronized (mPermissionDecisions) {
+            writer.println("Permission decisions: uids=" + mPermissionDecisions.size()
+                    + " generation=" + mPermissionGeneration);
+        }
+    }
+
     private synchronized boolean isManagedApnEnforced() {
         return mManagedApnEnforced;
     }
@@ -2547,116 +3041,150 @@ public class TelephonyProvider extends ContentProvider
     }
 
     private void setPreferredApnId(Long id, int subId, boolean saveApn) {
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = sp.edit();
-        editor.putLong(COLUMN_APN_ID + subId, id != null ? id : INVALID_APN_ID);
-        // This is for debug purposes. It indicates if this APN was set by DcTracker or user (true)
-        // or if this was restored from APN saved in PREF_FILE_FULL_APN (false).
-        editor.putBoolean(EXPLICIT_SET_CALLED + subId, saveApn);
-        editor.apply();
-        if (id == null || id.longValue() == INVALID_APN_ID) {
-            deletePreferredApn(subId);
-        } else {
-            // If id is not invalid, and saveApn is true, save the actual APN in PREF_FILE_FULL_APN
-            // too.
-            if (saveApn) {
-                setPreferredApn(id, subId);
+        SQLiteDatabase db = getWritableDatabase();
+        long apnId = id != null ? id : INVALID_APN_ID;
+        PreferredApnStore.PreferredApn current = mPreferredApnStore.get(db, subId);
+        Map<String, String> apn = current != null ? current.apn : null;
+        int version = current != null ? current.version : DATABASE_VERSION;
+        if (apnId == INVALID_APN_ID) {
+            apn = null;
+        } else if (saveApn) {
+            // If id is not invalid, and saveApn is true, save the actual APN too.
+            Map<String, String> saved = getApnUniqueFields(db, apnId);
+            if (saved != null) {
+                apn = saved;
+                version = DATABASE_VERSION;
             }
         }
+        mPreferredApnStore.put(db, subId, apnId, saveApn, apn, version);
     }
 
-    private long getPreferredApnId(int subId, boolean checkApnSp) {
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
-        long apnId = sp.getLong(COLUMN_APN_ID + subId, INVALID_APN_ID);
-        if (apnId == INVALID_APN_ID && checkApnSp) {
+    /**
+     * Get the preferred APN id of the subId. If none is set, it is looked up by the saved APN
+     * fields, and the id found is put in recoveredApnIds. This only reads, so it can run under
+     * the read lock; the id found is stored by {@link #storePreferredApnIdFromApn}.
+     */
+    private long getPreferredApnId(int subId, SparseLongArray recoveredApnIds) {
+        PreferredApnStore.PreferredApn preferredApn =
+                mPreferredApnStore.get(getReadableDatabase(), subId);
+        long apnId = preferredApn != null ? preferredApn.apnId : INVALID_APN_ID;
+        if (apnId == INVALID_APN_ID) {
             apnId = getPreferredApnIdFromApn(subId);
             if (apnId != INVALID_APN_ID) {
-                setPreferredApnId(apnId, subId, false);
+                recoveredApnIds.put(subId, apnId);
             }
         }
         return apnId;
     }
 
+    /**
+     * Store the preferred APN id found by the saved APN fields, under the write lock. The lookup
+     * is done again, since the preferred APN or the carriers table may have changed once the
+     * read lock was released.
+     */
+    private void storePreferredApnIdFromApn(int subId) {
+        mCarriersLock.writeLock().lock();
+        try {
+            PreferredApnStore.PreferredApn preferredApn =
+                    mPreferredApnStore.get(getReadableDatabase(), subId);
+            if (preferredApn != null && preferredApn.apnId != INVALID_APN_ID) {
+                return;
+            }
+            long apnId = getPreferredApnIdFromApn(subId);
+            if (apnId != INVALID_APN_ID) {
+                setPreferredApnId(apnId, subId, false);
+            }
+        } finally {
+            mCarriersLock.writeLock().unlock();
+        }
+    }
+
     private int getPreferredApnSetId(int subId) {
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                Context.MODE_PRIVATE);
+        PreferredApnStore.PreferredApn preferredApn =
+                mPreferredApnStore.get(getReadableDatabase(), subId);
+        if (preferredApn == null || preferredApn.apn == null) {
+            return NO_APN_SET_ID;
+        }
         try {
-            return Integer.parseInt(sp.getString(APN_SET_ID + subId, null));
+            return Integer.parseInt(preferredApn.apn.get(APN_SET_ID));
         } catch (NumberFormatException e) {
             return NO_APN_SET_ID;
         }
     }
 
-    private void deletePreferredApnId() {
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
-
-        // Before deleting, save actual preferred apns (not the ids) in a separate SP.
-        // NOTE: This code to call setPreferredApn() can be removed since the function is now called
-        // from setPreferredApnId(). However older builds (pre oc-mr1) do not have that change, so
-        // when devices upgrade from those builds and this function is called, this code is needed
-        // otherwise the preferred APN will be lost.
-        Map<String, ?> allPrefApnId = sp.getAll();
-        for (String key : allPrefApnId.keySet()) {
-            // extract subId from key by removing COLUMN_APN_ID
-            try {
-                int subId = Integer.parseInt(key.replace(COLUMN_APN_ID, ""));
-                long apnId = getPreferredApnId(subId, false);
-                if (apnId != INVALID_APN_ID) {
-                    setPreferredApn(apnId, subId);
+    /**
+     * Delete the preferred APN ids of all subIds. The actual preferred APNs are saved first, so
+     * that they can be found again once the carriers table is reloaded.
+     */
+    private void deletePreferredApnId(SQLiteDatabase db) {
+        for (int subId : mPreferredApnStore.getSubIds(db)) {
+            PreferredApnStore.PreferredApn preferredApn = mPreferredApnStore.get(db, subId);
+            Map<String, String> apn = preferredApn.apn;
+            int version = preferredApn.version;
+            if (preferredApn.apnId != INVALID_APN_ID) {
+                Map<String, String> saved = getApnUniqueFields(db, preferredApn.apnId);
+                if (saved != null) {
+                    apn = saved;
+                    version = DATABASE_VERSION;
                 }
-            } catch (Exception e) {
-                loge("Skipping over key " + key + " due to exception " + e);
             }
+            mPreferredApnStore.put(db, subId, INVALID_APN_ID, false, apn, version);
         }
+    }
 
-        SharedPreferences.Editor editor = sp.edit();
-        editor.clear();
-        editor.apply();
+    /**
+     * Delete the preferred APN ids that no longer refer to an entry. The actual preferred APNs
+     * are kept, to find them again by their values.
+     */
+    private void deleteStalePreferredApnIds(SQLiteDatabase db) {
+        for (int subId : mPreferredApnStore.getSubIds(db)) {
+            PreferredApnStore.PreferredApn preferredApn = mPreferredApnStore.get(db, subId);
+            if (preferredApn.apnId != INVALID_APN_ID
+                    && DatabaseUtils.queryNumEntries(db, CARRIERS_TABLE, _ID + "=?",
+                            new String[]{String.valueOf(preferredApn.apnId)}) == 0) {
+                mPreferredApnStore.put(db, subId, INVALID_APN_ID, false, preferredApn.apn,
+                        preferredApn.version);
+            }
+        }
     }
 
-    private void setPreferredApn(Long id, int subId) {
-        log("setPreferredApn: _id " + id + " subId " + subId);
-        SQLiteDatabase db = getWritableDatabase();
+    /**
+     * Returns the values of the unique fields of the APN with the given _id, null if not found.
+     */
+    private Map<String, String> getApnUniqueFields(SQLiteDatabase db, long id) {
+        log("getApnUniqueFields: _id " + id);
         // query all unique fields from id
         String[] proj = CARRIERS_UNIQUE_FIELDS.toArray(new String[CARRIERS_UNIQUE_FIELDS.size()]);
 
-        Cursor c = db.query(CARRIERS_TABLE, proj, "_id=" + id, null, null, null, null);
-        if (c != null) {
-            if (c.getCount() == 1) {
-                c.moveToFirst();
-                SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                        Context.MODE_PRIVATE);
-                SharedPreferences.Editor editor = sp.edit();
-                // store values of all unique fields to SP
-                for (String key : CARRIERS_UNIQUE_FIELDS) {
-                    editor.putString(key + subId, c.getString(c.getColumnIndex(key)));
-                }
-                // also store the version number
-                editor.putString(DB_VERSION_KEY + subId, "" + DATABASE_VERSION);
-                editor.apply();
-            } else {
-                log("setPreferredApn: # matching APNs found " + c.getCount());
+        try (Cursor c = db.query(CARRIERS_TABLE, proj, "_id=?", new String[]{String.valueOf(id)},
+                null, null, null)) {
+            if (c == null || c.getCount() != 1) {
+                log("getApnUniqueFields: # matching APNs found "
+                        + (c != null ? c.getCount() : 0));
+                return null;
             }
-            c.close();
-        } else {
-            log("setPreferredApn: No matching APN found");
+            c.moveToFirst();
+            Map<String, String> apn = new HashMap<>();
+            for (int i = 0; i < proj.length; i++) {
+                apn.put(proj[i], c.getString(i));
+            }
+            return apn;
         }
     }
 
     private long getPreferredApnIdFromApn(int subId) {
         log("getPreferredApnIdFromApn: for subId " + subId);
         SQLiteDatabase db = getReadableDatabase();
+        PreferredApnStore.PreferredApn preferredApn = mPreferredApnStore.get(db, subId);
+        if (preferredApn == null || preferredApn.apn == null) {
+            return INVALID_APN_ID;
+        }
         String where = TextUtils.join("=? and ", CARRIERS_UNIQUE_FIELDS) + "=?";
         String[] whereArgs = new String[CARRIERS_UNIQUE_FIELDS.size()];
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                Context.MODE_PRIVATE);
         long apnId = INVALID_APN_ID;
         int i = 0;
         for (String key : CARRIERS_UNIQUE_FIELDS) {
-            whereArgs[i] = sp.getString(key + subId, null);
+            whereArgs[i] = preferredApn.apn.get(key);
             if (whereArgs[i] == null) {
                 return INVALID_APN_ID;
             }
@@ -2679,21 +3207,6 @@ public class TelephonyProvider extends ContentProvider
         return apnId;
     }
 
-    private void deletePreferredApn(int subId) {
-        log("deletePreferredApn: for subId " + subId);
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                Context.MODE_PRIVATE);
-        if (sp.contains(DB_VERSION_KEY + subId)) {
-            log("deletePreferredApn: apn is stored. Deleting it now for subId " + subId);
-            SharedPreferences.Editor editor = sp.edit();
-            editor.remove(DB_VERSION_KEY + subId);
-            for (String key : CARRIERS_UNIQUE_FIELDS) {
-                editor.remove(key + subId);
-            }
-            editor.apply();
-        }
-    }
-
     boolean isCallingFromSystemOrPhoneUid() {
         return mInjector.binderGetCallingUid() == Process.SYSTEM_UID ||
                 mInjector.binderGetCallingUid() == Process.PHONE_UID;
@@ -2705,9 +3218,45 @@ public class TelephonyProvider extends ContentProvider
         }
     }
 
+    /**
+     * Returns the lock of the table the given URI refers to.
+     */
+    @VisibleForTesting
+    ReentrantReadWriteLock getLockForUri(Uri url) {
+        switch (s_urlMatcher.match(url)) {
+            case URL_SIMINFO:
+            case URL_SIMINFO_USING_SUBID:
+                return mSimInfoLock;
+            default:
+                return mCarriersLock;
+        }
+    }
+
     @Override
-    public synchronized Cursor query(Uri url, String[] projectionIn, String selection,
+    public Cursor query(Uri url, String[] projectionIn, String selection,
             String[] selectionArgs, String sort) {
+        int match = s_urlMatcher.match(url);
+        waitForApnDbReady(match);
+        // The preferred APN queries may find the preferred APN by the saved APN fields. The id
+        // found is only stored once the read lock is released, since it cannot be upgraded.
+        SparseLongArray recoveredApnIds = new SparseLongArray();
+        Lock lock = getLockForUri(url).readLock();
+        Cursor cursor;
+        lock.lock();
+        try {
+            cursor = queryLocked(url, projectionIn, selection, selectionArgs, sort,
+                    recoveredApnIds);
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < recoveredApnIds.size(); i++) {
+            storePreferredApnIdFromApn(recoveredApnIds.keyAt(i));
+        }
+        return cursor;
+    }
+
+    private Cursor queryLocked(Uri url, String[] projectionIn, String selection,
+            String[] selectionArgs, String sort, SparseLongArray recoveredApnIds) {
         if (VDBG) log("query: url=" + url + ", projectionIn=" + projectionIn + ", selection="
                 + selection + "selectionArgs=" + selectionArgs + ", sort=" + sort);
         TelephonyManager mTelephonyManager =
@@ -2718,7 +3267,10 @@ public class TelephonyProvider extends ContentProvider
         qb.setStrict(true); // a little protection from injection attacks
         qb.setTables(CARRIERS_TABLE);
 
+        // The constraints only hold "?" for their values, which are bound from constraintArgs,
+        // so that the SQL is the same for all the queries of a URI type.
         List<String> constraints = new ArrayList<String>();
+        List<String> constraintArgs = new ArrayList<String>();
 
         int match = s_urlMatcher.match(url);
         checkQueryPermission(match, projectionIn);
@@ -2732,7 +3284,8 @@ public class TelephonyProvider extends ContentProvider
                     return null;
                 }
                 if (DBG) log("subIdString = " + subIdString + " subId = " + subId);
-                constraints.add(NUMERIC + " = '" + mTelephonyManager.getSimOperator(subId) + "'");
+                constraints.add(NUMERIC + " = ?");
+                constraintArgs.add(String.valueOf(mTelephonyManager.getSimOperator(subId)));
                 // TODO b/74213956 turn this back on once insertion includes correct sub id
                 // constraints.add(SUBSCRIPTION_ID + "=" + subIdString);
             }
@@ -2764,7 +3317,8 @@ public class TelephonyProvider extends ContentProvider
             }
 
             case URL_ID: {
-                constraints.add("_id = " + url.getPathSegments().get(1));
+                constraints.add("_id = ?");
+                constraintArgs.add(url.getPathSegments().get(1));
                 constraints.add(IS_NOT_OWNED_BY_DPC);
                 break;
             }
@@ -2785,7 +3339,8 @@ public class TelephonyProvider extends ContentProvider
             //intentional fall through from above case
             case URL_PREFERAPN:
             case URL_PREFERAPN_NO_UPDATE: {
-                constraints.add("_id = " + getPreferredApnId(subId, true));
+                constraints.add("_id = ?");
+                constraintArgs.add(String.valueOf(getPreferredApnId(subId, recoveredApnIds)));
                 break;
             }
 
@@ -2805,7 +3360,8 @@ public class TelephonyProvider extends ContentProvider
             case URL_PREFERAPNSET: {
                 final int set = getPreferredApnSetId(subId);
                 if (set != NO_APN_SET_ID) {
-                    constraints.add(APN_SET_ID + "=" + set);
+                    constraints.add(APN_SET_ID + " = ?");
+                    constraintArgs.add(String.valueOf(set));
                 }
                 break;
             }
@@ -2821,7 +3377,8 @@ public class TelephonyProvider extends ContentProvider
             case URL_FILTERED_USING_SUBID: {
                 String idString = url.getLastPathSegment();
                 if (match == URL_FILTERED_ID) {
-                    constraints.add("_id = " + idString);
+                    constraints.add("_id = ?");
+                    constraintArgs.add(idString);
                 } else {
                     try {
                         subId = Integer.parseInt(idString);
@@ -2868,9 +3425,8 @@ public class TelephonyProvider extends ContentProvider
             }
             //intentional fall through from above case
             case URL_SIM_APN_LIST: {
-                qb.appendWhere(IS_NOT_OWNED_BY_DPC);
                 return getSubscriptionMatchingAPNList(qb, projectionIn, selection, selectionArgs,
-                        sort, subId);
+                        sort, subId, IS_NOT_OWNED_BY_DPC);
             }
 
             case URL_SIM_APN_LIST_FILTERED_ID: {
@@ -2884,15 +3440,11 @@ public class TelephonyProvider extends ContentProvider
             }
             //intentional fall through from above case
             case URL_SIM_APN_LIST_FILTERED: {
-                if (isManagedApnEnforced()) {
-                    // If enforced, return DPC records only.
-                    qb.appendWhereStandalone(IS_OWNED_BY_DPC);
-                } else {
-                    // Otherwise return non-DPC records only.
-                    qb.appendWhereStandalone(IS_NOT_OWNED_BY_DPC);
-                }
+                // If enforced, return DPC records only. Otherwise return non-DPC records only.
+                String ownerClause =
+                        isManagedApnEnforced() ? IS_OWNED_BY_DPC : IS_NOT_OWNED_BY_DPC;
                 return getSubscriptionMatchingAPNList(qb, projectionIn, selection, selectionArgs,
-                    sort, subId);
+                        sort, subId, ownerClause);
             }
 
             default: {
@@ -2900,28 +3452,38 @@ public class TelephonyProvider extends ContentProvider
             }
         }
 
-        // appendWhere doesn't add ANDs so we do it ourselves
-        if (constraints.size() > 0) {
-            qb.appendWhere(TextUtils.join(" AND ", constraints));
+        // Exclude entries marked deleted
+        if (CARRIERS_TABLE.equals(qb.getTables())) {
+            constraints.add(IS_NOT_DELETED);
         }
+        // appendWhere doesn't add ANDs so we do it ourselves
+        String where = TextUtils.join(" AND ", constraints);
 
         SQLiteDatabase db = getReadableDatabase();
         Cursor ret = null;
         try {
-            // Exclude entries marked deleted
-            if (CARRIERS_TABLE.equals(qb.getTables())) {
-                if (TextUtils.isEmpty(selection)) {
-                    selection = "";
-                } else {
-                    selection += " and ";
+            List<Object> key = QueryTemplateCache.getKey(qb.getTables(), where, projectionIn,
+                    selection, sort);
+            String sql = mQueryTemplates.get(key);
+            if (sql == null) {
+                if (!TextUtils.isEmpty(where)) {
+                    qb.appendWhere(where);
                 }
-                selection += IS_NOT_USER_DELETED + " and " +
-                        IS_NOT_USER_DELETED_BUT_PRESENT_IN_XML + " and " +
-                        IS_NOT_CARRIER_DELETED + " and " +
-                        IS_NOT_CARRIER_DELETED_BUT_PRESENT_IN_XML;
-                if (VDBG) log("query: selection modified to " + selection);
-            }
-            ret = qb.query(db, projectionIn, selection, selectionArgs, null, null, sort);
+                if (!TextUtils.isEmpty(selection)) {
+                    // As SQLiteQueryBuilder does in strict mode: the selection must not be able
+                    // to escape its parentheses.
+                    db.validateSql(qb.buildQuery(projectionIn, "(" + selection + ")", null, null,
+                            sort, null), null);
+                }
+                sql = qb.buildQuery(projectionIn, selection, null, null, sort, null);
+                mQueryTemplates.put(key, sql);
+            }
+            // The provider constraints come first in the statement, then the selection.
+            constraintArgs.addAll(Arrays.asList(selectionArgs != null
+                    ? selectionArgs : new String[0]));
+            ret = db.rawQueryWithFactory(null, sql,
+                    constraintArgs.toArray(new String[constraintArgs.size()]),
+                    SQLiteDatabase.findEditTable(qb.getTables()));
         } catch (SQLException e) {
             loge("got exception when querying: " + e);
         }
@@ -2963,42 +3525,49 @@ public class TelephonyProvider extends ContentProvider
      * 2. If can't find the current APN, then query the parent APN. Query based on { MCC, MNC }.
      * 3. else return empty cursor
      *
+     * The resolved list is cached per subscription, see {@link ApnListCache}.
      */
     private Cursor getSubscriptionMatchingAPNList(SQLiteQueryBuilder qb, String[] projectionIn,
-            String selection, String[] selectionArgs, String sort, int subId) {
-        Cursor ret;
+            String selection, String[] selectionArgs, String sort, int subId,
+            String ownerClause) {
+        String key = ApnListCache.getKey(subId, ownerClause, selection, selectionArgs, sort);
+        ApnListCache.ApnList apnList = mApnListCache.get(key);
+        if (apnList == null) {
+            long generation = mApnListCache.getGeneration();
+            apnList = resolveSubscriptionMatchingAPNList(qb, selection, selectionArgs, sort,
+                    subId, ownerClause);
+            if (apnList == null) {
+                return null;
+            }
+            mApnListCache.put(key, apnList, generation);
+        } else {
+            if (VDBG) log("APN list of subId " + subId + " found in cache");
+        }
+        return apnList.toCursor(projectionIn);
+    }
+
+    private ApnListCache.ApnList resolveSubscriptionMatchingAPNList(SQLiteQueryBuilder qb,
+            String selection, String[] selectionArgs, String sort, int subId,
+            String ownerClause) {
         final TelephonyManager tm = ((TelephonyManager)
                 getContext().getSystemService(Context.TELEPHONY_SERVICE))
                 .createForSubscriptionId(subId);
         SQLiteDatabase db = getReadableDatabase();
         String mccmnc = tm.getSimOperator();
 
-        qb.appendWhereStandalone(IS_NOT_USER_DELETED + " and " +
-                IS_NOT_USER_DELETED_BUT_PRESENT_IN_XML + " and " +
-                IS_NOT_CARRIER_DELETED + " and " +
-                IS_NOT_CARRIER_DELETED_BUT_PRESENT_IN_XML);
+        qb.appendWhereStandalone(ownerClause);
+        qb.appendWhereStandalone(IS_NOT_DELETED);
 
         // For query db one time, append step 1 and step 2 condition in one selection and
         // separate results after the query is completed. Because IMSI has special match rule,
         // so just query the MCC / MNC and filter the MVNO by ourselves
-        qb.appendWhereStandalone(NUMERIC + " = '" + mccmnc + "' ");
-
-        ret = qb.query(db, null, selection, selectionArgs, null, null, sort);
-        if (ret == null) {
-            loge("query current APN but cursor is null.");
-            return null;
+        qb.appendWhereStandalone(NUMERIC + " = ?");
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(mccmnc));
+        if (selectionArgs != null) {
+            args.addAll(Arrays.asList(selectionArgs));
         }
 
-        if (DBG) log("match current APN size:  " + ret.getCount());
-
-        String[] coulmnNames = projectionIn != null ? projectionIn : ret.getColumnNames();
-        MatrixCursor currentCursor = new MatrixCursor(coulmnNames);
-        MatrixCursor parentCursor = new MatrixCursor(coulmnNames);
-
-        int numericIndex = ret.getColumnIndex(NUMERIC);
-        int mvnoIndex = ret.getColumnIndex(MVNO_TYPE);
-        int mvnoDataIndex = ret.getColumnIndex(MVNO_MATCH_DATA);
-
         IccRecords iccRecords = UiccController.getInstance().getIccRecords(
                 SubscriptionManager.getPhoneId(subId), UiccController.APP_FAM_3GPP);
         if (iccRecords == null) {
@@ -3006,36 +3575,57 @@ public class TelephonyProvider extends ContentProvider
             return null;
         }
 
-        //Separate the result into MatrixCursor
-        while (ret.moveToNext()) {
-            List<String> data = new ArrayList<>();
-            for (String column : coulmnNames) {
-                data.add(ret.getString(ret.getColumnIndex(column)));
+        try (Cursor ret = qb.query(db, null, selection, args.toArray(new String[args.size()]),
+                null, null, sort)) {
+            if (ret == null) {
+                loge("query current APN but cursor is null.");
+                return null;
             }
 
-            if (!TextUtils.isEmpty(ret.getString(numericIndex)) &&
-                    ApnSettingUtils.mvnoMatches(iccRecords,
-                            ApnSetting.getMvnoTypeIntFromString(ret.getString(mvnoIndex)),
-                            ret.getString(mvnoDataIndex))) {
-                // 1. APN query result based on legacy SIM MCC/MCC and MVNO
-                currentCursor.addRow(data);
-            } else if (!TextUtils.isEmpty(ret.getString(numericIndex)) &&
-                    TextUtils.isEmpty(ret.getString(mvnoIndex))) {
-                // 2. APN query result based on SIM MCC/MNC
-                parentCursor.addRow(data);
+            if (DBG) log("match current APN size:  " + ret.getCount());
+
+            String[] columnNames = ret.getColumnNames();
+            List<String[]> currentRows = new ArrayList<>();
+            List<String[]> parentRows = new ArrayList<>();
+
+            int numericIndex = ret.getColumnIndex(NUMERIC);
+            int mvnoIndex = ret.getColumnIndex(MVNO_TYPE);
+            int mvnoDataIndex = ret.getColumnIndex(MVNO_MATCH_DATA);
+
+            //Separate the result into the current and parent lists
+            while (ret.moveToNext()) {
+                if (TextUtils.isEmpty(ret.getString(numericIndex))) {
+                    continue;
+                }
+                List<String[]> rows;
+                if (ApnSettingUtils.mvnoMatches(iccRecords,
+                        ApnSetting.getMvnoTypeIntFromString(ret.getString(mvnoIndex)),
+                        ret.getString(mvnoDataIndex))) {
+                    // 1. APN query result based on legacy SIM MCC/MCC and MVNO
+                    rows = currentRows;
+                } else if (TextUtils.isEmpty(ret.getString(mvnoIndex))) {
+                    // 2. APN query result based on SIM MCC/MNC
+                    rows = parentRows;
+                } else {
+                    continue;
+                }
+                String[] row = new String[columnNames.length];
+                for (int i = 0; i < columnNames.length; i++) {
+                    row[i] = ret.getString(i);
+                }
+                rows.add(row);
             }
-        }
-        ret.close();
 
-        if (currentCursor.getCount() > 0) {
-            if (DBG) log("match MVNO APN: " + currentCursor.getCount());
-            return currentCursor;
-        } else if (parentCursor.getCount() > 0) {
-            if (DBG) log("match MNO APN: " + parentCursor.getCount());
-            return parentCursor;
-        } else {
-            if (DBG) log("APN no match");
-            return new MatrixCursor(coulmnNames);
+            if (currentRows.size() > 0) {
+                if (DBG) log("match MVNO APN: " + currentRows.size());
+                return new ApnListCache.ApnList(columnNames, currentRows);
+            } else if (parentRows.size() > 0) {
+                if (DBG) log("match MNO APN: " + parentRows.size());
+                return new ApnListCache.ApnList(columnNames, parentRows);
+            } else {
+                if (DBG) log("APN no match");
+                return new ApnListCache.ApnList(columnNames, currentRows);
+            }
         }
     }
 
@@ -3069,36 +3659,117 @@ public class TelephonyProvider extends ContentProvider
      * Insert an array of ContentValues and call notifyChange at the end.
      */
     @Override
-    public synchronized int bulkInsert(Uri url, ContentValues[] values) {
-        return unsynchronizedBulkInsert(url, values);
+    public int bulkInsert(Uri url, ContentValues[] values) {
+        Lock lock = getLockForUri(url).writeLock();
+        lock.lock();
+        try {
+            return unsynchronizedBulkInsert(url, values);
+        } finally {
+            mApnListCache.invalidate();
+            lock.unlock();
+        }
     }
 
     /**
-     * Do a bulk insert while inside a synchronized function. This is typically not safe and should
-     * only be done when you are sure there will be no conflict.
+     * Do a bulk insert while holding the write lock of the table, e.g. from delete().
+     *
+     * The values are inserted in a single transaction, with the permission checked once. The
+     * APNs that conflict with an existing entry are not merged as they come but collected, and
+     * merged once all the values are inserted, see {@link #mergeConflictingApns}.
+     *
+     * @return the number of values that changed the table: the rows inserted, the conflicting
+     *         APNs merged into their existing entry and the ones kept as separate rows
      */
     private int unsynchronizedBulkInsert(Uri url, ContentValues[] values) {
+        checkPermission();
+
         int count = 0;
+        int merged = 0;
+        int separate = 0;
         boolean notify = false;
-        for (ContentValues value : values) {
-            Pair<Uri, Boolean> rowAndNotify = insertSingleRow(url, value);
-            if (rowAndNotify.first != null) {
-                count++;
+        List<ContentValues> conflicts = new ArrayList<>();
+        SQLiteDatabase db = getWritableDatabase();
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                Pair<Uri, Boolean> rowAndNotify = insertSingleRow(url, value, conflicts);
+                if (rowAndNotify.first != null) {
+                    count++;
+                }
+                if (rowAndNotify.second) {
+                    notify = true;
+                }
             }
-            if (rowAndNotify.second == true) {
-                notify = true;
+            Pair<Integer, Integer> mergedAndSeparate = mergeConflictingApns(db, conflicts);
+            merged = mergedAndSeparate.first;
+            separate = mergedAndSeparate.second;
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+            if (!success) {
+                mPreferredApnStore.reset();
             }
         }
-        if (notify) {
+        if (DBG) {
+            log("bulkInsert: " + values.length + " values, inserted=" + count + " merged="
+                    + merged + " separate=" + separate + " conflicts=" + conflicts.size());
+        }
+
+        if (notify || merged > 0 || separate > 0) {
             getContext().getContentResolver().notifyChange(CONTENT_URI, null,
                     true, UserHandle.USER_ALL);
         }
-        return count;
+        return count + merged + separate;
+    }
+
+    /**
+     * Merges the APNs that conflicted with an existing entry on insert into that entry. The
+     * entries are looked up in a single scan of the table.
+     *
+     * @return the number of APNs merged into their entry and the number of APNs kept as a
+     *         separate row
+     */
+    private Pair<Integer, Integer> mergeConflictingApns(SQLiteDatabase db,
+            List<ContentValues> conflicts) {
+        if (conflicts.isEmpty()) {
+            return Pair.create(0, 0);
+        }
+        Map<String, Long> rowIds = DatabaseHelper.loadRowIds(db);
+        int merged = 0;
+        int separate = 0;
+        for (ContentValues values : conflicts) {
+            Long id = rowIds.get(DatabaseHelper.getUniqueKey(values));
+            try (Cursor oldRow = id != null ? DatabaseHelper.selectRowById(db, id) : null) {
+                if (oldRow == null) {
+                    // Not a conflict on the unique fields, e.g. a NOT NULL field
+                    loge("mergeConflictingApns: no conflicting row for " + values);
+                    continue;
+                }
+                ContentValues mergedValues = new ContentValues();
+                if (DatabaseHelper.mergeFieldsAndUpdateDb(db, CARRIERS_TABLE, oldRow, values,
+                        mergedValues, false, getContext())) {
+                    merged++;
+                } else {
+                    separate++;
+                }
+            }
+        }
+        return Pair.create(merged, separate);
     }
 
     @Override
-    public synchronized Uri insert(Uri url, ContentValues initialValues) {
-        Pair<Uri, Boolean> rowAndNotify = insertSingleRow(url, initialValues);
+    public Uri insert(Uri url, ContentValues initialValues) {
+        Pair<Uri, Boolean> rowAndNotify;
+        Lock lock = getLockForUri(url).writeLock();
+        lock.lock();
+        try {
+            rowAndNotify = insertSingleRow(url, initialValues);
+        } finally {
+            mApnListCache.invalidate();
+            lock.unlock();
+        }
         if (rowAndNotify.second) {
             getContext().getContentResolver().notifyChange(CONTENT_URI, null,
                     true, UserHandle.USER_ALL);
@@ -3110,14 +3781,30 @@ public class TelephonyProvider extends ContentProvider
      * Internal insert function to prevent code duplication for URL_TELEPHONY and URL_DPC.
      *
      * @param values the value that caller wants to insert
+     * @param conflicts if not null, the values that conflict with an existing entry are added
+     *        to it, to be merged later, instead of being merged right away
      * @return a pair in which the first element refers to the Uri for the row inserted, the second
      *         element refers to whether sends out nofitication.
      */
-    private Pair<Uri, Boolean> insertRowWithValue(ContentValues values) {
+    private Pair<Uri, Boolean> insertRowWithValue(ContentValues values,
+            List<ContentValues> conflicts) {
         Uri result = null;
         boolean notify = false;
         SQLiteDatabase db = getWritableDatabase();
 
+        if (conflicts != null) {
+            long rowID = db.insertWithOnConflict(CARRIERS_TABLE, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+            if (rowID >= 0) {
+                result = ContentUris.withAppendedId(CONTENT_URI, rowID);
+                notify = true;
+            } else {
+                conflicts.add(values);
+            }
+            if (VDBG) log("insert: inserted " + values.toString() + " rowID = " + rowID);
+            return Pair.create(result, notify);
+        }
+
         try {
             // Abort on conflict of unique fields and attempt merge
             long rowID = db.insertWithOnConflict(CARRIERS_TABLE, null, values,
@@ -3144,10 +3831,20 @@ public class TelephonyProvider extends ContentProvider
     }
 
     private Pair<Uri, Boolean> insertSingleRow(Uri url, ContentValues initialValues) {
+        checkPermission();
+        return insertSingleRow(url, initialValues, null);
+    }
+
+    /**
+     * Inserts a row, the permission being checked by the caller.
+     *
+     * @param conflicts see {@link #insertRowWithValue}
+     */
+    private Pair<Uri, Boolean> insertSingleRow(Uri url, ContentValues initialValues,
+            List<ContentValues> conflicts) {
         Uri result = null;
         int subId = SubscriptionManager.getDefaultSubscriptionId();
 
-        checkPermission();
         syncBearerBitmaskAndNetworkTypeBitmask(initialValues);
 
         boolean notify = false;
@@ -3184,7 +3881,7 @@ public class TelephonyProvider extends ContentProvider
                 // Owned_by should be others if inserted via general uri.
                 values.put(OWNED_BY, OWNED_BY_OTHERS);
 
-                Pair<Uri, Boolean> ret = insertRowWithValue(values);
+                Pair<Uri, Boolean> ret = insertRowWithValue(values, conflicts);
                 result = ret.first;
                 notify = ret.second;
                 break;
@@ -3286,7 +3983,18 @@ public class TelephonyProvider extends ContentProvider
     }
 
     @Override
-    public synchronized int delete(Uri url, String where, String[] whereArgs) {
+    public int delete(Uri url, String where, String[] whereArgs) {
+        Lock lock = getLockForUri(url).writeLock();
+        lock.lock();
+        try {
+            return deleteLocked(url, where, whereArgs);
+        } finally {
+            mApnListCache.invalidate();
+            lock.unlock();
+        }
+    }
+
+    private int deleteLocked(Uri url, String where, String[] whereArgs) {
         int count = 0;
         int subId = SubscriptionManager.getDefaultSubscriptionId();
         String userOrCarrierEdited = ") and (" +
@@ -3307,11 +4015,22 @@ public class TelephonyProvider extends ContentProvider
         {
             case URL_DELETE:
             {
-                // Delete preferred APN for all subIds
-                deletePreferredApnId();
-                // Delete unedited entries
-                count = db.delete(CARRIERS_TABLE, "(" + where + unedited + " and " +
-                        IS_NOT_OWNED_BY_DPC, whereArgs);
+                // Delete preferred APN for all subIds, in the same transaction as the entries
+                boolean success = false;
+                db.beginTransaction();
+                try {
+                    deletePreferredApnId(db);
+                    // Delete unedited entries
+                    count = db.delete(CARRIERS_TABLE, "(" + where + unedited + " and " +
+                            IS_NOT_OWNED_BY_DPC, whereArgs);
+                    db.setTransactionSuccessful();
+                    success = true;
+                } finally {
+                    db.endTransaction();
+                    if (!success) {
+                        mPreferredApnStore.reset();
+                    }
+                }
                 break;
             }
 
@@ -3436,8 +4155,7 @@ public class TelephonyProvider extends ContentProvider
             }
 
             case URL_UPDATE_DB: {
-                updateApnDb();
-                count = 1;
+                count = updateApnDb() ? 1 : 0;
                 break;
             }
 
@@ -3455,7 +4173,18 @@ public class TelephonyProvider extends ContentProvider
     }
 
     @Override
-    public synchronized int update(Uri url, ContentValues values, String where, String[] whereArgs)
+    public int update(Uri url, ContentValues values, String where, String[] whereArgs) {
+        Lock lock = getLockForUri(url).writeLock();
+        lock.lock();
+        try {
+            return updateLocked(url, values, where, whereArgs);
+        } finally {
+            mApnListCache.invalidate();
+            lock.unlock();
+        }
+    }
+
+    private int updateLocked(Uri url, ContentValues values, String where, String[] whereArgs)
     {
         int count = 0;
         int uriType = URL_UNKNOWN;
@@ -3701,25 +4430,65 @@ public class TelephonyProvider extends ContentProvider
         return (usingSubId) ? Uri.withAppendedPath(uri, "" + subId) : uri;
     }
 
+    /**
+     * Check that the caller holds WRITE_APN_SETTINGS or has carrier privileges. The decision is
+     * cached per calling UID until a package, the SIM, the carrier config or the subscriptions
+     * change.
+     */
     private void checkPermission() {
+        int uid = mInjector.binderGetCallingUid();
+        long generation;
+        synchronized (mPermissionDecisions) {
+            int index = mPermissionDecisions.indexOfKey(uid);
+            if (index >= 0) {
+                if (mPermissionDecisions.valueAt(index)) {
+                    return;
+                }
+                throw new SecurityException("No permission to write APN settings");
+            }
+            generation = mPermissionGeneration;
+        }
+
+        boolean granted = hasWriteApnPermission(uid);
+        synchronized (mPermissionDecisions) {
+            if (generation == mPermissionGeneration) {
+                mPermissionDecisions.put(uid, granted);
+            }
+        }
+        if (!granted) {
+            throw new SecurityException("No permission to write APN settings");
+        }
+    }
+
+    private boolean hasWriteApnPermission(int uid) {
         int status = getContext().checkCallingOrSelfPermission(
                 "android.permission.WRITE_APN_SETTINGS");
         if (status == PackageManager.PERMISSION_GRANTED) {
-            return;
+            return true;
         }
 
         PackageManager packageManager = getContext().getPackageManager();
-        String[] packages = packageManager.getPackagesForUid(Binder.getCallingUid());
+        String[] packages = packageManager.getPackagesForUid(uid);
+        if (packages == null) {
+            return false;
+        }
 
         TelephonyManager telephonyManager =
                 (TelephonyManager) getContext().getSystemService(Context.TELEPHONY_SERVICE);
         for (String pkg : packages) {
             if (telephonyManager.checkCarrierPrivilegesForPackageAnyPhone(pkg) ==
                     TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS) {
-                return;
+                return true;
             }
         }
-        throw new SecurityException("No permission to write APN settings");
+        return false;
+    }
+
+    private void invalidatePermissionDecisions() {
+        synchronized (mPermissionDecisions) {
+            mPermissionGeneration++;
+            mPermissionDecisions.clear();
+        }
     }
 
     private DatabaseHelper mOpenHelper;
@@ -3737,26 +4506,25 @@ public class TelephonyProvider extends ContentProvider
         }
         log("restoreDefaultAPN: where: " + where);
 
+        // delete preferred apn ids and preferred apns for all subIds, in the same transaction
+        boolean success = false;
+        db.beginTransaction();
         try {
-            db.delete(CARRIERS_TABLE, where, null);
-        } catch (SQLException e) {
-            loge("got exception when deleting to restore: " + e);
+            try {
+                db.delete(CARRIERS_TABLE, where, null);
+            } catch (SQLException e) {
+                loge("got exception when deleting to restore: " + e);
+            }
+            mPreferredApnStore.clear(db);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+            if (!success) {
+                mPreferredApnStore.reset();
+            }
         }
 
-        // delete preferred apn ids and preferred apns (both stored in diff SharedPref) for all
-        // subIds
-        SharedPreferences spApnId = getContext().getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
-        SharedPreferences.Editor editorApnId = spApnId.edit();
-        editorApnId.clear();
-        editorApnId.apply();
-
-        SharedPreferences spApn = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                Context.MODE_PRIVATE);
-        SharedPreferences.Editor editorApn = spApn.edit();
-        editorApn.clear();
-        editorApn.apply();
-
         if (apnSourceServiceExists(getContext())) {
             restoreApnsWithService(subId);
         } else {
@@ -3813,36 +4581,69 @@ public class TelephonyProvider extends ContentProvider
                 SubscriptionManager.getPhoneId(subId), family);
     }
 
-    private synchronized void updateApnDb() {
+    /**
+     * Applies the changes of the xml files to the carriers table, if they changed since the last
+     * update. The checksum of the files is stored once the changes have committed.
+     *
+     * @return false if the update failed and was rolled back
+     */
+    private boolean updateApnDb() {
         if (apnSourceServiceExists(getContext())) {
             loge("called updateApnDb when apn source service exists");
-            return;
+            return true;
         }
 
         if (!needApnDbUpdate()) {
             log("Skipping apn db update since apn-conf has not changed.");
-            return;
+            return true;
         }
 
-        SQLiteDatabase db = getWritableDatabase();
-
-        // Delete preferred APN for all subIds
-        deletePreferredApnId();
+        // Read the xml files before taking the lock, the APN queries are only blocked while the
+        // changes are applied.
+        DatabaseHelper.ApnFiles apnFiles = readApnFilesWithDatabaseHelper();
 
-        // Delete entries in db
+        mCarriersLock.writeLock().lock();
         try {
-            if (VDBG) log("updateApnDb: deleting edited=UNEDITED entries");
-            db.delete(CARRIERS_TABLE, IS_UNEDITED + " and " + IS_NOT_OWNED_BY_DPC, null);
-        } catch (SQLException e) {
-            loge("got exception when deleting to update: " + e);
-        }
+            // Another update may have run while the files were read.
+            if (!needApnDbUpdate()) {
+                log("Skipping apn db update since it was updated meanwhile.");
+                return true;
+            }
+            SQLiteDatabase db = getWritableDatabase();
+
+            // Apply the changes of the xml files to the unedited entries and delete the preferred
+            // APN ids whose entry went away, in one transaction. The preferred APNs that are
+            // unchanged keep their ids.
+            boolean success = false;
+            db.beginTransaction();
+            try {
+                updateDatabaseWithDatabaseHelper(db, apnFiles);
+                deleteStalePreferredApnIds(db);
+                db.setTransactionSuccessful();
+                success = true;
+            } catch (SQLException e) {
+                loge("updateApnDb: rolled back, keeping the previous APNs: " + e);
+            } finally {
+                db.endTransaction();
+                if (!success) {
+                    mPreferredApnStore.reset();
+                }
+            }
+            if (!success) {
+                return false;
+            }
 
-        initDatabaseWithDatabaseHelper(db);
+            // Stored under the lock, so that another update does not apply the files again.
+            setApnConfChecksumWithDatabaseHelper(apnFiles.checksum);
+            mApnListCache.invalidate();
+        } finally {
+            mCarriersLock.writeLock().unlock();
+        }
 
         // Notify listeners of DB change since DB has been updated
         getContext().getContentResolver().notifyChange(
                 CONTENT_URI, null, true, UserHandle.USER_ALL);
-
+        return true;
     }
 
     public static void fillInMccMncStringAtCursor(Context context, SQLiteDatabase db, Cursor c) {
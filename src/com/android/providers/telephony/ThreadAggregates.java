@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.Telephony.Sms;
+import android.util.LongSparseArray;
+
+/**
+ * Incremental maintenance of the aggregate columns of the threads table (message_count, date,
+ * snippet, error and read) when messages are deleted.
+ *
+ * Usage, all inside one transaction:
+ * <pre>
+ *   ThreadAggregates deltas = ThreadAggregates.forSmsDelete(db, where, whereArgs);
+ *   db.delete("sms", where, whereArgs);
+ *   deltas.apply(db);
+ * </pre>
+ *
+ * Only the threads of the deleted messages are touched, and only with indexed per-thread
+ * lookups, instead of recounting every thread as
+ * {@link MmsSmsDatabaseHelper#updateThreads} does. The latter remains available to repair the
+ * threads table.
+ */
+final class ThreadAggregates {
+    private static final String[] SMS_DELTA_PROJECTION = new String[] {
+            Sms.THREAD_ID,
+            "SUM(" + Sms.TYPE + "!=" + Sms.MESSAGE_TYPE_DRAFT + ")",
+            "SUM(" + Sms.TYPE + "=" + Sms.MESSAGE_TYPE_FAILED + ")",
+            "SUM(" + Sms.READ + "=0)"
+    };
+    private static final int COLUMN_THREAD_ID = 0;
+    private static final int COLUMN_COUNTED = 1;
+    private static final int COLUMN_FAILED = 2;
+    private static final int COLUMN_UNREAD = 3;
+
+    private static final String DELETE_EMPTY_THREAD =
+            "DELETE FROM threads WHERE _id=?1" +
+            " AND NOT EXISTS (SELECT 1 FROM sms WHERE thread_id=?1)" +
+            " AND NOT EXISTS (SELECT 1 FROM pdu WHERE thread_id=?1)";
+
+    private static final String EMPTY_THREADS =
+            "_id NOT IN (" +
+                " SELECT thread_id FROM sms WHERE thread_id NOT NULL" +
+                " UNION" +
+                " SELECT thread_id FROM pdu WHERE thread_id NOT NULL)";
+
+    private static final String UPDATE_MESSAGE_COUNT =
+            "UPDATE threads SET message_count=MAX(message_count-?2, 0) WHERE _id=?1";
+
+    private static final String UPDATE_DATE_SNIPPET =
+            "WITH matches AS (" +
+                " SELECT date * 1000 AS date, sub AS snippet, sub_cs AS snippet_cs FROM pdu" +
+                " WHERE thread_id=?1" +
+                " UNION" +
+                " SELECT date, body AS snippet, 0 AS snippet_cs FROM sms" +
+                " WHERE thread_id=?1" +
+                " ORDER BY date DESC" +
+                " LIMIT 1" +
+            ")" +
+            " UPDATE threads" +
+            " SET date = (SELECT date FROM matches)," +
+                " snippet = (SELECT snippet FROM matches)," +
+                " snippet_cs = (SELECT snippet_cs FROM matches)" +
+            " WHERE _id=?1";
+
+    private static final String UPDATE_ERROR =
+            "UPDATE threads SET error=EXISTS (SELECT 1 FROM sms" +
+                " WHERE thread_id=?1 AND type=" + Sms.MESSAGE_TYPE_FAILED + ")" +
+            " WHERE _id=?1";
+
+    private static final String UPDATE_READ =
+            "UPDATE threads SET read=NOT (" +
+                " EXISTS (SELECT 1 FROM sms WHERE thread_id=?1 AND read=0)" +
+                " OR EXISTS (SELECT 1 FROM pdu WHERE thread_id=?1 AND read=0" +
+                    " AND (m_type=132 OR m_type=130 OR m_type=128)))" +
+            " WHERE _id=?1";
+
+    /** Per-thread delta of the messages about to be deleted. */
+    private static final class Delta {
+        int mCounted;
+        int mFailed;
+        int mUnread;
+        boolean mHasSms;
+    }
+
+    private final LongSparseArray<Delta> mDeltas = new LongSparseArray<>();
+    private boolean mAllThreads;
+
+    private ThreadAggregates() {
+    }
+
+    /**
+     * Collect the deltas of the sms rows matching the 'where' condition. To be called right
+     * before deleting them, in the same transaction.
+     */
+    static ThreadAggregates forSmsDelete(SQLiteDatabase db, String where, String[] whereArgs) {
+        ThreadAggregates aggregates = new ThreadAggregates();
+        aggregates.addSmsDelete(db, where, whereArgs);
+        return aggregates;
+    }
+
+    /**
+     * Collect the deltas of the sms rows matching the 'where' condition. To be called right
+     * before deleting them, in the same transaction.
+     */
+    void addSmsDelete(SQLiteDatabase db, String where, String[] whereArgs) {
+        String selection = Sms.THREAD_ID + " NOT NULL";
+        if (where != null) {
+            selection += " AND (" + where + ")";
+        }
+        try (Cursor c = db.query(SmsProvider.TABLE_SMS, SMS_DELTA_PROJECTION, selection,
+                whereArgs, Sms.THREAD_ID, null, null)) {
+            while (c.moveToNext()) {
+                Delta delta = getOrCreateDelta(c.getLong(COLUMN_THREAD_ID));
+                delta.mCounted += c.getInt(COLUMN_COUNTED);
+                delta.mFailed += c.getInt(COLUMN_FAILED);
+                delta.mUnread += c.getInt(COLUMN_UNREAD);
+                delta.mHasSms = true;
+            }
+        }
+    }
+
+    /**
+     * Record the threads of the pdu rows matching the 'where' condition. The pdu triggers
+     * already keep the other columns of those threads up to date, so they are only checked
+     * for being empty. To be called right before deleting the rows, in the same transaction.
+     */
+    void addPduDelete(SQLiteDatabase db, String where, String[] whereArgs) {
+        String selection = "thread_id NOT NULL";
+        if (where != null) {
+            selection += " AND (" + where + ")";
+        }
+        try (Cursor c = db.query(true, MmsProvider.TABLE_PDU, new String[] { "thread_id" },
+                selection, whereArgs, null, null, null, null)) {
+            while (c.moveToNext()) {
+                getOrCreateDelta(c.getLong(0));
+            }
+        }
+    }
+
+    /**
+     * Record a thread to delete if it is left without any message, whether or not messages of
+     * it are deleted, as when a conversation is deleted.
+     */
+    void addThread(long threadId) {
+        getOrCreateDelta(threadId);
+    }
+
+    /**
+     * Delete every thread left without any message, as when all the conversations are deleted.
+     * This scans the sms and pdu tables once.
+     */
+    void addAllThreads() {
+        mAllThreads = true;
+    }
+
+    private Delta getOrCreateDelta(long threadId) {
+        Delta delta = mDeltas.get(threadId);
+        if (delta == null) {
+            delta = new Delta();
+            mDeltas.put(threadId, delta);
+        }
+        return delta;
+    }
+
+    /**
+     * Apply the collected deltas once the messages are deleted, in the same transaction.
+     * Threads left without any message are deleted. An exception is thrown as is, for the
+     * caller to roll back the delete along with the aggregates.
+     */
+    void apply(SQLiteDatabase db) {
+        if (mDeltas.size() == 0 && !mAllThreads) {
+            return;
+        }
+        SQLiteStatement deleteEmpty = null;
+        SQLiteStatement updateCount = null;
+        SQLiteStatement updateSnippet = null;
+        SQLiteStatement updateError = null;
+        SQLiteStatement updateRead = null;
+        int deletedThreads = 0;
+
+        try {
+            deleteEmpty = db.compileStatement(DELETE_EMPTY_THREAD);
+            updateCount = db.compileStatement(UPDATE_MESSAGE_COUNT);
+            updateSnippet = db.compileStatement(UPDATE_DATE_SNIPPET);
+            updateError = db.compileStatement(UPDATE_ERROR);
+            updateRead = db.compileStatement(UPDATE_READ);
+
+            for (int i = 0; i < mDeltas.size(); i++) {
+                long threadId = mDeltas.keyAt(i);
+                Delta delta = mDeltas.valueAt(i);
+
+                deleteEmpty.bindLong(1, threadId);
+                if (deleteEmpty.executeUpdateDelete() > 0) {
+                    deletedThreads++;
+                    continue;
+                }
+                if (!delta.mHasSms) {
+                    continue;
+                }
+                if (delta.mCounted > 0) {
+                    updateCount.bindLong(1, threadId);
+                    updateCount.bindLong(2, delta.mCounted);
+                    updateCount.executeUpdateDelete();
+                }
+                updateSnippet.bindLong(1, threadId);
+                updateSnippet.executeUpdateDelete();
+                if (delta.mFailed > 0) {
+                    updateError.bindLong(1, threadId);
+                    updateError.executeUpdateDelete();
+                }
+                if (delta.mUnread > 0) {
+                    updateRead.bindLong(1, threadId);
+                    updateRead.executeUpdateDelete();
+                }
+            }
+
+            if (mAllThreads) {
+                deletedThreads += db.delete(MmsSmsProvider.TABLE_THREADS, EMPTY_THREADS, null);
+            }
+
+            if (deletedThreads > 0) {
+                MmsSmsDatabaseHelper.removeUnferencedCanonicalAddresses(db);
+                ThreadIdCache.getInstance().invalidateAll();
+            }
+        } finally {
+            closeQuietly(deleteEmpty);
+            closeQuietly(updateCount);
+            closeQuietly(updateSnippet);
+            closeQuietly(updateError);
+            closeQuietly(updateRead);
+        }
+    }
+
+    private static void closeQuietly(SQLiteStatement statement) {
+        if (statement != null) {
+            statement.close();
+        }
+    }
+}
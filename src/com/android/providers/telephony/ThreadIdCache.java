@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * In-memory cache of the canonical_addresses and threads lookups done by
+ * {@link MmsSmsProvider} to resolve a thread id. It maps
+ *   - a normalized address to its canonical address id, and
+ *   - a sorted, space-separated list of canonical address ids to a thread id.
+ *
+ * Entries are only ever added for rows that exist in the database. Whenever rows of the
+ * canonical_addresses or threads tables may have been removed or changed, the callers must
+ * invalidate the cache. A lookup that started before an invalidation never repopulates the
+ * cache with its (possibly stale) result, see {@link #getGeneration()}.
+ */
+final class ThreadIdCache {
+    private static final int MAX_ADDRESSES = 512;
+    private static final int MAX_THREADS = 256;
+
+    private static final ThreadIdCache sInstance = new ThreadIdCache();
+
+    private final LruCache<String, Long> mAddressIds = new LruCache<>(MAX_ADDRESSES);
+    private final LruCache<String, Long> mThreadIds = new LruCache<>(MAX_THREADS);
+
+    // Bumped on every invalidation. Guarded by "this".
+    private long mGeneration;
+
+    static ThreadIdCache getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ThreadIdCache() {
+    }
+
+    /**
+     * Returns a token to pass to {@link #putAddressId} and {@link #putThreadId} once the
+     * database lookup is done.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    Long getAddressId(String address) {
+        return mAddressIds.get(address);
+    }
+
+    Long getThreadId(String recipientIds) {
+        return mThreadIds.get(recipientIds);
+    }
+
+    synchronized void putAddressId(String address, long id, long generation) {
+        if (generation == mGeneration) {
+            mAddressIds.put(address, id);
+        }
+    }
+
+    synchronized void putThreadId(String recipientIds, long threadId, long generation) {
+        if (generation == mGeneration) {
+            mThreadIds.put(recipientIds, threadId);
+        }
+    }
+
+    /**
+     * Drop all cached thread ids. To be called when rows are deleted from the threads table.
+     */
+    synchronized void invalidateThreads() {
+        mGeneration++;
+        mThreadIds.evictAll();
+    }
+
+    /**
+     * Drop everything. To be called when rows of the canonical_addresses table are deleted or
+     * changed. Thread ids are dropped too since they are keyed on canonical address ids.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mAddressIds.evictAll();
+        mThreadIds.evictAll();
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("ThreadIdCache: addresses " + mAddressIds.size() + "/" + MAX_ADDRESSES
+                + " hits=" + mAddressIds.hitCount() + " misses=" + mAddressIds.missCount()
+                + ", threads " + mThreadIds.size() + "/" + MAX_THREADS
+                + " hits=" + mThreadIds.hitCount() + " misses=" + mThreadIds.missCount()
+                + ", generation=" + getGeneration());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Checkpoints of the write-ahead log of the sms/mms database.
+ *
+ * SQLite already checkpoints when the log grows past its auto-checkpoint size, from the thread
+ * of the commit. On top of that, a passive checkpoint is run on a background thread once the
+ * database has not been written to for {@link #IDLE_DELAY_MS}, so that the log is folded into
+ * the database between bursts of messages rather than during one. A passive checkpoint never
+ * waits for the readers.
+ *
+ * When the device storage is low, the checkpoint truncates the log file instead, to give its
+ * space back right away.
+ */
+final class WalCheckpointScheduler {
+    private static final String TAG = "WalCheckpointScheduler";
+
+    /**
+     * Fallback switch: set to false to go back to the rollback journal. The journal mode is
+     * converted the next time the database is opened.
+     */
+    static final String WAL_PROPERTY = "persist.radio.mmssms.wal";
+
+    /** Delay without writes after which the log is checkpointed. */
+    private static final long IDLE_DELAY_MS = 5000;
+
+    private static HandlerThread sThread;
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final Runnable mCheckpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkpoint();
+        }
+    };
+
+    private volatile boolean mLowStorage;
+
+    // Guarded by "this".
+    private long mCheckpointCount;
+    private long mTruncateCount;
+    private long mBusyCount;
+    private long mLastLogFrames;
+    private long mLastDurationMs;
+
+    WalCheckpointScheduler(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    /**
+     * Returns whether the sms/mms database is to use write-ahead logging.
+     */
+    static boolean isWalEnabled() {
+        return SystemProperties.getBoolean(WAL_PROPERTY, true);
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sThread == null) {
+            sThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            sThread.start();
+        }
+        return sThread.getThreadHandler();
+    }
+
+    /**
+     * Called after each write to the database: pushes the idle checkpoint back.
+     */
+    void onWrite() {
+        Handler handler = getHandler();
+        handler.removeCallbacks(mCheckpointRunnable);
+        handler.postDelayed(mCheckpointRunnable, IDLE_DELAY_MS);
+    }
+
+    @VisibleForTesting
+    boolean isCheckpointScheduled() {
+        return getHandler().hasCallbacks(mCheckpointRunnable);
+    }
+
+    @VisibleForTesting
+    synchronized long getTruncateCount() {
+        return mTruncateCount;
+    }
+
+    /**
+     * Called on the device storage low and ok broadcasts. Low storage truncates the log right
+     * away.
+     */
+    void setLowStorage(boolean lowStorage) {
+        mLowStorage = lowStorage;
+        if (lowStorage) {
+            Handler handler = getHandler();
+            handler.removeCallbacks(mCheckpointRunnable);
+            handler.post(mCheckpointRunnable);
+        }
+    }
+
+    private void checkpoint() {
+        final boolean truncate = mLowStorage;
+        final long start = SystemClock.elapsedRealtime();
+        // The result row is: busy, frames in the log, frames checkpointed.
+        try (Cursor c = mOpenHelper.getReadableDatabase().rawQuery(
+                "PRAGMA wal_checkpoint(" + (truncate ? "TRUNCATE" : "PASSIVE") + ")", null)) {
+            if (c.moveToFirst()) {
+                synchronized (this) {
+                    mCheckpointCount++;
+                    if (truncate) {
+                        mTruncateCount++;
+                    }
+                    if (c.getInt(0) != 0) {
+                        mBusyCount++;
+                    }
+                    mLastLogFrames = c.getLong(1);
+                    mLastDurationMs = SystemClock.elapsedRealtime() - start;
+                }
+            }
+        } catch (Throwable ex) {
+            Log.e(TAG, "checkpoint: " + ex.getMessage(), ex);
+        }
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("WAL checkpoints: count=" + mCheckpointCount
+                + " truncate=" + mTruncateCount + " busy=" + mBusyCount
+                + " lastLogFrames=" + mLastLogFrames + " lastDuration=" + mLastDurationMs + "ms"
+                + " lowStorage=" + mLowStorage);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.ContentValues;
+import android.provider.Telephony.Carriers;
+import android.support.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:ApnSnapshotTest
+ */
+@RunWith(JUnit4.class)
+public final class ApnSnapshotTest {
+    private static final long CHECKSUM = 0x12345678L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(), "apns.snapshot");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static List<ContentValues> getRows() {
+        List<ContentValues> rows = new ArrayList<>();
+        ContentValues row = new ContentValues();
+        row.put(Carriers.NUMERIC, "310260");
+        row.put(Carriers.NAME, "T-Mobile US");
+        row.putNull(Carriers.APN);
+        row.put(Carriers.PROFILE_ID, 1);
+        row.put(Carriers.CARRIER_ENABLED, true);
+        rows.add(row);
+        row = new ContentValues();
+        row.put(Carriers.NUMERIC, "310410");
+        row.put(Carriers.TYPE, "default,supl");
+        row.put(Carriers.USER_VISIBLE, false);
+        rows.add(row);
+        return rows;
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        List<ContentValues> rows = getRows();
+        ApnSnapshot.write(mFile, CHECKSUM, rows);
+
+        assertEquals(rows, ApnSnapshot.read(mFile, CHECKSUM));
+    }
+
+    @Test
+    public void testRead_noSnapshot() {
+        assertNull(ApnSnapshot.read(mFile, CHECKSUM));
+    }
+
+    @Test
+    public void testRead_otherChecksum() {
+        ApnSnapshot.write(mFile, CHECKSUM, getRows());
+
+        assertNull(ApnSnapshot.read(mFile, CHECKSUM + 1));
+    }
+
+    @Test
+    public void testRead_corrupt() throws Exception {
+        ApnSnapshot.write(mFile, CHECKSUM, getRows());
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(file.length() / 2);
+            int b = file.read();
+            file.seek(file.length() / 2);
+            file.write(b ^ 0xff);
+        }
+
+        assertNull(ApnSnapshot.read(mFile, CHECKSUM));
+    }
+
+    @Test
+    public void testRead_truncated() throws Exception {
+        ApnSnapshot.write(mFile, CHECKSUM, getRows());
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        assertNull(ApnSnapshot.read(mFile, CHECKSUM));
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.fail;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.Telephony.CanonicalAddressesColumns;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Mms.Part;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Sms;
+import android.provider.Telephony.Threads;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:MmsSmsProviderTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class MmsSmsProviderTest {
+    private MockContentResolver mContentResolver;
+    private MmsSmsProviderTestable mMmsSmsProvider;
+
+    @Before
+    public void setUp() {
+        // The cache outlives the in-memory database of each test.
+        ThreadIdCache.getInstance().invalidateAll();
+        mMmsSmsProvider = new MmsSmsProviderTestable();
+        MmsSmsProviderTestable.MockContextWithProvider context =
+                new MmsSmsProviderTestable.MockContextWithProvider(mMmsSmsProvider);
+        mContentResolver = context.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mMmsSmsProvider.tearDown();
+        ThreadIdCache.getInstance().invalidateAll();
+    }
+
+    private long getThreadId(String... recipients) {
+        Uri.Builder builder = Uri.parse("content://mms-sms/threadID").buildUpon();
+        for (String recipient : recipients) {
+            builder.appendQueryParameter("recipient", recipient);
+        }
+        try (Cursor cursor = mContentResolver.query(builder.build(), null, null, null, null)) {
+            assertThat(cursor.moveToFirst()).isTrue();
+            return cursor.getLong(0);
+        }
+    }
+
+    private static List<String> getStrings(Cursor cursor, int column) {
+        List<String> values = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                values.add(cursor.getString(column));
+            }
+        } finally {
+            cursor.close();
+        }
+        return values;
+    }
+
+    private long insertSms(long threadId, String body) {
+        return insertSms(threadId, body, 1000L);
+    }
+
+    private long insertSms(long threadId, String body, long date) {
+        ContentValues values = new ContentValues();
+        values.put(Sms.THREAD_ID, threadId);
+        values.put(Sms.ADDRESS, "+15551230001");
+        values.put(Sms.BODY, body);
+        values.put(Sms.DATE, date);
+        values.put(Sms.TYPE, Sms.MESSAGE_TYPE_INBOX);
+        return mMmsSmsProvider.getWritableDatabase().insert("sms", null, values);
+    }
+
+    /**
+     * @param date the date of the mms, in seconds
+     */
+    private long insertMms(long threadId, long date) {
+        ContentValues values = new ContentValues();
+        values.put(Mms.THREAD_ID, threadId);
+        values.put(Mms.DATE, date);
+        values.put(Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_INBOX);
+        values.put(Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+        return mMmsSmsProvider.getWritableDatabase().insert("pdu", null, values);
+    }
+
+    private long insertMmsText(long threadId, String text) {
+        long mmsId = insertMms(threadId, 1L);
+        ContentValues values = new ContentValues();
+        values.put(Part.MSG_ID, mmsId);
+        values.put(Part.CONTENT_TYPE, "text/plain");
+        values.put(Part.TEXT, text);
+        return mMmsSmsProvider.getWritableDatabase().insert("part", null, values);
+    }
+
+    /** Index the messages left in the pending log, as the background drain would. */
+    private void indexMessages() {
+        new SearchIndexer(mMmsSmsProvider.mOpenHelper).flush();
+    }
+
+    private Cursor searchRanked(String pattern, String paging) {
+        return mContentResolver.query(Uri.parse("content://mms-sms/search/ranked?pattern="
+                + pattern + paging), null, null, null, null);
+    }
+
+    @Test
+    public void testConversationAddresses_appliesProjection() {
+        long threadId = getThreadId("+15551230001", "alice@example.com");
+
+        // TelephonyBackupAgent reads the first column of this projection
+        Cursor cursor = mContentResolver.query(Uri.parse(
+                "content://mms-sms/conversations/" + threadId + "/addresses"),
+                new String[] { CanonicalAddressesColumns.ADDRESS }, null, null, null);
+        assertThat(cursor.getColumnCount()).isEqualTo(1);
+        assertThat(getStrings(cursor, 0))
+                .containsExactly("+15551230001", "alice@example.com").inOrder();
+
+        cursor = mContentResolver.query(Uri.parse(
+                "content://mms-sms/conversations/" + threadId + "/addresses"),
+                null, null, null, null);
+        assertThat(cursor.getColumnNames()).asList().containsExactly(
+                CanonicalAddressesColumns._ID, CanonicalAddressesColumns.ADDRESS).inOrder();
+        assertThat(getStrings(cursor, 1))
+                .containsExactly("+15551230001", "alice@example.com").inOrder();
+    }
+
+    @Test
+    public void testConversationsByAddress() {
+        long first = getThreadId("+15551230001");
+        long group = getThreadId("+15551230001", "+15551230002");
+        getThreadId("+15551230003");
+
+        // an equal phone number written differently matches too
+        Cursor cursor = mContentResolver.query(
+                Uri.parse("content://mms-sms/conversations/byaddress/5551230001"),
+                new String[] { Threads._ID }, null, null, Threads._ID);
+        assertThat(getStrings(cursor, 0))
+                .containsExactly(String.valueOf(first), String.valueOf(group)).inOrder();
+
+        cursor = mContentResolver.query(
+                Uri.parse("content://mms-sms/conversations/byaddress/%2B15551230002"),
+                new String[] { Threads._ID }, null, null, null);
+        assertThat(getStrings(cursor, 0)).containsExactly(String.valueOf(group));
+    }
+
+    @Test
+    public void testUpgradeToVersion69_backfillsThreadRecipients() {
+        SQLiteDatabase db = mMmsSmsProvider.getWritableDatabase();
+        db.execSQL("DROP TABLE thread_recipients");
+        ContentValues values = new ContentValues();
+        values.put(Threads._ID, 1);
+        values.put(Threads.RECIPIENT_IDS, "3 5");
+        db.insert("threads", null, values);
+        values.put(Threads._ID, 2);
+        values.put(Threads.RECIPIENT_IDS, "5 x");
+        db.insert("threads", null, values);
+
+        new MmsSmsDatabaseHelper(null, null).upgradeDatabaseToVersion69(db);
+
+        try (Cursor cursor = db.query("thread_recipients",
+                new String[] { "thread_id", "address_id" }, null, null, null, null,
+                "thread_id, address_id")) {
+            assertThat(cursor.getCount()).isEqualTo(3);
+            List<String> rows = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getLong(0) + ":" + cursor.getLong(1));
+            }
+            // the id that is not a number is skipped
+            assertThat(rows).containsExactly("1:3", "1:5", "2:5").inOrder();
+        }
+
+        // the rows go away with their thread
+        db.delete("threads", "_id=1", null);
+        try (Cursor cursor = db.query("thread_recipients", null, "thread_id=1", null, null,
+                null, null)) {
+            assertThat(cursor.getCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testSearchRanked_bestHitsFirst() {
+        long threadId = getThreadId("+15551230001");
+        long one = insertSms(threadId, "hello");
+        long three = insertSms(threadId, "hello hello hello");
+        long long1 = insertSms(threadId, "hello, this is a much longer message that only says"
+                + " the word once and then goes on and on about something else entirely, so"
+                + " that its score is lowered by the length of its text");
+        insertSms(threadId, "goodbye");
+        long part = insertMmsText(threadId, "hello hello");
+        indexMessages();
+
+        Cursor cursor = searchRanked("hel", "");
+        int rankIndex = cursor.getColumnIndexOrThrow("rank");
+        List<Long> ranks = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            ranks.add(cursor.getLong(rankIndex));
+        }
+        assertThat(ranks).isStrictlyOrdered(Collections.reverseOrder());
+
+        // more hits in a shorter text rank higher, whether sms or mms
+        cursor.moveToPosition(-1);
+        assertThat(getStrings(cursor, cursor.getColumnIndexOrThrow("search_id")))
+                .containsExactly(String.valueOf(three), String.valueOf((2L << 32) + part),
+                        String.valueOf(one), String.valueOf(long1)).inOrder();
+    }
+
+    @Test
+    public void testSearchRanked_paging() {
+        long threadId = getThreadId("+15551230001");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            // same text, same rank: the pages follow the search_id
+            expected.add(String.valueOf(insertSms(threadId, "meeting")));
+        }
+        indexMessages();
+
+        List<String> ids = new ArrayList<>();
+        String paging = "&limit=2";
+        for (int page = 0; page < 4; page++) {
+            Cursor cursor = searchRanked("meet", paging);
+            assertThat(cursor.getCount()).isAtMost(2);
+            if (!cursor.moveToLast()) {
+                cursor.close();
+                break;
+            }
+            paging = "&limit=2&after_rank="
+                    + cursor.getLong(cursor.getColumnIndexOrThrow("rank"))
+                    + "&after_id=" + cursor.getLong(cursor.getColumnIndexOrThrow("search_id"));
+            cursor.moveToPosition(-1);
+            ids.addAll(getStrings(cursor, cursor.getColumnIndexOrThrow("_id")));
+        }
+        assertThat(ids).containsExactlyElementsIn(expected).inOrder();
+    }
+
+    @Test
+    public void testUpgradeToVersion70_rebuildsIndex() {
+        long threadId = getThreadId("+15551230001");
+        insertSms(threadId, "dinner at eight");
+        insertMmsText(threadId, "dinner moved");
+        SQLiteDatabase db = mMmsSmsProvider.getWritableDatabase();
+        // a database of version 69: the legacy words table and no FTS4 index
+        db.execSQL("DROP TABLE sms_fts");
+        db.execSQL("DROP TABLE part_fts");
+        db.execSQL("DELETE FROM " + SearchIndexer.TABLE_PENDING);
+        db.execSQL("CREATE VIRTUAL TABLE words USING FTS3 (_id INTEGER PRIMARY KEY,"
+                + " index_text TEXT, source_id INTEGER, table_to_use INTEGER);");
+
+        new MmsSmsDatabaseHelper(null, null).upgradeDatabaseToVersion70(db);
+
+        try (Cursor cursor = db.rawQuery(
+                "SELECT name FROM sqlite_master WHERE name = 'words'", null)) {
+            assertThat(cursor.getCount()).isEqualTo(0);
+        }
+        // the existing messages are queued for the background drain
+        assertThat(DatabaseUtils.queryNumEntries(db, SearchIndexer.TABLE_PENDING))
+                .isEqualTo(2);
+
+        indexMessages();
+        Cursor cursor = searchRanked("dinner", "");
+        assertThat(getStrings(cursor, cursor.getColumnIndexOrThrow("body")))
+                .containsExactly("dinner at eight", "dinner moved");
+    }
+
+    private void insertThread(long id, long date, boolean read) {
+        ContentValues values = new ContentValues();
+        values.put(Threads._ID, id);
+        values.put(Threads.DATE, date);
+        values.put(Threads.RECIPIENT_IDS, String.valueOf(id));
+        values.put(Threads.READ, read ? 1 : 0);
+        mMmsSmsProvider.getWritableDatabase().insert("threads", null, values);
+    }
+
+    @Test
+    public void testPagedConversations_keysetPaging() {
+        insertThread(1, 100, true);
+        insertThread(2, 300, true);
+        insertThread(3, 200, true);
+        insertThread(4, 300, true);
+        insertThread(5, 50, true);
+
+        // most recent first, the _id breaks the ties
+        List<String> ids = new ArrayList<>();
+        String paging = "";
+        for (int page = 0; page < 4; page++) {
+            Cursor cursor = mContentResolver.query(Uri.parse(
+                    "content://mms-sms/conversations/paged?limit=2" + paging),
+                    new String[] { Threads.RECIPIENT_IDS }, null, null, null);
+            assertThat(cursor.getCount()).isAtMost(2);
+            if (!cursor.moveToLast()) {
+                cursor.close();
+                break;
+            }
+            // the paging key is returned even if not asked for
+            paging = "&before_date=" + cursor.getLong(cursor.getColumnIndexOrThrow(Threads.DATE))
+                    + "&before_id=" + cursor.getLong(cursor.getColumnIndexOrThrow(Threads._ID));
+            cursor.moveToPosition(-1);
+            ids.addAll(getStrings(cursor, cursor.getColumnIndexOrThrow(Threads._ID)));
+        }
+        assertThat(ids).containsExactly("4", "2", "3", "1", "5").inOrder();
+    }
+
+    @Test
+    public void testPagedConversations_selection() {
+        insertThread(1, 100, false);
+        insertThread(2, 300, true);
+        insertThread(3, 200, false);
+        insertThread(4, 400, false);
+
+        // the selection args follow those of the paging key
+        Cursor cursor = mContentResolver.query(Uri.parse(
+                "content://mms-sms/conversations/paged?before_date=400&before_id=4"),
+                new String[] { Threads._ID }, Threads.READ + " = ? OR " + Threads._ID + " = ?",
+                new String[] { "0", "2" }, null);
+        assertThat(getStrings(cursor, 0)).containsExactly("2", "3", "1").inOrder();
+    }
+
+    @Test
+    public void testPagedConversations_rejectsOtherColumns() {
+        insertThread(1, 100, true);
+        try {
+            mContentResolver.query(Uri.parse("content://mms-sms/conversations/paged"),
+                    new String[] { Threads._ID, "(SELECT body FROM sms)" }, null, null, null);
+            fail("the projection may only name threads columns");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mContentResolver.query(Uri.parse("content://mms-sms/conversations/paged"),
+                    null, "1) UNION SELECT * FROM threads --", null, null);
+            fail("the selection must not escape its parentheses");
+        } catch (SQLiteException expected) {
+        }
+    }
+
+    /** Returns the transport_type:_id of the messages of a window of the conversation. */
+    private List<String> getWindow(long threadId, String window) {
+        List<String> keys = new ArrayList<>();
+        try (Cursor cursor = mContentResolver.query(Uri.parse(
+                "content://mms-sms/conversations/" + threadId + "?" + window),
+                new String[] { BaseColumns._ID, MmsSms.TYPE_DISCRIMINATOR_COLUMN },
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                keys.add(cursor.getString(1) + ":" + cursor.getLong(0));
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void testConversationWindow_mmsDatesInSeconds() {
+        long threadId = getThreadId("+15551230001");
+        String mms1 = "mms:" + insertMms(threadId, 1);
+        String sms1 = "sms:" + insertSms(threadId, "a", 1500);
+        String mms2 = "mms:" + insertMms(threadId, 2);
+        String sms2 = "sms:" + insertSms(threadId, "b", 2500);
+        String mms3 = "mms:" + insertMms(threadId, 3);
+
+        // bounds that fall between two seconds
+        assertThat(getWindow(threadId, "before=2500")).containsExactly(mms1, sms1, mms2)
+                .inOrder();
+        assertThat(getWindow(threadId, "after=1500")).containsExactly(mms2, sms2, mms3)
+                .inOrder();
+        assertThat(getWindow(threadId, "before=1999")).containsExactly(mms1, sms1).inOrder();
+        assertThat(getWindow(threadId, "after=2001")).containsExactly(sms2, mms3).inOrder();
+        // bounds on a second
+        assertThat(getWindow(threadId, "before=2000")).containsExactly(mms1, sms1).inOrder();
+        assertThat(getWindow(threadId, "after=2000")).containsExactly(sms2, mms3).inOrder();
+        assertThat(getWindow(threadId, "before=2000&key_type=mms&key_id="
+                + mms2.substring(4) + "&limit=1")).containsExactly(sms1);
+    }
+
+    @Test
+    public void testConversationWindow_chained() {
+        long threadId = getThreadId("+15551230001");
+        List<String> expected = new ArrayList<>();
+        expected.add("mms:" + insertMms(threadId, 1));
+        expected.add("sms:" + insertSms(threadId, "a", 1000));
+        expected.add("sms:" + insertSms(threadId, "b", 1000));
+        expected.add("mms:" + insertMms(threadId, 2));
+        expected.add("mms:" + insertMms(threadId, 2));
+        expected.add("sms:" + insertSms(threadId, "c", 2500));
+
+        // windows of two, each one after the last message of the previous one
+        List<String> keys = new ArrayList<>();
+        String window = "after=0&limit=2";
+        for (int i = 0; i < 4; i++) {
+            List<String> page = getWindow(threadId, window);
+            assertThat(page.size()).isAtMost(2);
+            if (page.isEmpty()) {
+                break;
+            }
+            keys.addAll(page);
+            String last = page.get(page.size() - 1);
+            String[] key = last.split(":");
+            long date = key[0].equals("mms") ? getMmsDate(Long.parseLong(key[1])) * 1000
+                    : getSmsDate(Long.parseLong(key[1]));
+            window = "after=" + date + "&key_type=" + key[0] + "&key_id=" + key[1] + "&limit=2";
+        }
+        assertThat(keys).containsExactlyElementsIn(expected).inOrder();
+    }
+
+    private long getMmsDate(long id) {
+        return DatabaseUtils.longForQuery(mMmsSmsProvider.getWritableDatabase(),
+                "SELECT date FROM pdu WHERE _id = " + id, null);
+    }
+
+    private long getSmsDate(long id) {
+        return DatabaseUtils.longForQuery(mMmsSmsProvider.getWritableDatabase(),
+                "SELECT date FROM sms WHERE _id = " + id, null);
+    }
+}
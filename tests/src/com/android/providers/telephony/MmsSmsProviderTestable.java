@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.providers.telephony;
+
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
+import android.database.ContentObserver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.telephony.TelephonyManager;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+
+import org.mockito.Mockito;
+
+/**
+ * A subclass of MmsSmsProvider used for testing on an in-memory database
+ */
+public class MmsSmsProviderTestable extends MmsSmsProvider {
+    @Override
+    public boolean onCreate() {
+        mOpenHelper = new InMemoryMmsSmsDatabase(getContext());
+        return true;
+    }
+
+    // The shared dispatcher would keep the context of the first test.
+    private NotificationDispatcher mNotificationDispatcher;
+
+    @Override
+    synchronized NotificationDispatcher getNotificationDispatcher() {
+        if (mNotificationDispatcher == null) {
+            mNotificationDispatcher = new NotificationDispatcher(getContext());
+        }
+        return mNotificationDispatcher;
+    }
+
+    protected void tearDown() {
+        mOpenHelper.close();
+    }
+
+    public SQLiteDatabase getWritableDatabase() {
+        return mOpenHelper.getWritableDatabase();
+    }
+
+    /**
+     * An in-memory database with the schema of a new MmsSmsDatabaseHelper database.
+     */
+    static class InMemoryMmsSmsDatabase extends SQLiteOpenHelper {
+        private final Context mContext;
+
+        InMemoryMmsSmsDatabase(Context context) {
+            super(null,        // no context is needed for in-memory db
+                    null,      // db file name is null for in-memory db
+                    null,      // CursorFactory is null by default
+                    1);        // db version is no-op for tests
+            mContext = context;
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            new MmsSmsDatabaseHelper(mContext, null).createTables(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // no-op
+        }
+    }
+
+    static class MockContextWithProvider extends MockContext {
+        private final MockContentResolver mResolver;
+
+        MockContextWithProvider(MmsSmsProvider mmsSmsProvider) {
+            mResolver = new MockContentResolver() {
+                @Override
+                public void notifyChange(Uri uri, ContentObserver observer,
+                        boolean syncToNetwork, int userHandle) {
+                    // no observers in the tests
+                }
+
+                @Override
+                public void notifyChange(Uri uri, ContentObserver observer, int flags,
+                        int userHandle) {
+                    // no observers in the tests
+                }
+            };
+
+            // Add authority="mms-sms" to given mmsSmsProvider
+            ProviderInfo providerInfo = new ProviderInfo();
+            providerInfo.authority = Telephony.MmsSms.CONTENT_URI.getAuthority();
+            mmsSmsProvider.attachInfoForTesting(this, providerInfo);
+            mResolver.addProvider(providerInfo.authority, mmsSmsProvider);
+        }
+
+        @Override
+        public MockContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public PackageManager getPackageManager() {
+            return Mockito.mock(PackageManager.class);
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            switch (name) {
+                case Context.APP_OPS_SERVICE:
+                    return Mockito.mock(AppOpsManager.class);
+                case Context.TELEPHONY_SERVICE:
+                    return Mockito.mock(TelephonyManager.class);
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public int checkCallingOrSelfPermission(String permission) {
+            return PackageManager.PERMISSION_GRANTED;
+        }
+
+        @Override
+        public boolean isCredentialProtectedStorage() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.Telephony.MmsSms;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:NotificationDispatcherTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class NotificationDispatcherTest {
+    private static final int SKIP_DESCENDANTS = ContentResolver.NOTIFY_SYNC_TO_NETWORK
+            | ContentResolver.NOTIFY_SKIP_NOTIFY_FOR_DESCENDANTS;
+
+    private final List<Uri> mNotifiedUris = new ArrayList<>();
+    private NotificationDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        final MockContentResolver resolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork,
+                    int userHandle) {
+                mNotifiedUris.add(uri);
+            }
+
+            @Override
+            public void notifyChange(Uri uri, ContentObserver observer, int flags,
+                    int userHandle) {
+                mNotifiedUris.add(uri);
+            }
+        };
+        mDispatcher = new NotificationDispatcher(new MockContext() {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        });
+    }
+
+    private static Map<Uri, Integer> pending(Uri... uris) {
+        Map<Uri, Integer> pendingUris = new LinkedHashMap<>();
+        for (Uri uri : uris) {
+            pendingUris.put(uri, ContentResolver.NOTIFY_SYNC_TO_NETWORK);
+        }
+        return pendingUris;
+    }
+
+    @Test
+    public void testCollapse_manyUrisToAuthorityRoot() {
+        Map<Uri, Integer> pendingUris = new LinkedHashMap<>();
+        for (int i = 1; i <= 9; i++) {
+            pendingUris.put(Uri.parse("content://sms/" + i),
+                    ContentResolver.NOTIFY_SYNC_TO_NETWORK);
+        }
+        pendingUris.put(Uri.parse("content://mms/1"), ContentResolver.NOTIFY_SYNC_TO_NETWORK);
+
+        Map<Uri, Integer> uris = NotificationDispatcher.collapse(pendingUris);
+        assertThat(uris.keySet()).containsExactly(Uri.parse("content://sms"),
+                Uri.parse("content://mms/1"));
+        assertThat(uris.get(Uri.parse("content://sms")))
+                .isEqualTo(ContentResolver.NOTIFY_SYNC_TO_NETWORK);
+    }
+
+    @Test
+    public void testCollapse_fewUrisKept() {
+        Map<Uri, Integer> pendingUris = new LinkedHashMap<>();
+        for (int i = 1; i <= 8; i++) {
+            pendingUris.put(Uri.parse("content://sms/" + i),
+                    ContentResolver.NOTIFY_SYNC_TO_NETWORK);
+        }
+        assertThat(NotificationDispatcher.collapse(pendingUris)).hasSize(8);
+    }
+
+    @Test
+    public void testCollapse_dropsUrisCoveredByAncestor() {
+        Uri conversation = Uri.withAppendedPath(MmsSms.CONTENT_CONVERSATIONS_URI, "3");
+        Map<Uri, Integer> uris = NotificationDispatcher.collapse(
+                pending(conversation, MmsSms.CONTENT_CONVERSATIONS_URI));
+        assertThat(uris.keySet()).containsExactly(MmsSms.CONTENT_CONVERSATIONS_URI);
+
+        // an ancestor that skips its descendants does not cover them
+        Map<Uri, Integer> pendingUris = pending(conversation);
+        pendingUris.put(MmsSms.CONTENT_URI, SKIP_DESCENDANTS);
+        uris = NotificationDispatcher.collapse(pendingUris);
+        assertThat(uris.keySet()).containsExactly(conversation, MmsSms.CONTENT_URI);
+        assertThat(uris.get(MmsSms.CONTENT_URI)).isEqualTo(SKIP_DESCENDANTS);
+    }
+
+    @Test
+    public void testIsAncestor() {
+        Uri sms = Uri.parse("content://sms");
+        Uri inbox = Uri.parse("content://sms/inbox");
+        Uri message = Uri.parse("content://sms/inbox/5");
+
+        assertThat(NotificationDispatcher.isAncestor(sms, message)).isTrue();
+        assertThat(NotificationDispatcher.isAncestor(inbox, message)).isTrue();
+        assertThat(NotificationDispatcher.isAncestor(message, message)).isTrue();
+        assertThat(NotificationDispatcher.isAncestor(message, inbox)).isFalse();
+        assertThat(NotificationDispatcher.isAncestor(Uri.parse("content://sms/sent"), message))
+                .isFalse();
+        assertThat(NotificationDispatcher.isAncestor(Uri.parse("content://mms"),
+                Uri.parse("content://mms-sms/conversations"))).isFalse();
+    }
+
+    @Test
+    public void testGetCommonAncestor() {
+        assertThat(NotificationDispatcher.getCommonAncestor(Uri.parse("content://sms/inbox/5"),
+                Uri.parse("content://sms/inbox/7"))).isEqualTo(Uri.parse("content://sms/inbox"));
+        assertThat(NotificationDispatcher.getCommonAncestor(Uri.parse("content://sms/inbox/5"),
+                Uri.parse("content://sms/sent/5"))).isEqualTo(Uri.parse("content://sms"));
+        assertThat(NotificationDispatcher.getCommonAncestor(Uri.parse("content://sms/inbox"),
+                Uri.parse("content://sms/inbox/5"))).isEqualTo(Uri.parse("content://sms/inbox"));
+        assertThat(NotificationDispatcher.getCommonAncestor(Uri.parse("content://sms/5"),
+                Uri.parse("content://mms/5"))).isEqualTo(MmsSms.CONTENT_URI);
+        assertThat(NotificationDispatcher.getCommonAncestor(null, Uri.parse("content://sms/5")))
+                .isEqualTo(Uri.parse("content://sms/5"));
+    }
+
+    @Test
+    public void testFlush_deduplicatesWindow() {
+        mDispatcher.setWindowMs(60000);
+        Uri message = Uri.parse("content://sms/5");
+        for (int i = 0; i < 3; i++) {
+            mDispatcher.notifyChange(message);
+            mDispatcher.dispatch();
+        }
+        mDispatcher.notifyChange(Uri.parse("content://mms/5"));
+        mDispatcher.dispatch();
+        // nothing is sent before the end of the window
+        assertThat(mNotifiedUris).isEmpty();
+
+        mDispatcher.flush();
+        assertThat(mNotifiedUris).containsExactly(message, Uri.parse("content://mms/5"));
+
+        // the next window starts empty
+        mNotifiedUris.clear();
+        mDispatcher.flush();
+        assertThat(mNotifiedUris).isEmpty();
+        mDispatcher.notifyChange(message);
+        mDispatcher.flush();
+        assertThat(mNotifiedUris).containsExactly(message);
+    }
+}
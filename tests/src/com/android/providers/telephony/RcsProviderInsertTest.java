@@ -228,4 +228,21 @@ public class RcsProviderInsertTest {
                 eventValues)).isEqualTo(Uri.parse(
                 "content://rcs/group_thread/1/name_changed_event/1"));
     }
+
+    @Test
+    public void testInsertCanonicalAddressInvalidatesThreadIdCache() {
+        ThreadIdCache cache = ThreadIdCache.getInstance();
+        cache.putAddressId("+15551234567", 3L, cache.getGeneration());
+        cache.putThreadId("3", 7L, cache.getGeneration());
+
+        try (Cursor cursor = mContentResolver.query(
+                Uri.parse("content://rcs/canonical-address?address=+15557654321"),
+                null, null, null)) {
+            assertThat(cursor.moveToFirst()).isTrue();
+        }
+
+        // the new row was not added by MmsSmsProvider, so its cached lookups are dropped
+        assertThat(cache.getAddressId("+15551234567")).isNull();
+        assertThat(cache.getThreadId("3")).isNull();
+    }
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.Telephony.Mms.Part;
+import android.provider.Telephony.Sms;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:SearchIndexerTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class SearchIndexerTest {
+    private MmsSmsProviderTestable.InMemoryMmsSmsDatabase mOpenHelper;
+    private SQLiteDatabase mDatabase;
+    private SearchIndexer mSearchIndexer;
+
+    @Before
+    public void setUp() {
+        mOpenHelper = new MmsSmsProviderTestable.InMemoryMmsSmsDatabase(null);
+        mDatabase = mOpenHelper.getWritableDatabase();
+        mSearchIndexer = new SearchIndexer(mOpenHelper);
+    }
+
+    @After
+    public void tearDown() {
+        mOpenHelper.close();
+    }
+
+    private long insertSms(String body) {
+        ContentValues values = new ContentValues();
+        values.put(Sms.THREAD_ID, 1);
+        values.put(Sms.BODY, body);
+        values.put(Sms.TYPE, Sms.MESSAGE_TYPE_INBOX);
+        return mDatabase.insert("sms", null, values);
+    }
+
+    private long getSmsMatches(String pattern) {
+        return DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(*) FROM "
+                + SmsProvider.TABLE_SMS_FTS + " WHERE " + SmsProvider.TABLE_SMS_FTS
+                + " MATCH ?", new String[] { pattern });
+    }
+
+    private long getPendingCount() {
+        return DatabaseUtils.queryNumEntries(mDatabase, SearchIndexer.TABLE_PENDING);
+    }
+
+    @Test
+    public void testInsert_queuesRows() {
+        insertSms("hello world");
+        ContentValues values = new ContentValues();
+        values.put(Part.MSG_ID, 1);
+        values.put(Part.CONTENT_TYPE, "text/plain");
+        values.put(Part.TEXT, "hello mms");
+        mDatabase.insert("part", null, values);
+        values.put(Part.CONTENT_TYPE, "image/jpeg");
+        mDatabase.insert("part", null, values);
+
+        // only the sms and the text part are queued, nothing is indexed yet
+        assertThat(getPendingCount()).isEqualTo(2);
+        assertThat(getSmsMatches("hello")).isEqualTo(0);
+
+        assertThat(mSearchIndexer.flush()).isTrue();
+        assertThat(getPendingCount()).isEqualTo(0);
+        assertThat(getSmsMatches("hello")).isEqualTo(1);
+        assertThat(DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(*) FROM "
+                + MmsProvider.TABLE_PART_FTS + " WHERE " + MmsProvider.TABLE_PART_FTS
+                + " MATCH 'hello'", null)).isEqualTo(1);
+    }
+
+    @Test
+    public void testUpdateAndDelete_indexedRow() {
+        long id = insertSms("hello world");
+        mSearchIndexer.flush();
+
+        ContentValues values = new ContentValues();
+        values.put(Sms.BODY, "goodbye world");
+        mDatabase.update("sms", values, "_id=" + id, null);
+        assertThat(getSmsMatches("hello")).isEqualTo(0);
+        assertThat(getSmsMatches("goodbye")).isEqualTo(1);
+
+        mDatabase.delete("sms", "_id=" + id, null);
+        assertThat(getSmsMatches("world")).isEqualTo(0);
+    }
+
+    @Test
+    public void testUpdateAndDelete_pendingRow() {
+        long id = insertSms("hello world");
+        ContentValues values = new ContentValues();
+        values.put(Sms.BODY, "goodbye world");
+        mDatabase.update("sms", values, "_id=" + id, null);
+
+        // the row is indexed once, with its text at the time of the drain
+        mSearchIndexer.flush();
+        assertThat(getSmsMatches("hello")).isEqualTo(0);
+        assertThat(getSmsMatches("goodbye")).isEqualTo(1);
+
+        id = insertSms("deleted before the drain");
+        mDatabase.delete("sms", "_id=" + id, null);
+        assertThat(getPendingCount()).isEqualTo(0);
+    }
+
+    private void insertManySms(int count) {
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                insertSms("message " + i);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @Test
+    public void testFlush_indexesLargeBacklog() {
+        insertManySms(1000);
+
+        // the search sees every message, not only the first batches
+        assertThat(mSearchIndexer.flush()).isTrue();
+        assertThat(getPendingCount()).isEqualTo(0);
+        assertThat(getSmsMatches("message")).isEqualTo(1000);
+    }
+
+    @Test
+    public void testFlush_timesOut() {
+        insertManySms(1000);
+        mSearchIndexer.setFlushTimeoutMs(0);
+
+        // a single batch is indexed, the background drain does the rest
+        assertThat(mSearchIndexer.flush()).isFalse();
+        long indexed = getSmsMatches("message");
+        assertThat(indexed).isGreaterThan(0L);
+        assertThat(indexed).isLessThan(1000L);
+
+        long timeout = SystemClock.elapsedRealtime() + 5000;
+        while (getPendingCount() != 0) {
+            assertThat(SystemClock.elapsedRealtime()).isLessThan(timeout);
+            SystemClock.sleep(50);
+        }
+        assertThat(getSmsMatches("message")).isEqualTo(1000);
+    }
+
+    @Test
+    public void testRebuild_drainsInBackground() {
+        for (int i = 0; i < 3; i++) {
+            insertSms("message " + i);
+        }
+        mSearchIndexer.flush();
+        // lose the index, as if it was damaged
+        mDatabase.execSQL("INSERT INTO " + SmsProvider.TABLE_SMS_FTS + "("
+                + SmsProvider.TABLE_SMS_FTS + ") VALUES('delete-all')");
+        assertThat(getSmsMatches("message")).isEqualTo(0);
+
+        assertThat(mSearchIndexer.rebuild()).isEqualTo(3);
+        assertThat(mSearchIndexer.getRebuildTotal()).isEqualTo(3);
+
+        long timeout = SystemClock.elapsedRealtime() + 5000;
+        while (mSearchIndexer.getRebuildTotal() != 0) {
+            assertThat(SystemClock.elapsedRealtime()).isLessThan(timeout);
+            SystemClock.sleep(50);
+        }
+        assertThat(getPendingCount()).isEqualTo(0);
+        assertThat(getSmsMatches("message")).isEqualTo(3);
+        assertThat(mSearchIndexer.flush()).isTrue();
+    }
+
+    @Test
+    public void testRebuild_finishedByFlush() {
+        for (int i = 0; i < 3; i++) {
+            insertSms("message " + i);
+        }
+        mSearchIndexer.flush();
+
+        assertThat(mSearchIndexer.rebuild()).isEqualTo(3);
+
+        // a search does not run on the partial index of the rebuild
+        assertThat(mSearchIndexer.flush()).isTrue();
+        assertThat(getSmsMatches("message")).isEqualTo(3);
+        assertThat(mSearchIndexer.getRebuildTotal()).isEqualTo(0);
+    }
+}
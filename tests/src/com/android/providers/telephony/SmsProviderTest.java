@@ -25,8 +25,11 @@ import android.content.pm.ProviderInfo;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.provider.Telephony;
+import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
 import android.test.mock.MockContentResolver;
 import android.test.mock.MockContext;
@@ -38,6 +41,8 @@ import junit.framework.TestCase;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.util.HashMap;
+
 
 /**
  * Tests for testing CRUD operations of SmsProvider.
@@ -59,6 +64,8 @@ public class SmsProviderTest extends TestCase {
     private SmsProviderTestable mSmsProviderTestable;
 
     private int notifyChangeCount;
+    // The notified URIs, with the flags of the notification.
+    private final HashMap<Uri, Integer> mNotifiedUris = new HashMap<>();
 
     private final String mFakePdu = "123abc";
     private final String mFakeAddress = "FakeAddress";
@@ -88,7 +95,16 @@ public class SmsProviderTest extends TestCase {
                 @Override
                 public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork,
                         int userHandle) {
+                    notifyChange(uri, observer,
+                            syncToNetwork ? ContentResolver.NOTIFY_SYNC_TO_NETWORK : 0,
+                            userHandle);
+                }
+
+                @Override
+                public void notifyChange(Uri uri, ContentObserver observer, int flags,
+                        int userHandle) {
                     notifyChangeCount++;
+                    mNotifiedUris.put(uri, flags);
                 }
             };
 
@@ -148,7 +164,10 @@ public class SmsProviderTest extends TestCase {
         mSmsProviderTestable = new SmsProviderTestable();
         mContext = new MockContextWithProvider(mSmsProviderTestable);
         mContentResolver = mContext.getContentResolver();
+        // Notify right away, unless a test sets a window.
+        mSmsProviderTestable.getNotificationDispatcher().setWindowMs(0);
         notifyChangeCount = 0;
+        mNotifiedUris.clear();
     }
 
     @Override
@@ -187,6 +206,32 @@ public class SmsProviderTest extends TestCase {
                 mContentResolver.insert(Uri.parse("content://sms/attachments"), values));
     }
 
+    @Test
+    @SmallTest
+    public void testInsertAndUpdateSetAddressMinMatch() {
+        final ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, "+1 (650) 555-1234");
+        values.put(Telephony.Sms.BODY, "test");
+        values.put(Telephony.Sms.THREAD_ID, 1);
+        // The column is internal and must not be settable by callers.
+        values.put(MmsSmsDatabaseHelper.ADDRESS_MIN_MATCH, "bogus");
+        Uri uri = mContentResolver.insert(Uri.parse("content://sms"), values);
+
+        final String[] projection = new String[] { MmsSmsDatabaseHelper.ADDRESS_MIN_MATCH };
+        Cursor cursor = mContentResolver.query(uri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(PhoneNumberUtils.toCallerIDMinMatch("+16505551234"), cursor.getString(0));
+        cursor.close();
+
+        values.clear();
+        values.put(Telephony.Sms.ADDRESS, "alice@example.com");
+        assertEquals(1, mContentResolver.update(uri, values, null, null));
+        cursor = mContentResolver.query(uri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(0));
+        cursor.close();
+    }
+
     @Test
     @SmallTest
     public void testRawTableInsert() {
@@ -254,6 +299,188 @@ public class SmsProviderTest extends TestCase {
         cursor.close();
     }
 
+    @Test
+    @SmallTest
+    public void testBulkInsertSms() {
+        // More than one batch, so that several transactions are needed.
+        final int count = SmsProvider.BULK_INSERT_BATCH_SIZE * 2 + 1;
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Telephony.Sms.ADDRESS, "12345");
+            values[i].put(Telephony.Sms.BODY, "test " + i);
+            values[i].put(Telephony.Sms.DATE, i);
+            values[i].put(Telephony.Sms.THREAD_ID, 1);
+            if (i % 2 == 0) {
+                values[i].put(Telephony.Sms.TYPE, Telephony.Sms.MESSAGE_TYPE_SENT);
+            }
+        }
+
+        assertEquals(count, mContentResolver.bulkInsert(Telephony.Sms.CONTENT_URI, values));
+        // One set of notifications for the whole bulk insert: the sms URI, the mms-sms root and
+        // the conversation list without their descendants, and the conversation of the thread.
+        assertEquals(4, notifyChangeCount);
+
+        Cursor cursor = mContentResolver.query(Telephony.Sms.CONTENT_URI, null,
+                Telephony.Sms.TYPE + "=" + Telephony.Sms.MESSAGE_TYPE_INBOX, null, null);
+        assertEquals(count / 2, cursor.getCount());
+        cursor.close();
+
+        // Only one draft per thread survives.
+        ContentValues draft = new ContentValues();
+        draft.put(Telephony.Sms.BODY, "draft");
+        draft.put(Telephony.Sms.THREAD_ID, 1);
+        assertEquals(2, mContentResolver.bulkInsert(
+                Uri.parse("content://sms/draft"), new ContentValues[] { draft, draft }));
+        cursor = mContentResolver.query(Uri.parse("content://sms/draft"), null, null, null,
+                null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    @Test
+    @SmallTest
+    public void testNotificationWindow() {
+        mSmsProviderTestable.getNotificationDispatcher().setWindowMs(60 * 1000);
+        final ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, "12345");
+        values.put(Telephony.Sms.BODY, "test");
+        values.put(Telephony.Sms.THREAD_ID, 1);
+        mContentResolver.insert(Telephony.Sms.CONTENT_URI, values);
+        mContentResolver.insert(Telephony.Sms.CONTENT_URI, values);
+        assertEquals(0, notifyChangeCount);
+
+        // Both messages, and the mms-sms root, the conversation list and the conversation once.
+        mSmsProviderTestable.getNotificationDispatcher().flush();
+        assertEquals(5, notifyChangeCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testThreadScopedNotifications() {
+        final Uri conversation1 = Uri.parse("content://mms-sms/conversations/1");
+        final Uri conversation2 = Uri.parse("content://mms-sms/conversations/2");
+        final int skipDescendants = ContentResolver.NOTIFY_SYNC_TO_NETWORK
+                | ContentResolver.NOTIFY_SKIP_NOTIFY_FOR_DESCENDANTS;
+        final ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, "12345");
+        values.put(Telephony.Sms.BODY, "test");
+        values.put(Telephony.Sms.THREAD_ID, 1);
+        Uri message = mContentResolver.insert(Telephony.Sms.CONTENT_URI, values);
+
+        // Only the conversation of the message is notified with its descendants.
+        assertEquals(ContentResolver.NOTIFY_SYNC_TO_NETWORK, (int) mNotifiedUris.get(message));
+        assertEquals(ContentResolver.NOTIFY_SYNC_TO_NETWORK,
+                (int) mNotifiedUris.get(conversation1));
+        assertEquals(skipDescendants, (int) mNotifiedUris.get(Telephony.MmsSms.CONTENT_URI));
+        assertEquals(skipDescendants,
+                (int) mNotifiedUris.get(Telephony.MmsSms.CONTENT_CONVERSATIONS_URI));
+        assertFalse(mNotifiedUris.containsKey(conversation2));
+
+        // Moving the message notifies both threads.
+        mNotifiedUris.clear();
+        values.clear();
+        values.put(Telephony.Sms.THREAD_ID, 2);
+        assertEquals(1, mContentResolver.update(message, values, null, null));
+        assertTrue(mNotifiedUris.containsKey(conversation1));
+        assertTrue(mNotifiedUris.containsKey(conversation2));
+
+        // A delete across too many threads notifies every conversation.
+        mNotifiedUris.clear();
+        values.put(Telephony.Sms.BODY, "test");
+        for (int i = 0; i <= NotificationDispatcher.MAX_SCOPED_THREADS; i++) {
+            values.put(Telephony.Sms.THREAD_ID, 10 + i);
+            mContentResolver.insert(Telephony.Sms.CONTENT_URI, values);
+        }
+        mNotifiedUris.clear();
+        mContentResolver.delete(Telephony.Sms.CONTENT_URI, null, null);
+        assertEquals(ContentResolver.NOTIFY_SYNC_TO_NETWORK,
+                (int) mNotifiedUris.get(Telephony.MmsSms.CONTENT_URI));
+    }
+
+    @Test
+    @SmallTest
+    public void testDeleteSms() {
+        SQLiteDatabase db = mSmsProviderTestable.mCeOpenHelper.getWritableDatabase();
+        final ContentValues thread = new ContentValues();
+        thread.put(Telephony.Threads._ID, 1);
+        db.insert("threads", null, thread);
+        thread.put(Telephony.Threads._ID, 2);
+        db.insert("threads", null, thread);
+
+        final ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, "12345");
+        values.put(Telephony.Sms.THREAD_ID, 1);
+        values.put(Telephony.Sms.BODY, "older");
+        values.put(Telephony.Sms.DATE, 1000L);
+        mContentResolver.insert(Telephony.Sms.CONTENT_URI, values);
+        values.put(Telephony.Sms.BODY, "newer");
+        values.put(Telephony.Sms.DATE, 2000L);
+        Uri newer = mContentResolver.insert(Telephony.Sms.CONTENT_URI, values);
+        values.put(Telephony.Sms.THREAD_ID, 2);
+        mContentResolver.insert(Telephony.Sms.CONTENT_URI, values);
+
+        // The thread gets the count, date and snippet of the messages left.
+        assertEquals(1, mContentResolver.delete(newer, null, null));
+        Cursor cursor = db.query("threads", new String[] { Telephony.Threads.MESSAGE_COUNT,
+                Telephony.Threads.SNIPPET, Telephony.Threads.DATE }, "_id=1", null, null, null,
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getInt(0));
+        assertEquals("older", cursor.getString(1));
+        assertEquals(1000L, cursor.getLong(2));
+        cursor.close();
+
+        // The thread goes away with its last message.
+        assertEquals(1, mContentResolver.delete(Telephony.Sms.CONTENT_URI,
+                Telephony.Sms.THREAD_ID + "=?", new String[] { "1" }));
+        cursor = db.query("threads", new String[] { Telephony.Threads._ID }, null, null, null,
+                null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(2, cursor.getInt(0));
+        cursor.close();
+
+        cursor = mContentResolver.query(Telephony.Sms.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    @Test
+    @SmallTest
+    public void testDeleteSms_removesEmptyThreads() {
+        SQLiteDatabase db = mSmsProviderTestable.mCeOpenHelper.getWritableDatabase();
+        final ContentValues thread = new ContentValues();
+        for (int id = 1; id <= 3; id++) {
+            thread.put(Telephony.Threads._ID, id);
+            db.insert("threads", null, thread);
+        }
+        final ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, "12345");
+        values.put(Telephony.Sms.BODY, "test");
+        values.put(Telephony.Sms.THREAD_ID, 1);
+        Uri message = mContentResolver.insert(Telephony.Sms.CONTENT_URI, values);
+        values.put(Telephony.Sms.THREAD_ID, 2);
+        mContentResolver.insert(Telephony.Sms.CONTENT_URI, values);
+
+        // Deleting an empty conversation deletes its thread, though no message was deleted.
+        assertEquals(0, mContentResolver.delete(
+                Uri.withAppendedPath(Telephony.Sms.Conversations.CONTENT_URI, "3"), null, null));
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, "threads"));
+
+        // A delete on the sms table deletes every thread left without messages.
+        thread.put(Telephony.Threads._ID, 4);
+        db.insert("threads", null, thread);
+        assertEquals(1, mContentResolver.delete(Telephony.Sms.CONTENT_URI,
+                Telephony.Sms._ID + "=?", new String[] { message.getLastPathSegment() }));
+        Cursor cursor = db.query("threads", new String[] { Telephony.Threads._ID }, null, null,
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(2, cursor.getInt(0));
+        cursor.close();
+    }
+
     private ContentValues getFakeRawValue() {
         ContentValues values = new ContentValues();
         values.put("pdu", mFakePdu);
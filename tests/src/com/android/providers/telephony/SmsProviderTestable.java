@@ -15,6 +15,7 @@
  */
 package com.android.providers.telephony;
 
+import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
@@ -28,11 +29,22 @@ public class SmsProviderTestable extends SmsProvider {
     @Override
     public boolean onCreate() {
         Log.d(TAG, "onCreate called: mDbHelper = new InMemorySmsProviderDbHelper()");
-        mCeOpenHelper = new InMemorySmsProviderDbHelper();
-        mDeOpenHelper = new InMemorySmsProviderDbHelper();
+        mCeOpenHelper = new InMemorySmsProviderDbHelper(getContext());
+        mDeOpenHelper = new InMemorySmsProviderDbHelper(getContext());
         return true;
     }
 
+    // The shared dispatcher would keep the context of the first test.
+    private NotificationDispatcher mNotificationDispatcher;
+
+    @Override
+    synchronized NotificationDispatcher getNotificationDispatcher() {
+        if (mNotificationDispatcher == null) {
+            mNotificationDispatcher = new NotificationDispatcher(getContext());
+        }
+        return mNotificationDispatcher;
+    }
+
     // close mDbHelper database object
     protected void closeDatabase() {
         mCeOpenHelper.close();
@@ -43,14 +55,15 @@ public class SmsProviderTestable extends SmsProvider {
      * An in memory DB for SmsProviderTestable to use
      */
     public static class InMemorySmsProviderDbHelper extends SQLiteOpenHelper {
+        private final Context mContext;
 
-
-        public InMemorySmsProviderDbHelper() {
+        public InMemorySmsProviderDbHelper(Context context) {
             super(null,      // no context is needed for in-memory db
                   null,      // db file name is null for in-memory db
                   null,      // CursorFactory is null by default
                   1);        // db version is no-op for tests
             Log.d(TAG, "InMemorySmsProviderDbHelper creating in-memory database");
+            mContext = context;
         }
 
         @Override
@@ -60,6 +73,13 @@ public class SmsProviderTestable extends SmsProvider {
             db.execSQL(MmsSmsDatabaseHelper.CREATE_SMS_TABLE_STRING);
             db.execSQL(MmsSmsDatabaseHelper.CREATE_RAW_TABLE_STRING);
             db.execSQL(MmsSmsDatabaseHelper.CREATE_ATTACHMENTS_TABLE_STRING);
+
+            // Set up the threads of the messages, kept up to date by the triggers on insert and
+            // by the provider on delete
+            MmsSmsDatabaseHelper mmsSmsDatabaseHelper = new MmsSmsDatabaseHelper(mContext, null);
+            mmsSmsDatabaseHelper.createMmsTables(db);
+            mmsSmsDatabaseHelper.createCommonTables(db);
+            mmsSmsDatabaseHelper.createCommonTriggers(db);
         }
 
         @Override
@@ -882,16 +882,18 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
             mIsThreadArchived.add(threadId);
         }
 
-        private String getSpaceSepIds(int threadId) {
+        private List<ContentValues> getAddresses(int threadId) {
+            List<ContentValues> table = new ArrayList<>();
             if (id2Thread.size() < threadId) {
-                return null;
+                return table;
             }
 
-            String spaceSepIds = null;
             for (Integer id : id2Thread.get(threadId-1)) {
-                spaceSepIds = (spaceSepIds == null ? "" : spaceSepIds + " ") + String.valueOf(id);
+                ContentValues row = new ContentValues();
+                row.put(Telephony.CanonicalAddressesColumns.ADDRESS, getRecipient(id));
+                table.add(row);
             }
-            return spaceSepIds;
+            return table;
         }
 
         private String getRecipient(int recipientId) {
@@ -901,37 +903,20 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         @Override
         public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                             String sortOrder) {
-            if (uri.equals(TelephonyBackupAgent.ALL_THREADS_URI)) {
-                final int threadId = Integer.parseInt(selectionArgs[0]);
-                final String spaceSepIds = getSpaceSepIds(threadId);
-                List<ContentValues> table = new ArrayList<>();
-                ContentValues row = new ContentValues();
-                row.put(Telephony.Threads.RECIPIENT_IDS, spaceSepIds);
-                table.add(row);
-                return new FakeCursor(table, projection);
+            List<String> segments = uri.getPathSegments();
+            if (uri.toString().startsWith(TelephonyBackupAgent.CONVERSATIONS_URI.toString())
+                    && "addresses".equals(segments.get(segments.size() - 1))) {
+                final int threadId = Integer.parseInt(segments.get(segments.size() - 2));
+                return new FakeCursor(getAddresses(threadId), projection);
             } else if (uri.toString().startsWith(Telephony.Threads.CONTENT_URI.toString())) {
                 assertEquals(1, projection.length);
                 assertEquals(Telephony.Threads.ARCHIVED, projection[0]);
-                List<String> segments = uri.getPathSegments();
                 final int threadId = Integer.parseInt(segments.get(segments.size() - 2));
                 List<ContentValues> table = new ArrayList<>();
                 ContentValues row = new ContentValues();
                 row.put(Telephony.Threads.ARCHIVED, mIsThreadArchived.contains(threadId) ? 1 : 0);
                 table.add(row);
                 return new FakeCursor(table, projection);
-            } else if (uri.toString().startsWith(
-                    TelephonyBackupAgent.SINGLE_CANONICAL_ADDRESS_URI.toString())) {
-                final int recipientId = (int)ContentUris.parseId(uri);
-                final String recipient = getRecipient(recipientId);
-                List<ContentValues> table = new ArrayList<>();
-                ContentValues row = new ContentValues();
-                row.put(Telephony.CanonicalAddressesColumns.ADDRESS, recipient);
-                table.add(row);
-
-                return new FakeCursor(table,
-                        projection != null
-                                ? projection
-                                : new String[] { Telephony.CanonicalAddressesColumns.ADDRESS });
             } else if (uri.toString().startsWith(
                     TelephonyBackupAgent.THREAD_ID_CONTENT_URI.toString())) {
                 List<String> recipients = uri.getQueryParameters("recipient");
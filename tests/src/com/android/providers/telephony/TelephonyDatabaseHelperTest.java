@@ -19,14 +19,20 @@ package com.android.providers.telephony;
 import static android.provider.Telephony.Carriers;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.support.test.InstrumentationRegistry;
 import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
 import android.util.Log;
@@ -169,6 +175,21 @@ public final class TelephonyDatabaseHelperTest {
                 fullColumns, upgradedColumns);
     }
 
+    @Test
+    public void databaseHelperOnUpgrade_hasPreferredApnTable() {
+        Log.d(TAG, "databaseHelperOnUpgrade_hasPreferredApnTable");
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.DatabaseHelper.getVersion(mContext));
+
+        // the upgraded db must have the preferred_apn table, keyed on the subscription id
+        Cursor cursor = db.query("preferred_apn", null, null, null, null, null, null);
+        String[] upgradedColumns = cursor.getColumnNames();
+        Log.d(TAG, "preferred_apn columns: " + Arrays.toString(upgradedColumns));
+        assertTrue(Arrays.asList(upgradedColumns).contains("sub_id"));
+        assertTrue(Arrays.asList(upgradedColumns).contains("apn_id"));
+        assertTrue(Arrays.asList(upgradedColumns).contains(Carriers.APN_SET_ID));
+    }
+
     @Test
     public void databaseHelperOnUpgrade_hasSubscriptionTypeField() {
         Log.d(TAG, "databaseHelperOnUpgrade_hasSubscriptionTypeField");
@@ -184,6 +205,219 @@ public final class TelephonyDatabaseHelperTest {
         assertTrue(Arrays.asList(upgradedColumns).contains(SubscriptionManager.SUBSCRIPTION_TYPE));
     }
 
+    @Test
+    public void databaseHelperOnUpgrade_siminfoRebuildKeepsSubIdsAndSetsCardId() {
+        Log.d(TAG, "databaseHelperOnUpgrade_siminfoRebuildKeepsSubIdsAndSetsCardId");
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        // a gap in the subscription ids must be kept
+        ContentValues values = new ContentValues();
+        values.put(SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID, 1);
+        values.put(SubscriptionManager.ICC_ID, "89010000000000000001");
+        values.put(SubscriptionManager.CARD_ID, "");
+        db.insert("siminfo", null, values);
+        values.put(SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID, 3);
+        values.put(SubscriptionManager.ICC_ID, "89010000000000000003");
+        db.insert("siminfo", null, values);
+
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.DatabaseHelper.getVersion(mContext));
+
+        try (Cursor cursor = db.query("siminfo", new String[]{
+                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID, SubscriptionManager.CARD_ID},
+                null, null, null, null, SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID)) {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(1, cursor.getInt(0));
+            assertEquals("89010000000000000001", cursor.getString(1));
+            cursor.moveToNext();
+            assertEquals(3, cursor.getInt(0));
+            assertEquals("89010000000000000003", cursor.getString(1));
+        }
+    }
+
+    @Test
+    public void databaseHelperOnUpgrade_carriersRebuildKeepsApns() {
+        Log.d(TAG, "databaseHelperOnUpgrade_carriersRebuildKeepsApns");
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(Carriers._ID, 7);
+        values.put(Carriers.NAME, "Test APN");
+        values.put(Carriers.NUMERIC, "310260");
+        values.put(Carriers.MCC, "310");
+        values.put(Carriers.MNC, "260");
+        values.put(Carriers.APN, "fast.t-mobile.com");
+        values.put(Carriers.TYPE, "default,supl");
+        values.put(Carriers.PROXY, "");
+        db.insert("carriers", null, values);
+
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.DatabaseHelper.getVersion(mContext));
+
+        // the text columns added before the rebuilds have a bare word default, DEFAULT IP
+        try (Cursor cursor = db.query("carriers", new String[]{Carriers._ID, Carriers.NAME,
+                Carriers.APN, Carriers.TYPE, Carriers.PROXY, Carriers.PROTOCOL,
+                Carriers.ROAMING_PROTOCOL, Carriers.CARRIER_ID}, null, null, null, null, null)) {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(7, cursor.getInt(0));
+            assertEquals("Test APN", cursor.getString(1));
+            assertEquals("fast.t-mobile.com", cursor.getString(2));
+            assertEquals("default,supl", cursor.getString(3));
+            assertEquals("", cursor.getString(4));
+            assertEquals("IP", cursor.getString(5));
+            assertEquals("IP", cursor.getString(6));
+            assertEquals(TelephonyManager.UNKNOWN_CARRIER_ID, cursor.getInt(7));
+        }
+        // the rebuilds must not leave their temporary table behind
+        try (Cursor cursor = db.query("sqlite_master", new String[]{"name"}, "name=?",
+                new String[]{"carriers_tmp"}, null, null, null)) {
+            assertEquals(0, cursor.getCount());
+        }
+    }
+
+    @Test
+    public void tableMigrationToSqlDefault_quotesBareWords() {
+        assertEquals("NULL", TableMigration.toSqlDefault(null));
+        assertEquals("'IP'", TableMigration.toSqlDefault("IP"));
+        assertEquals("''", TableMigration.toSqlDefault("''"));
+        assertEquals("-1", TableMigration.toSqlDefault("-1"));
+        assertEquals("(1 + 1)", TableMigration.toSqlDefault("(1 + 1)"));
+    }
+
+    @Test
+    public void databaseHelperUpdateDatabase_keepsIdsOfUnchangedApns() {
+        Log.d(TAG, "databaseHelperUpdateDatabase_keepsIdsOfUnchangedApns");
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.DatabaseHelper.getVersion(mContext));
+        mHelper.initDatabase(db);
+        List<String> ids = getCarriersIds(db);
+
+        // An unedited entry that is not in the xml files must go away
+        ContentValues stale = new ContentValues();
+        stale.put(Carriers.NUMERIC, "99999");
+        stale.put(Carriers.MCC, "999");
+        stale.put(Carriers.MNC, "99");
+        stale.put(Carriers.APN, "stale_apn_for_test");
+        db.insert("carriers", null, stale);
+
+        mHelper.updateDatabase(db);
+
+        // the entries of the xml files must keep their _id
+        assertEquals(ids, getCarriersIds(db));
+    }
+
+    @Test
+    public void databaseHelperUpdateDatabase_ignoresFieldsNotInXml() {
+        Log.d(TAG, "databaseHelperUpdateDatabase_ignoresFieldsNotInXml");
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.DatabaseHelper.getVersion(mContext));
+        mHelper.initDatabase(db);
+        // the entries were inserted with the default subscription of that time
+        ContentValues subId = new ContentValues();
+        subId.put(Carriers.SUBSCRIPTION_ID, 99);
+        int count = db.update("carriers", subId, null, null);
+
+        mHelper.updateDatabase(db);
+
+        // the entries are unchanged, so they are not written again
+        assertEquals(count, DatabaseUtils.queryNumEntries(db, "carriers",
+                Carriers.SUBSCRIPTION_ID + "=99"));
+    }
+
+    @Test
+    public void databaseHelperUpdateDatabase_resetsFieldsRemovedFromXml() {
+        Log.d(TAG, "databaseHelperUpdateDatabase_resetsFieldsRemovedFromXml");
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.DatabaseHelper.getVersion(mContext));
+        mHelper.initDatabase(db);
+        List<String> ids = getCarriersIds(db);
+        assertTrue(ids.size() > 0);
+        // an entry loaded from a previous version of the xml, which had an mtu and a password
+        ContentValues removed = new ContentValues();
+        removed.put(Carriers.MTU, 1234);
+        removed.put(Carriers.PASSWORD, "removed_password_for_test");
+        db.update("carriers", removed, Carriers._ID + "=?", new String[]{ids.get(0)});
+
+        mHelper.updateDatabase(db);
+
+        // the entry keeps its _id, with the attributes that are no longer in the xml reset
+        assertEquals(ids, getCarriersIds(db));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "carriers",
+                Carriers.MTU + "=1234 or " + Carriers.PASSWORD + "='removed_password_for_test'"));
+    }
+
+    @Test
+    public void databaseHelperUpdateDatabase_leavesChecksumToCaller() {
+        Log.d(TAG, "databaseHelperUpdateDatabase_leavesChecksumToCaller");
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.DatabaseHelper.getVersion(mContext));
+        mHelper.initDatabase(db);
+        assertFalse(mHelper.apnDbUpdateNeeded());
+        mHelper.setApnConfChecksum(-1);
+
+        // the update runs in a transaction of the caller, which may still roll it back
+        mHelper.updateDatabase(db);
+        assertTrue(mHelper.apnDbUpdateNeeded());
+    }
+
+    @Test
+    public void databaseHelperInitDatabase_secondLoadMergesIntoExistingApns() {
+        Log.d(TAG, "databaseHelperInitDatabase_secondLoadMergesIntoExistingApns");
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.DatabaseHelper.getVersion(mContext));
+        mHelper.initDatabase(db);
+        List<String> ids = getCarriersIds(db);
+
+        // loading the same xml files again must merge every APN into its existing entry
+        mHelper.initDatabase(db);
+
+        assertEquals(ids, getCarriersIds(db));
+    }
+
+    @Test
+    public void databaseHelperOnUpgrade_migratesPreferredApnPrefs() {
+        Log.d(TAG, "databaseHelperOnUpgrade_migratesPreferredApnPrefs");
+        SharedPreferences spApnId = mContext.getSharedPreferences("preferred-apn",
+                Context.MODE_PRIVATE);
+        SharedPreferences spApn = mContext.getSharedPreferences("preferred-full-apn",
+                Context.MODE_PRIVATE);
+        spApnId.edit().clear().putLong("apn_id1", 7).putBoolean("explicit_set_called1", true)
+                .commit();
+        spApn.edit().clear().putString("version1", "12").putString(Carriers.APN + "1",
+                "fast.t-mobile.com").commit();
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.DatabaseHelper.getVersion(mContext));
+
+        try (Cursor cursor = db.query(PreferredApnStore.TABLE, new String[]{
+                PreferredApnStore.SUB_ID, PreferredApnStore.APN_ID,
+                PreferredApnStore.EXPLICIT_SET, PreferredApnStore.VERSION, Carriers.APN},
+                null, null, null, null, null)) {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(1, cursor.getInt(0));
+            assertEquals(7, cursor.getLong(1));
+            assertEquals(1, cursor.getInt(2));
+            assertEquals(12, cursor.getInt(3));
+            assertEquals("fast.t-mobile.com", cursor.getString(4));
+        }
+        // the preferences are kept until the upgrade has committed
+        assertEquals(7, spApnId.getLong("apn_id1", -1));
+
+        mHelper.onOpen(db);
+        assertTrue(spApnId.getAll().isEmpty());
+        assertTrue(spApn.getAll().isEmpty());
+    }
+
+    private static List<String> getCarriersIds(SQLiteDatabase db) {
+        List<String> ids = new ArrayList<>();
+        try (Cursor cursor = db.query("carriers", new String[]{Carriers._ID}, null, null, null,
+                null, Carriers._ID)) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+        }
+        return ids;
+    }
+
     /**
      * Helper for an in memory DB used to test the TelephonyProvider#DatabaseHelper.
      *
@@ -19,17 +19,21 @@ package com.android.providers.telephony;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.Manifest;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Process;
 import android.provider.Telephony;
@@ -39,6 +43,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.test.mock.MockContentResolver;
 import android.test.mock.MockContext;
+import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.util.Log;
 
@@ -54,7 +59,16 @@ import org.mockito.MockitoAnnotations;
 
 import java.lang.reflect.Field;
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.IntStream;
 
 /**
@@ -103,6 +117,7 @@ public class TelephonyProviderTest extends TestCase {
     // Used to test the preferred apn
     private static final Uri URL_PREFERAPN_USING_SUBID = Uri.parse(
             "content://telephony/carriers/preferapn/subId/" + TEST_SUBID);
+    private static final Uri URL_DELETE = Uri.parse("content://telephony/carriers/delete");
     private static final Uri URL_WFC_ENABLED_USING_SUBID = Uri.parse(
             "content://telephony/siminfo/" + TEST_SUBID);
     private static final Uri URL_SIM_APN_LIST = Uri.parse(
@@ -125,6 +140,7 @@ public class TelephonyProviderTest extends TestCase {
     private class MockContextWithProvider extends MockContext {
         private final MockContentResolver mResolver;
         private TelephonyManager mTelephonyManager = mock(TelephonyManager.class);
+        private int mWriteApnPermissionCheckCount;
 
         private final List<String> GRANTED_PERMISSIONS = Arrays.asList(
                 Manifest.permission.MODIFY_PHONE_STATE, Manifest.permission.WRITE_APN_SETTINGS,
@@ -200,6 +216,9 @@ public class TelephonyProviderTest extends TestCase {
         // Gives permission to write to the APN table within the MockContext
         @Override
         public int checkCallingOrSelfPermission(String permission) {
+            if (Manifest.permission.WRITE_APN_SETTINGS.equals(permission)) {
+                mWriteApnPermissionCheckCount++;
+            }
             if (GRANTED_PERMISSIONS.contains(permission)) {
                 Log.d(TAG, "checkCallingOrSelfPermission: permission=" + permission
                         + ", returning PackageManager.PERMISSION_GRANTED");
@@ -230,6 +249,36 @@ public class TelephonyProviderTest extends TestCase {
         mTelephonyProviderTestable.closeDatabase();
     }
 
+    /**
+     * Test that a bulk insert merges the values that conflict on the unique fields into a single
+     * entry, with one notification. The merged value is counted as changed.
+     */
+    @Test
+    @SmallTest
+    public void testBulkInsertCarriers_mergesConflictingValues() {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "exampleApnName");
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        contentValues.put(Carriers.MCC, TEST_MCC);
+        contentValues.put(Carriers.MNC, TEST_MNC);
+        contentValues.put(Carriers.TYPE, "default");
+        ContentValues contentValues2 = new ContentValues(contentValues);
+        contentValues2.put(Carriers.TYPE, "mms");
+
+        int rows = mContentResolver.bulkInsert(Carriers.CONTENT_URI,
+                new ContentValues[]{ contentValues, contentValues2 });
+        assertEquals(2, rows);
+        assertEquals(1, notifyChangeCount);
+
+        try (Cursor cursor = mContentResolver.query(Carriers.CONTENT_URI,
+                new String[]{ Carriers.TYPE }, Carriers.NUMERIC + "=?",
+                new String[]{ TEST_OPERATOR }, null)) {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("default,mms", cursor.getString(0));
+        }
+    }
+
     /**
      * Test bulk inserting, querying;
      * Verify that the inserted values match the result of the query.
@@ -1543,4 +1592,303 @@ public class TelephonyProviderTest extends TestCase {
         assertEquals(carrierName, cursor.getString(1));
         assertEquals(numeric, cursor.getString(2));
     }
+
+    /**
+     * Test that the queries of a URI type share one statement, with the values bound.
+     */
+    @Test
+    @SmallTest
+    public void testQueryTemplateSharedAcrossIds() {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "apn1");
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        Uri uri1 = mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+        contentValues.put(Carriers.APN, "apn2");
+        Uri uri2 = mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+
+        QueryTemplateCache queryTemplates = mTelephonyProviderTestable.mQueryTemplates;
+        int hits = queryTemplates.hitCount();
+        int misses = queryTemplates.missCount();
+
+        final String[] testProjection = {Carriers.APN};
+        Cursor cursor = mContentResolver.query(uri1, testProjection, null, null, null);
+        cursor.moveToFirst();
+        assertEquals("apn1", cursor.getString(0));
+        cursor.close();
+        cursor = mContentResolver.query(uri2, testProjection, null, null, null);
+        cursor.moveToFirst();
+        assertEquals("apn2", cursor.getString(0));
+        cursor.close();
+
+        // the second id reuses the template built for the first one
+        assertEquals(misses + 1, queryTemplates.missCount());
+        assertEquals(hits + 1, queryTemplates.hitCount());
+    }
+
+    /**
+     * Test that the preferred APN is found again by its values once the APNs are reloaded with
+     * new ids.
+     */
+    @Test
+    @SmallTest
+    public void testPreferredApnFoundAgainAfterReload() {
+        ContentValues preferredValues = new ContentValues();
+        preferredValues.put(Carriers.APN, "preferredApn");
+        preferredValues.put(Carriers.NAME, "preferredName");
+        preferredValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        preferredValues.put(Carriers.EDITED_STATUS, Carriers.UNEDITED);
+        ContentValues otherValues = new ContentValues(preferredValues);
+        otherValues.put(Carriers.APN, "otherApn");
+        otherValues.put(Carriers.NAME, "otherName");
+
+        Uri uri = mContentResolver.insert(Carriers.CONTENT_URI, preferredValues);
+        mContentResolver.insert(Carriers.CONTENT_URI, otherValues);
+        ContentValues prefer = new ContentValues();
+        prefer.put(COLUMN_APN_ID, Long.parseLong(uri.getLastPathSegment()));
+        assertEquals(1, mContentResolver.update(URL_PREFERAPN_USING_SUBID, prefer, null, null));
+
+        // Reload the APNs in the other order, so that the preferred APN gets another id.
+        assertEquals(2, mContentResolver.delete(URL_DELETE, "1", null));
+        mContentResolver.insert(Carriers.CONTENT_URI, otherValues);
+        Uri newUri = mContentResolver.insert(Carriers.CONTENT_URI, preferredValues);
+        assertFalse(uri.equals(newUri));
+
+        final String[] testProjection = {Carriers._ID, Carriers.APN};
+        Cursor cursor = mContentResolver.query(URL_PREFERAPN_USING_SUBID, testProjection, null,
+                null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(Long.parseLong(newUri.getLastPathSegment()), cursor.getLong(0));
+        assertEquals("preferredApn", cursor.getString(1));
+        cursor.close();
+
+        // The id found is stored once the query released the read lock.
+        assertEquals(Long.parseLong(newUri.getLastPathSegment()), DatabaseUtils.longForQuery(
+                mTelephonyProviderTestable.getWritableDatabase(),
+                "SELECT " + PreferredApnStore.APN_ID + " FROM " + PreferredApnStore.TABLE
+                        + " WHERE " + PreferredApnStore.SUB_ID + "=" + TEST_SUBID, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testSIMAPNLIST_CachedUntilCarriersWrite() {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "apnName");
+        contentValues.put(Carriers.NAME, "name");
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+
+        final String[] testProjection = {Carriers.APN, Carriers.NAME};
+        Cursor cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null,
+                null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // The second query is served from the cache, without looking up the SIM again.
+        cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("apnName", cursor.getString(0));
+        assertEquals("name", cursor.getString(1));
+        cursor.close();
+        verify(mContext.mTelephonyManager, times(1)).getSimOperator();
+
+        // A write of the carriers table drops the cached list.
+        contentValues.put(Carriers.APN, "apnName2");
+        mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+        cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        verify(mContext.mTelephonyManager, times(2)).getSimOperator();
+    }
+
+    @Test
+    @SmallTest
+    public void testPermissionDecisionCachedPerUid() {
+        for (int i = 0; i < 3; i++) {
+            queryCount(Carriers.CONTENT_URI);
+        }
+        assertEquals(1, mContext.mWriteApnPermissionCheckCount);
+
+        // Another caller gets its own decision.
+        mTelephonyProviderTestable.fakeCallingUid(Process.FIRST_APPLICATION_UID);
+        for (int i = 0; i < 3; i++) {
+            queryCount(Carriers.CONTENT_URI);
+        }
+        assertEquals(2, mContext.mWriteApnPermissionCheckCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testPermissionDecisionDroppedOnPackageChange() {
+        queryCount(Carriers.CONTENT_URI);
+        assertEquals(1, mContext.mWriteApnPermissionCheckCount);
+
+        Intent removed = new Intent(Intent.ACTION_PACKAGE_REMOVED,
+                Uri.fromParts("package", "com.example.carrier", null));
+        mTelephonyProviderTestable.mCacheInvalidationReceiver.onReceive(mContext, removed);
+        queryCount(Carriers.CONTENT_URI);
+        assertEquals(2, mContext.mWriteApnPermissionCheckCount);
+
+        Intent replaced = new Intent(Intent.ACTION_PACKAGE_REPLACED,
+                Uri.fromParts("package", "com.example.carrier", null));
+        mTelephonyProviderTestable.mCacheInvalidationReceiver.onReceive(mContext, replaced);
+        queryCount(Carriers.CONTENT_URI);
+        assertEquals(3, mContext.mWriteApnPermissionCheckCount);
+    }
+
+    private int queryCount(Uri uri) {
+        try (Cursor cursor = mContentResolver.query(uri, null, null, null, null)) {
+            return cursor.getCount();
+        }
+    }
+
+    /**
+     * Test that a write of siminfo only blocks the siminfo queries, not the APN queries.
+     */
+    @Test
+    @SmallTest
+    public void testSimInfoWriteDoesNotBlockApnQuery() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ReentrantReadWriteLock simInfoLock =
+                mTelephonyProviderTestable.getLockForUri(SubscriptionManager.CONTENT_URI);
+        Future<Integer> simInfoQuery;
+        simInfoLock.writeLock().lock();
+        try {
+            Future<Integer> apnQuery = executor.submit(() -> queryCount(Carriers.CONTENT_URI));
+            assertEquals(0, (int) apnQuery.get(5, TimeUnit.SECONDS));
+
+            simInfoQuery = executor.submit(() -> queryCount(SubscriptionManager.CONTENT_URI));
+            try {
+                simInfoQuery.get(100, TimeUnit.MILLISECONDS);
+                fail("siminfo query did not wait for the siminfo write");
+            } catch (TimeoutException expected) {
+            }
+        } finally {
+            simInfoLock.writeLock().unlock();
+        }
+        assertEquals(0, (int) simInfoQuery.get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    /**
+     * Test that the preferred APN query runs along with the APN readers. Only storing a preferred
+     * APN found by the saved APN fields takes the write lock.
+     */
+    @Test
+    @SmallTest
+    public void testPreferredApnQueryTakesReadLock() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ReentrantReadWriteLock carriersLock =
+                mTelephonyProviderTestable.getLockForUri(Carriers.CONTENT_URI);
+        carriersLock.readLock().lock();
+        try {
+            Future<Integer> apnQuery = executor.submit(() -> queryCount(Carriers.CONTENT_URI));
+            assertEquals(0, (int) apnQuery.get(5, TimeUnit.SECONDS));
+
+            Future<Integer> preferredApnQuery =
+                    executor.submit(() -> queryCount(URL_PREFERAPN_USING_SUBID));
+            assertEquals(0, (int) preferredApnQuery.get(5, TimeUnit.SECONDS));
+        } finally {
+            carriersLock.readLock().unlock();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Test that the queries that pick the APNs to use wait for the APN update of a build update,
+     * while the other queries are served right away.
+     */
+    @Test
+    @SmallTest
+    public void testApnDbReadyBlocksPreferredApnQuery() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch apnDbReady = new CountDownLatch(1);
+        mTelephonyProviderTestable.mApnDbReady = apnDbReady;
+
+        Future<Integer> apnQuery = executor.submit(() -> queryCount(Carriers.CONTENT_URI));
+        assertEquals(0, (int) apnQuery.get(1, TimeUnit.SECONDS));
+
+        Future<Integer> preferredApnQuery =
+                executor.submit(() -> queryCount(URL_PREFERAPN_USING_SUBID));
+        try {
+            preferredApnQuery.get(100, TimeUnit.MILLISECONDS);
+            fail("preferred APN query did not wait for the APN update");
+        } catch (TimeoutException expected) {
+        }
+        apnDbReady.countDown();
+        assertEquals(0, (int) preferredApnQuery.get(1, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    /**
+     * Test that the queries stop waiting for an APN update that does not finish in time.
+     */
+    @Test
+    @SmallTest
+    public void testApnDbReadyTimesOut() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        mTelephonyProviderTestable.mApnDbReady = new CountDownLatch(1);
+        mTelephonyProviderTestable.setApnDbReadyTimeoutMs(200);
+
+        Future<Integer> preferredApnQuery =
+                executor.submit(() -> queryCount(URL_PREFERAPN_USING_SUBID));
+        assertEquals(0, (int) preferredApnQuery.get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    /**
+     * Contention benchmark: APN queries from several threads while siminfo is updated
+     * continuously. Logs the throughput of the queries.
+     */
+    @Test
+    @MediumTest
+    public void testQueryContentionBenchmark() throws Exception {
+        final int readers = 4;
+        final int iterations = 200;
+        final int apnCount = 20;
+        for (int i = 0; i < apnCount; i++) {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(Carriers.APN, "apn" + i);
+            contentValues.put(Carriers.NAME, "name" + i);
+            contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+            mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+        }
+        ContentValues simInfo = new ContentValues();
+        simInfo.put(SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID, 1);
+        simInfo.put(SubscriptionManager.ICC_ID, "exampleIccId");
+        simInfo.put(SubscriptionManager.CARD_ID, "exampleCardId");
+        mContentResolver.insert(SubscriptionManager.CONTENT_URI, simInfo);
+
+        ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            tasks.add(() -> {
+                int rows = 0;
+                for (int j = 0; j < iterations; j++) {
+                    rows += queryCount(Carriers.CONTENT_URI);
+                }
+                return rows;
+            });
+        }
+        tasks.add(() -> {
+            for (int j = 0; j < iterations; j++) {
+                ContentValues values = new ContentValues();
+                values.put(SubscriptionManager.DISPLAY_NAME, "name" + j);
+                mContentResolver.update(SubscriptionManager.CONTENT_URI, values, null, null);
+            }
+            return 0;
+        });
+
+        long start = System.nanoTime();
+        List<Future<Integer>> results = executor.invokeAll(tasks, 60, TimeUnit.SECONDS);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        executor.shutdown();
+
+        for (int i = 0; i < readers; i++) {
+            assertEquals(iterations * apnCount, (int) results.get(i).get());
+        }
+        Log.d(TAG, "testQueryContentionBenchmark: " + (readers * iterations) + " APN queries and "
+                + iterations + " siminfo updates in " + elapsedMs + "ms");
+    }
 }
@@ -44,6 +44,7 @@ public class TelephonyProviderTestable extends TelephonyProvider {
 
     private InMemoryTelephonyProviderDbHelper mDbHelper;
     private MockInjector mMockInjector;
+    private long mApnDbReadyTimeoutMs = 5000;
 
     public TelephonyProviderTestable() {
         this(new MockInjector());
@@ -90,6 +91,15 @@ public class TelephonyProviderTestable extends TelephonyProvider {
         return false;
     }
 
+    @Override
+    long getApnDbReadyTimeoutMs() {
+        return mApnDbReadyTimeoutMs;
+    }
+
+    void setApnDbReadyTimeoutMs(long timeoutMs) {
+        mApnDbReadyTimeoutMs = timeoutMs;
+    }
+
     @Override
     IccRecords getIccRecords(int subId) {
         Log.d(TAG, "getIccRecords called");
@@ -125,6 +135,11 @@ public class TelephonyProviderTestable extends TelephonyProvider {
             // set up the siminfo table
             Log.d(TAG, "InMemoryTelephonyProviderDbHelper onCreate creating the siminfo table");
             db.execSQL(getStringForSimInfoTableCreation("siminfo"));
+
+            // set up the preferred_apn table
+            Log.d(TAG, "InMemoryTelephonyProviderDbHelper onCreate creating the preferred_apn "
+                    + "table");
+            db.execSQL(getStringForPreferredApnTableCreation("preferred_apn"));
         }
 
         @Override
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:ThreadIdCacheTest
+ */
+@RunWith(JUnit4.class)
+public final class ThreadIdCacheTest {
+    private ThreadIdCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new ThreadIdCache();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        long generation = mCache.getGeneration();
+        mCache.putAddressId("+15551234567", 3L, generation);
+        mCache.putThreadId("3 5", 7L, generation);
+
+        assertEquals(Long.valueOf(3L), mCache.getAddressId("+15551234567"));
+        assertEquals(Long.valueOf(7L), mCache.getThreadId("3 5"));
+        assertNull(mCache.getThreadId("5"));
+    }
+
+    @Test
+    public void testInvalidateThreads_keepsAddresses() {
+        long generation = mCache.getGeneration();
+        mCache.putAddressId("+15551234567", 3L, generation);
+        mCache.putThreadId("3", 7L, generation);
+
+        mCache.invalidateThreads();
+
+        assertEquals(Long.valueOf(3L), mCache.getAddressId("+15551234567"));
+        assertNull(mCache.getThreadId("3"));
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        long generation = mCache.getGeneration();
+        mCache.putAddressId("+15551234567", 3L, generation);
+        mCache.putThreadId("3", 7L, generation);
+
+        mCache.invalidateAll();
+
+        assertNull(mCache.getAddressId("+15551234567"));
+        assertNull(mCache.getThreadId("3"));
+    }
+
+    @Test
+    public void testStaleLookupIsNotCached() {
+        // A lookup that raced with an invalidation must not repopulate the cache.
+        long generation = mCache.getGeneration();
+        mCache.invalidateAll();
+        mCache.putAddressId("+15551234567", 3L, generation);
+        mCache.putThreadId("3", 7L, generation);
+
+        assertNull(mCache.getAddressId("+15551234567"));
+        assertNull(mCache.getThreadId("3"));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:WalCheckpointSchedulerTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class WalCheckpointSchedulerTest {
+    private static final String WAL_DATABASE = "wal_checkpoint_test.db";
+
+    private MmsSmsProviderTestable.InMemoryMmsSmsDatabase mOpenHelper;
+    private WalCheckpointScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mOpenHelper = new MmsSmsProviderTestable.InMemoryMmsSmsDatabase(null);
+        mScheduler = new WalCheckpointScheduler(mOpenHelper);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.setLowStorage(false);
+        mOpenHelper.close();
+    }
+
+    @Test
+    public void testNoWrite_nothingScheduled() {
+        mOpenHelper.getWritableDatabase();
+        assertThat(mScheduler.isCheckpointScheduled()).isFalse();
+    }
+
+    @Test
+    public void testOnWrite_schedulesCheckpoint() {
+        mScheduler.onWrite();
+        assertThat(mScheduler.isCheckpointScheduled()).isTrue();
+
+        // more writes push the one checkpoint back
+        mScheduler.onWrite();
+        mScheduler.onWrite();
+        assertThat(mScheduler.isCheckpointScheduled()).isTrue();
+    }
+
+    @Test
+    public void testLowStorage_checkpointsRightAway() {
+        mScheduler.onWrite();
+        mScheduler.setLowStorage(true);
+
+        long timeout = SystemClock.elapsedRealtime() + 1000;
+        while (mScheduler.isCheckpointScheduled()) {
+            assertThat(SystemClock.elapsedRealtime()).isLessThan(timeout);
+            SystemClock.sleep(10);
+        }
+    }
+
+    @Test
+    public void testLowStorage_truncatesLog() {
+        Context context = InstrumentationRegistry.getContext();
+        context.deleteDatabase(WAL_DATABASE);
+        WalDatabase openHelper = new WalDatabase(context);
+        WalCheckpointScheduler scheduler = new WalCheckpointScheduler(openHelper);
+        try {
+            SQLiteDatabase db = openHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < 100; i++) {
+                values.put("body", "message " + i);
+                db.insert("sms", null, values);
+            }
+            File log = new File(db.getPath() + "-wal");
+            assertThat(log.length()).isGreaterThan(0L);
+
+            scheduler.setLowStorage(true);
+            long timeout = SystemClock.elapsedRealtime() + 1000;
+            while (scheduler.getTruncateCount() == 0) {
+                assertThat(SystemClock.elapsedRealtime()).isLessThan(timeout);
+                SystemClock.sleep(10);
+            }
+            assertThat(log.length()).isEqualTo(0L);
+        } finally {
+            scheduler.setLowStorage(false);
+            openHelper.close();
+            context.deleteDatabase(WAL_DATABASE);
+        }
+    }
+
+    /**
+     * A database in a file, with write-ahead logging, unlike the in-memory test database.
+     */
+    private static class WalDatabase extends SQLiteOpenHelper {
+        WalDatabase(Context context) {
+            super(context, WAL_DATABASE, null, 1);
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, body TEXT)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}